@@ -0,0 +1,205 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Critical section throughput and acquisition latency.
+ * The benchmark thread repeatedly acquires the CS for one node and waits for the grant, while
+ * (contenders - 1) other nodes, spread over the tree, acquire it again as soon as they released it.
+ * Every lease is released holdMicros after the grant.
+ * acquireLatency reports the p50/p99/p999 acquisition latency, acquireThroughput reports (as aux counters)
+ * the CS grants per second of all nodes and the node to node messages per second;
+ * the messages per CS entry, in total and by type, are printed at the end of each iteration.
+ * Compare -p piggyback=true,false to see the requests saved by PrivilegeAndRequestMsg, and -p tokens=1,2,4
+ * (k-mutual exclusion, with enough contenders and a hold time) to see the throughput and messages per CS entry
+ * as k grows.
+ * network=lan and wan send the messages between nodes through a NetworkEmulator, with a 0.2 ms and a 10 ms delay
+ * per link (and a tenth of it as mean jitter): latency then grows with the hops a grant takes, not with akka.
+ *
+ * run with: gradle jmh, or gradle jmh -Pjmh.args="-p nodes=10000 -p topology=chain"
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CriticalSectionBenchmark {
+
+    @Param({"10", "1000"})
+    public int nodes;
+
+    @Param({"binary", "chain", "star", "random"})
+    public String topology;
+
+    @Param({"1", "4"})
+    public int contenders;
+
+    @Param({"0", "100"})
+    public int holdMicros;
+
+    @Param({"true", "false"})
+    public boolean piggyback;
+
+    @Param({"1", "2", "4"})
+    public int tokens;
+
+    @Param({"none", "lan"})
+    public String network;
+
+    private DistributedMutEx mutex;
+    private ScheduledExecutorService releaser;
+    private int measured; // node whose acquisitions are timed
+
+    private final AtomicLong grants = new AtomicLong();
+    private volatile CompletableFuture<Void> released;
+
+    // counters at the beginning of the iteration
+    private long iteration_grants;
+    private final long[] iteration_messages = new long[MessageType.values().length];
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        EventLog.disableAll();
+
+        Topology tree = Topology.parse(topology, nodes);
+        releaser = Executors.newSingleThreadScheduledExecutor();
+        released = CompletableFuture.completedFuture(null);
+        measured = nodes - 1;
+
+        mutex = new DistributedMutEx(tree, new NodeConfig().piggyback(piggyback).transport(transport(network)));
+        mutex.init(tokens);
+        // the initialization is flooded down the tree, there is no completion signal yet
+        TimeUnit.SECONDS.sleep(2 + nodes / 100_000);
+
+        // contenders are spread evenly over the ids, the measured node being the last one
+        for (int c = 1; c < contenders; c++) {
+            int node = (int) ((long) c * nodes / contenders) % nodes;
+            if (node != measured)
+                contend(node);
+        }
+    }
+
+    private static Transport transport(String network) {
+        switch (network) {
+            case "none":
+                return Transport.AKKA;
+            case "lan":
+                return emulated(200);
+            case "wan":
+                return emulated(10_000);
+            default:
+                throw new IllegalArgumentException("unknown network: " + network);
+        }
+    }
+
+    private static Transport emulated(long delayMicros) {
+        return new NetworkEmulator(Transport.AKKA, 42).defaultLink(new NetworkEmulator.LinkProfile()
+                .delay(delayMicros, TimeUnit.MICROSECONDS)
+                .jitter(delayMicros / 10, TimeUnit.MICROSECONDS));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        releaser.shutdownNow();
+        mutex.terminate();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iteration_grants = grants.get();
+        for (MessageType type : MessageType.values())
+            iteration_messages[type.ordinal()] = mutex.getMessageCount(type);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportIteration() {
+        long g = Math.max(1, grants.get() - iteration_grants);
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        for (MessageType type : MessageType.values()) {
+            long m = mutex.getMessageCount(type) - iteration_messages[type.ordinal()];
+            total += m;
+            sb.append(String.format(" %s=%.3f", type, (double) m / g));
+        }
+        System.out.printf("messages per CS entry: %.3f (%s )%n", (double) total / g, sb);
+    }
+
+    @Setup(Level.Invocation)
+    public void awaitRelease() {
+        // do not time the CS hold of the previous acquisition
+        released.join();
+    }
+
+    // closed loop: acquire, hold, release, acquire again...
+    private void contend(int node) {
+        mutex.acquire(node).thenAccept(lease -> {
+            grants.incrementAndGet();
+            release(lease).thenRun(() -> contend(node));
+        });
+    }
+
+    private CompletableFuture<Void> release(Lease lease) {
+        if (holdMicros == 0) {
+            lease.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        releaser.schedule(() -> {
+            lease.release();
+            done.complete(null);
+        }, holdMicros, TimeUnit.MICROSECONDS);
+        return done;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long grants;
+        public long messages;
+
+        private long last_grants;
+        private long last_messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            grants = 0;
+            messages = 0;
+            last_grants = 0;
+            last_messages = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void acquireLatency(Counters counters) {
+        acquire(counters);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void acquireThroughput(Counters counters) {
+        acquire(counters);
+    }
+
+    private void acquire(Counters counters) {
+        Lease lease = mutex.acquire(measured).toCompletableFuture().join();
+        grants.incrementAndGet();
+        released = release(lease);
+
+        long g = grants.get();
+        long m = mutex.getMessageCount();
+        if (counters.last_grants > 0 || counters.last_messages > 0) {
+            counters.grants += g - counters.last_grants;
+            counters.messages += m - counters.last_messages;
+        }
+        counters.last_grants = g;
+        counters.last_messages = m;
+    }
+}
@@ -0,0 +1,90 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Recovery latency under correlated failures.
+ * Each operation fails a path of burst adjacent nodes of a binary tree at once (node 1, then its first child and
+ * grandchild), waits until all of them ended their recovery, then has node 8, below them, enter the CS again.
+ * Node 8 got the token before the failure, so the recovering nodes have to advise each other to find it.
+ * The time of an operation is failureMillis plus the time to recover and serve the request; the recovery times
+ * the failed nodes recorded (from the end of their failure to the end of their recovery) are printed at the end
+ * of each iteration, they stay under the recovery timeout times the retries even when all of them fail together.
+ *
+ * run with: gradle jmh -Pjmh.args="RecoveryBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    // failed together, each one the parent of the next
+    private static final int[] PATH = {1, 3, 7};
+    private static final int CLIENT = 8;
+
+    @Param({"15", "1000"})
+    public int nodes;
+
+    @Param({"1", "2", "3"})
+    public int burst;
+
+    @Param({"50"})
+    public int failureMillis;
+
+    private DistributedMutEx mutex;
+    private final long[] recoveries = new long[PATH.length];
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        EventLog.disableAll();
+        NodeConfig config = new NodeConfig()
+                .csDuration(0, TimeUnit.SECONDS)
+                .failureDuration(failureMillis, TimeUnit.MILLISECONDS)
+                .recoveryTimeout(100, TimeUnit.MILLISECONDS, 3);
+        mutex = new DistributedMutEx(Topology.kary(nodes, 2), config);
+        mutex.init();
+        TimeUnit.SECONDS.sleep(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mutex.terminate();
+    }
+
+    @Setup(Level.Invocation)
+    public void moveToken() {
+        enter(CLIENT);
+        for (int i = 0; i < burst; i++)
+            recoveries[i] = recovery(PATH[i]).getCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportIteration() {
+        for (int i = 0; i < burst; i++)
+            System.out.printf("recovery of node %d: %s%n", PATH[i], recovery(PATH[i]));
+    }
+
+    private void enter(int node) {
+        mutex.acquire(node).toCompletableFuture().join().release();
+    }
+
+    private LatencyHistogram recovery(int node) {
+        return mutex.metrics(node).toCompletableFuture().join().recovery;
+    }
+
+    @Benchmark
+    public void failAndRecover() throws InterruptedException {
+        for (int i = 0; i < burst; i++)
+            mutex.node_failure(PATH[i]);
+        for (int i = 0; i < burst; i++) {
+            while (recovery(PATH[i]).getCount() == recoveries[i])
+                TimeUnit.MILLISECONDS.sleep(1);
+        }
+        enter(CLIENT);
+    }
+}
@@ -0,0 +1,85 @@
+package it.unitn.ds1;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The token round trip of TokenPassingBenchmark, with the nodes of the chain alternating between two actor systems
+ * connected by akka remote over localhost: every hop crosses the wire. Compares NodeMessageSerializer with
+ * java serialization of the same messages.
+ *
+ * run with: gradle jmh -Pjmh.args="RemoteTokenPassingBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoteTokenPassingBenchmark {
+    private static final int BASE_PORT = 25620;
+
+    @Param({"2", "4"})
+    public int nodes;
+
+    @Param({"binary", "java"})
+    public String serializer;
+
+    private RemoteDeployment coordinator;
+    private RemoteDeployment member;
+    private DistributedMutEx mutex;
+    private AtomicLongArray grants;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EventLog.disableAll();
+        grants = new AtomicLongArray(nodes);
+        NodeConfig config = new NodeConfig()
+                .csDuration(0, TimeUnit.SECONDS)
+                .csListener(new NodeConfig.CSListener() {
+                    @Override
+                    public void onEnterCS(int node) {
+                        grants.incrementAndGet(node);
+                    }
+
+                    @Override
+                    public void onExitCS(int node) {
+                    }
+                });
+        Config overrides = serializer.equals("java")
+                ? ConfigFactory.parseString("akka.actor.serialization-bindings {\n"
+                + "\"it.unitn.ds1.Node$NodeToNodeMsg\" = java\n\"it.unitn.ds1.Node$StampedMsg\" = java\n}")
+                : ConfigFactory.empty();
+
+        Topology chain = Topology.chain(nodes);
+        member = new RemoteDeployment(chain, config, 1, 2, "127.0.0.1", BASE_PORT, overrides);
+        coordinator = new RemoteDeployment(chain, config, 0, 2, "127.0.0.1", BASE_PORT, overrides);
+        mutex = coordinator.connect(30, TimeUnit.SECONDS);
+        mutex.init();
+        TimeUnit.SECONDS.sleep(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        coordinator.terminate();
+        member.terminate();
+    }
+
+    private void enter(int node) {
+        long before = grants.get(node);
+        mutex.request_cs(node);
+        while (grants.get(node) == before)
+            Thread.yield();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        enter(nodes - 1);
+        enter(0);
+    }
+}
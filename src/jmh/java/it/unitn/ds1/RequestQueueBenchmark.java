@@ -0,0 +1,120 @@
+package it.unitn.ds1;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request queue operations of a high degree node (e.g. the root of a star):
+ * a membership test, then the head is served and queued again.
+ * "deque" is the former ArrayDeque of node entries compared by id, "slots" is SlotQueue.
+ * "slotsByPriority" serves the queue as a node does once priorities are in use: the request of the highest aged
+ * priority is found by a scan of the queue (Node.nextIndex), removed from where it is (SlotQueue.removeAt)
+ * and queued again, as a neighbour asking once more.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestQueueBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    public int degree;
+
+    // stand-in for the old Node.ActorInfo, equal by id
+    static final class Entry {
+        final int id;
+
+        Entry(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).id == id;
+        }
+    }
+
+    private Entry[] entries;
+    private Deque<Entry> deque;
+    private SlotQueue slots;
+    private int probe;
+
+    // priorities of the queued requests, as in Node.LockState
+    private SlotQueue by_priority;
+    private int[] slot_priority;
+    private long[] queued_at;
+    private final long aging_nanos = TimeUnit.SECONDS.toNanos(1);
+
+    @Setup
+    public void setUp() {
+        entries = new Entry[degree + 1];
+        deque = new ArrayDeque<>();
+        slots = new SlotQueue(degree + 1);
+        for (int i = 0; i <= degree; i++)
+            entries[i] = new Entry(i);
+        // half of the neighbours are waiting
+        for (int i = 0; i < degree; i += 2) {
+            deque.addLast(entries[i]);
+            slots.add(i);
+        }
+
+        by_priority = new SlotQueue(degree + 1);
+        slot_priority = new int[degree + 1];
+        queued_at = new long[degree + 1];
+        long now = System.nanoTime();
+        for (int i = 0; i < degree; i += 2) {
+            by_priority.add(i);
+            // one request in ten is urgent
+            slot_priority[i] = i % 10 == 0 ? 3 : 0;
+            queued_at[i] = now;
+        }
+    }
+
+    private int nextProbe() {
+        // the node itself, as in queueContainsSelf, or a neighbour not in the queue
+        probe = probe == degree ? 1 : degree;
+        return probe;
+    }
+
+    @Benchmark
+    public Object deque() {
+        boolean contains = deque.contains(entries[nextProbe()]);
+        Entry head = deque.removeFirst();
+        if (!contains)
+            deque.addLast(head);
+        return head;
+    }
+
+    @Benchmark
+    public int slotsByPriority() {
+        long now = System.nanoTime();
+        int next = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < by_priority.size(); i++) {
+            int slot = by_priority.get(i);
+            long priority = slot_priority[slot] + (now - queued_at[slot]) / aging_nanos;
+            if (priority > max) {
+                max = priority;
+                next = i;
+            }
+        }
+        int slot = by_priority.removeAt(next);
+        queued_at[slot] = now;
+        by_priority.add(slot);
+        return slot;
+    }
+
+    @Benchmark
+    public int slots() {
+        boolean contains = slots.contains(nextProbe());
+        int head = slots.poll();
+        if (!contains)
+            slots.add(head);
+        return head;
+    }
+}
@@ -0,0 +1,82 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JavaSerializer;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of encoding and decoding the messages between nodes with NodeMessageSerializer and with java serialization
+ * (the akka fallback for Serializable messages), as done by akka remote for every message that leaves the JVM.
+ * The encoded size of each message is printed at setup.
+ *
+ * run with: gradle jmh -Pjmh.args="SerializationBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"request", "advise", "stamped"})
+    public String message;
+
+    @Param({"binary", "java"})
+    public String serializer;
+
+    private ActorSystem system;
+    private Serializer codec;
+    private String manifest = "";
+    private Object msg;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        system = ActorSystem.create("serialization", ConfigFactory.parseString("akka.loglevel = WARNING"));
+        switch (message) {
+            case "request":
+                msg = new Node.RequestMsg(1234, 3);
+                break;
+            case "advise":
+                msg = new Node.AdviseMsg(1234, 3, true, false, true);
+                break;
+            default:
+                msg = new Node.StampedMsg(1_000_000, new Node.PrivilegeMsg(1234, 3));
+        }
+        if (serializer.equals("binary")) {
+            NodeMessageSerializer binary = new NodeMessageSerializer();
+            manifest = binary.manifest(msg);
+            codec = binary;
+        } else {
+            codec = new JavaSerializer((ExtendedActorSystem) system);
+        }
+        encoded = codec.toBinary(msg);
+        System.out.printf("%n%s, %s serialization: %d bytes%n", message, serializer, encoded.length + manifest.length());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        system.terminate();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.toBinary(msg);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        if (codec instanceof SerializerWithStringManifest)
+            return ((SerializerWithStringManifest) codec).fromBinary(encoded, manifest);
+        return codec.fromBinary(encoded, msg.getClass());
+    }
+}
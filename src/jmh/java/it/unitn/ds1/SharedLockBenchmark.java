@@ -0,0 +1,91 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Read throughput of the shared lock mode.
+ * Each invocation is a round: readers nodes, spread over the tree, acquire the default lock at the same time
+ * and hold it for holdMicros, the round ends when all of them released it.
+ * With mode=shared the leases are held together and a round lasts about one hold whatever the number of readers,
+ * with mode=exclusive they are held one after the other: the reads aux counter (reads per second) scales with
+ * the readers in the first case only.
+ *
+ * run with: gradle jmh -Pjmh.args="SharedLockBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedLockBenchmark {
+
+    @Param({"31"})
+    public int nodes;
+
+    @Param({"1", "2", "4", "8"})
+    public int readers;
+
+    @Param({"shared", "exclusive"})
+    public String mode;
+
+    @Param({"1000"})
+    public int holdMicros;
+
+    private DistributedMutEx mutex;
+    private ScheduledExecutorService releaser;
+    private int[] reader_nodes;
+    private boolean shared;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        EventLog.disableAll();
+        shared = mode.equals("shared");
+        releaser = Executors.newSingleThreadScheduledExecutor();
+        mutex = new DistributedMutEx(Topology.kary(nodes, 2), new NodeConfig());
+        mutex.init();
+        TimeUnit.SECONDS.sleep(1);
+
+        // readers are spread evenly over the ids, leaves included
+        reader_nodes = new int[readers];
+        for (int r = 0; r < readers; r++)
+            reader_nodes[r] = nodes - 1 - (int) ((long) r * nodes / readers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        releaser.shutdownNow();
+        mutex.terminate();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long reads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reads = 0;
+        }
+    }
+
+    @Benchmark
+    public void round(Counters counters) {
+        CompletableFuture<?>[] released = new CompletableFuture<?>[readers];
+        for (int r = 0; r < readers; r++) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            mutex.acquire(reader_nodes[r], 0, shared).thenAccept(lease -> releaser.schedule(() -> {
+                lease.release();
+                done.complete(null);
+            }, holdMicros, TimeUnit.MICROSECONDS));
+            released[r] = done;
+        }
+        CompletableFuture.allOf(released).join();
+        counters.reads += readers;
+    }
+}
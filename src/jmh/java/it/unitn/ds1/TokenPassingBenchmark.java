@@ -0,0 +1,68 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Allocation profile of the request/privilege path.
+ * Each operation moves the token from one end of a chain to the other and back: the far end asks the CS,
+ * then node 0 asks it again, with a zero CS duration and logging off.
+ * Run it with the gc profiler to see the bytes allocated per operation:
+ * gradle jmh -Pjmh.args="TokenPassingBenchmark -prof gc"
+ * (what is left is the envelope akka allocates for every message it enqueues).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenPassingBenchmark {
+
+    @Param({"2", "8"})
+    public int nodes;
+
+    private DistributedMutEx mutex;
+    private AtomicLongArray grants;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        EventLog.disableAll();
+        grants = new AtomicLongArray(nodes);
+        NodeConfig config = new NodeConfig()
+                .csDuration(0, TimeUnit.SECONDS)
+                .csListener(new NodeConfig.CSListener() {
+                    @Override
+                    public void onEnterCS(int node) {
+                        grants.incrementAndGet(node);
+                    }
+
+                    @Override
+                    public void onExitCS(int node) {
+                    }
+                });
+        mutex = new DistributedMutEx(Topology.chain(nodes), config);
+        mutex.init();
+        TimeUnit.SECONDS.sleep(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mutex.terminate();
+    }
+
+    private void enter(int node) {
+        long before = grants.get(node);
+        mutex.request_cs(node);
+        while (grants.get(node) == before)
+            Thread.yield();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        enter(nodes - 1);
+        enter(0);
+    }
+}
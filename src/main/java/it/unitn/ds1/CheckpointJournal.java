@@ -0,0 +1,207 @@
+package it.unitn.ds1;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the lock states of one node, to restart from after a failure: node-<id>.journal in a directory.
+ * The node appends a batch with the state of the locks each message changed (holder, asked and the queued
+ * neighbours), written with a FileChannel once the message is handled: the journal survives the crash of the
+ * process (not of the host, it is not forced to disk). Loading keeps the last record of each lock. When the file
+ * outgrows the size limit the node rewrites it as a single batch with the state of all its locks.
+ * Used by the owner node only.
+ *
+ * Layout: batches of length, CRC32 (ints) and records of resource, token, holder slot + 1 (0 for the node itself),
+ * asked (0 or 1), queue length and queued slots, all unsigned varints. A torn batch at the end is ignored.
+ */
+class CheckpointJournal {
+    static final String SUFFIX = ".journal";
+    static final int SELF = -1; // holder slot of a lock held by the node itself
+    private static final int BATCH_HEADER_BYTES = 8;
+
+    private final Path file;
+    private ByteBuffer batch = ByteBuffer.allocate(256); // records of the current batch, after room for the header
+    private FileChannel channel;
+    private long size; // bytes in the file
+
+    /**
+     * @param dir: directory of the journal, created if missing
+     * @param name: name of the node, e.g. node-3
+     */
+    CheckpointJournal(final Path dir, final String name) {
+        this.file = dir.resolve(name + SUFFIX);
+        batch.position(BATCH_HEADER_BYTES);
+    }
+
+    // the state of a lock as of the last checkpoint
+    static final class LockRecord {
+        final long resource;
+        final int token;
+        final int holder; // slot of the holder, SELF for the node itself
+        final boolean asked;
+        final int[] queue; // queued slots, in order
+
+        LockRecord(final long resource, final int token, final int holder, final boolean asked, final int[] queue) {
+            this.resource = resource;
+            this.token = token;
+            this.holder = holder;
+            this.asked = asked;
+            this.queue = queue;
+        }
+    }
+
+    // the last record of each lock: tokens of the default lock by token, named locks by resource
+    static final class Checkpoint {
+        final Map<Integer, LockRecord> tokens = new HashMap<>();
+        final Map<Long, LockRecord> named_locks = new HashMap<>();
+    }
+
+    // adds the state of a lock to the current batch
+    void put(final long resource, final int token, final int holder, final boolean asked, final SlotQueue queue) {
+        ensure(10 + 5 + 5 + 1 + 5 + 5 * queue.size());
+        putVarLong(batch, resource);
+        putVarLong(batch, token);
+        putVarLong(batch, holder + 1L);
+        batch.put((byte) (asked ? 1 : 0));
+        putVarLong(batch, queue.size());
+        for (int i = 0; i < queue.size(); i++)
+            putVarLong(batch, queue.get(i));
+    }
+
+    // appends the current batch to the journal
+    void commit() throws IOException {
+        if (batch.position() == BATCH_HEADER_BYTES)
+            return;
+        if (channel == null) {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            size = channel.size();
+        }
+        size += write(channel);
+    }
+
+    // replaces the journal with the current batch, which must hold the state of every lock
+    void rewrite() throws IOException {
+        close();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    long size() {
+        return size;
+    }
+
+    // the last checkpoint, null if there is none
+    Checkpoint load() throws IOException {
+        close();
+        if (!Files.exists(file))
+            return null;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        Checkpoint checkpoint = new Checkpoint();
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= BATCH_HEADER_BYTES) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length < 0 || length > buf.remaining())
+                break;
+            ByteBuffer records = buf.slice();
+            records.limit(length);
+            crc.reset();
+            crc.update(records.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+            try {
+                while (records.hasRemaining()) {
+                    LockRecord r = getRecord(records);
+                    if (r.resource == 0)
+                        checkpoint.tokens.put(r.token, r);
+                    else
+                        checkpoint.named_locks.put(r.resource, r);
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                break;
+            }
+            buf.position(buf.position() + length);
+        }
+        return checkpoint.tokens.isEmpty() ? null : checkpoint;
+    }
+
+    void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+
+    // writes the current batch with its header, then starts a new one
+    private int write(final FileChannel out) throws IOException {
+        int length = batch.position() - BATCH_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        ByteBuffer records = batch.duplicate();
+        records.position(BATCH_HEADER_BYTES).limit(batch.position());
+        crc.update(records);
+        batch.putInt(0, length).putInt(4, (int) crc.getValue());
+        batch.flip();
+        int written = 0;
+        while (batch.hasRemaining())
+            written += out.write(batch);
+        batch.clear();
+        batch.position(BATCH_HEADER_BYTES);
+        return written;
+    }
+
+    private void ensure(final int bytes) {
+        if (batch.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * batch.capacity(), batch.position() + bytes));
+            batch.flip();
+            larger.put(batch);
+            batch = larger;
+        }
+    }
+
+    private static LockRecord getRecord(final ByteBuffer buf) {
+        long resource = getVarLong(buf);
+        int token = (int) getVarLong(buf);
+        int holder = (int) getVarLong(buf) - 1;
+        boolean asked = buf.get() != 0;
+        long length = getVarLong(buf);
+        if (length > buf.remaining())
+            throw new IllegalArgumentException("truncated queue");
+        int[] queue = new int[(int) length];
+        for (int i = 0; i < queue.length; i++)
+            queue[i] = (int) getVarLong(buf);
+        return new LockRecord(resource, token, holder, asked, queue);
+    }
+
+    private static void putVarLong(final ByteBuffer buf, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    private static long getVarLong(final ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
@@ -0,0 +1,167 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * java.util.concurrent.locks.Lock facade of one lock of the tree, for the threads of the JVM hosting a node.
+ * Every lock() is a local request of the node: the waiting threads are queued by the node itself (through its
+ * lock-free mailbox), behind the single entry of the node in the request queues of the tree, and with
+ * NodeConfig.localBatch(n) up to n of them are served in a row each time the token reaches the node.
+ * The lock is exclusive and not reentrant, and it is owned by the thread that locked it: DistributedMutEx.getLock
+ * returns one instance per node and lock, so that the owner is known to all its callers.
+ * Conditions are not supported.
+ */
+public final class DistributedLock implements Lock {
+    private final DistributedMutEx mutex;
+    private final int node;
+    private final long resource;
+    // the lease held by each thread that locked through this instance
+    private final ConcurrentHashMap<Thread, Lease> leases = new ConcurrentHashMap<>();
+
+    DistributedLock(final DistributedMutEx mutex, final int node, final long resource) {
+        this.mutex = mutex;
+        this.node = node;
+        this.resource = resource;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public long getResource() {
+        return resource;
+    }
+
+    /**
+     * waits for the CS, uninterruptibly
+     * @throws IllegalStateException if the node fails meanwhile, or if the calling thread holds the lock already
+     */
+    @Override
+    public void lock() {
+        CompletableFuture<Lease> future = request();
+        try {
+            hold(future.join());
+        } catch (CompletionException e) {
+            throw failure(e.getCause());
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        CompletableFuture<Lease> future = request();
+        try {
+            hold(future.get());
+        } catch (InterruptedException e) {
+            giveUp(future);
+            throw e;
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        }
+    }
+
+    /**
+     * enters the CS only if the token of the lock is at the node and free: the node answers at once,
+     * without asking its neighbours
+     * @throws IllegalStateException if the node is failed, or if the calling thread holds the lock already
+     */
+    @Override
+    public boolean tryLock() {
+        checkNotHeld();
+        try {
+            hold(mutex.tryAcquire(node, resource, 0, TimeUnit.NANOSECONDS).toCompletableFuture().join());
+            return true;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                return false;
+            throw failure(e.getCause());
+        }
+    }
+
+    /**
+     * waits for the CS up to the given time, the request is withdrawn from the queues of the tree if it is not
+     * granted by then
+     */
+    @Override
+    public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Lease> future = request();
+        try {
+            hold(future.get(time, unit));
+            return true;
+        } catch (TimeoutException e) {
+            return abandon(future);
+        } catch (InterruptedException e) {
+            giveUp(future);
+            throw e;
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        }
+    }
+
+    /**
+     * leaves the CS
+     * @throws IllegalMonitorStateException if the calling thread does not hold the lock
+     */
+    @Override
+    public void unlock() {
+        Lease lease = leases.remove(Thread.currentThread());
+        if (lease == null)
+            throw new IllegalMonitorStateException("lock of node " + node + " not held by " + Thread.currentThread());
+        lease.release();
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("conditions are not supported by a distributed lock");
+    }
+
+    // true if the calling thread holds the lock
+    public boolean isHeldByCurrentThread() {
+        return leases.containsKey(Thread.currentThread());
+    }
+
+    private CompletableFuture<Lease> request() {
+        checkNotHeld();
+        return mutex.acquire(node, resource).toCompletableFuture();
+    }
+
+    private void checkNotHeld() {
+        if (leases.containsKey(Thread.currentThread()))
+            throw new IllegalStateException("lock of node " + node + " is not reentrant");
+    }
+
+    private void hold(final Lease lease) {
+        leases.put(Thread.currentThread(), lease);
+    }
+
+    // withdraws a request: a lease granted meanwhile is held, and returns true, only if the request was granted
+    // before the cancellation, otherwise the node leaves the CS as soon as it enters it
+    private boolean abandon(final CompletableFuture<Lease> future) {
+        if (future.cancel(false))
+            return false;
+        try {
+            hold(future.join());
+            return true;
+        } catch (CompletionException | CancellationException e) {
+            return false;
+        }
+    }
+
+    // withdraws the request of an interrupted thread: the caller gets no lock to unlock, so a lease granted
+    // meanwhile is released at once
+    private void giveUp(final CompletableFuture<Lease> future) {
+        if (abandon(future))
+            unlock();
+    }
+
+    private static RuntimeException failure(final Throwable cause) {
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+    }
+}
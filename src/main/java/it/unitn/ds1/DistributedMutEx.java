@@ -2,96 +2,425 @@ package it.unitn.ds1;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.pattern.PatternsCS;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import it.unitn.ds1.Node.SystemInitMsg;
 import it.unitn.ds1.Node.SystemNodeNeighbourhoodMsg;
 import it.unitn.ds1.Node.SystemWantCSMsg;
 import it.unitn.ds1.Node.SystemPrintHistoryMsg;
 import it.unitn.ds1.Node.SystemFailMsg;
+import it.unitn.ds1.Node.SystemAcquireMsg;
+import it.unitn.ds1.Node.SystemCancelMsg;
+import it.unitn.ds1.Node.SystemMetricsMsg;
+import it.unitn.ds1.Node.SystemFlushHistoryMsg;
 
 
 public class DistributedMutEx {
-    public static int getnActors() {
-        return N_ACTORS;
+    public int getnActors() {
+        return topology.size();
+    }
+
+    final private static int N_ACTORS = 10; // default number of actors
+    final private static SystemWantCSMsg WANT_CS = new SystemWantCSMsg(); // carries no state, can be shared
+    final private static SystemMetricsMsg METRICS = new SystemMetricsMsg();
+    final private static long ASK_TIMEOUT_MS = 5000; // init waits a tenth of a ms more for each node
+    final private static int MIN_GROUP_SIZE = 100; // nodes created by a NodeGroup
+    final private static AtomicInteger INSTANCES = new AtomicInteger(); // to give each instance its own JMX name
+
+    final private ActorSystem system;
+    final private LoggingAdapter logger;
+    final private Topology topology;
+    final private NodeConfig config;
+    final private NodeMetrics[] node_metrics;
+    // the Lock facade of each node and lock: the owners are tracked per instance, so there is one per pair
+    final private ConcurrentHashMap<Integer, ConcurrentHashMap<Long, DistributedLock>> locks = new ConcurrentHashMap<>();
+    private ObjectName mbean_name;
+    List<ActorRef> nodes;
+
+    /**
+     * the original configuration: N_ACTORS nodes in a binary tree
+     */
+    public DistributedMutEx() {
+        this(Topology.kary(N_ACTORS, 2));
+    }
+
+    /**
+     * @param topology: logical tree connecting the nodes
+     */
+    public DistributedMutEx(Topology topology) {
+        this(topology, new NodeConfig());
+    }
+
+    /**
+     * @param topology: logical tree connecting the nodes
+     * @param config: durations and listener shared by all nodes
+     */
+    public DistributedMutEx(Topology topology, NodeConfig config) {
+        this(ActorSystem.create(RemoteDeployment.SYSTEM_NAME), topology, config, new ArrayList<>(topology.size()));
+    }
+
+    /**
+     * drives nodes that have already been created, possibly in other JVMs (see RemoteDeployment):
+     * init only tells them their neighbourhood and gives the token to the root.
+     * Clients of remote nodes can use request_cs and node_failure, not acquire.
+     * @param system: actor system of the caller
+     * @param topology: logical tree connecting the nodes
+     * @param config: settings of the nodes
+     * @param nodes: nodes.get(i) is the node with id i
+     */
+    public DistributedMutEx(ActorSystem system, Topology topology, NodeConfig config, List<ActorRef> nodes) {
+        this.system = system;
+        this.logger = Logging.getLogger(system, this);
+        this.topology = topology;
+        this.config = config;
+        this.nodes = nodes;
+        this.node_metrics = new NodeMetrics[topology.size()];
     }
 
-    final private static int N_ACTORS = 10; // number of actors
+    public Topology getTopology() {
+        return topology;
+    }
 
-    final private ActorSystem system = ActorSystem.create("distributed_mutual_exclusion");
-    List<ActorRef> nodes = new ArrayList<>();
+    /**
+     * @return number of messages exchanged between nodes so far
+     */
+    public long getMessageCount() {
+        return config.messageCount();
+    }
 
     /**
-     * actor system initialization: create N_ACTORS and "locates" them in a binary three logical network
+     * @param type: type of message
+     * @return number of messages of the given type exchanged between nodes so far
      */
-    public void init() {
+    public long getMessageCount(MessageType type) {
+        return config.messageCount(type);
+    }
 
-        for (int i = 0; i < N_ACTORS; i++) {
-            this.nodes.add(system.actorOf(Node.props(i), "Node_" + i));
+    /**
+     * asks a node for a consistent snapshot of its metrics
+     * @param node: node index
+     */
+    public CompletionStage<NodeMetrics.Snapshot> metrics(int node) {
+        return PatternsCS.ask(nodes.get(node), METRICS, ASK_TIMEOUT_MS)
+                .thenApply(reply -> (NodeMetrics.Snapshot) reply);
+    }
+
+    /**
+     * @return the sum of the metrics snapshots of all the nodes
+     */
+    public CompletionStage<NodeMetrics.Snapshot> metrics() {
+        CompletionStage<NodeMetrics.Snapshot> total = metrics(0);
+        for (int i = 1; i < nodes.size(); i++)
+            total = total.thenCombine(metrics(i), NodeMetrics.Snapshot::merge);
+        return total;
+    }
 
+    // how long the phases of init took
+    public static final class Startup {
+        public final int nodes;            // nodes that acknowledged their initialization
+        public final long created_nanos;   // creating the actors of the nodes
+        public final long wired_nanos;     // telling each node its neighbourhood
+        public final long initialized_nanos; // from the init of the root to its last acknowledgement
+
+        Startup(final int nodes, final long created_nanos, final long wired_nanos, final long initialized_nanos) {
+            this.nodes = nodes;
+            this.created_nanos = created_nanos;
+            this.wired_nanos = wired_nanos;
+            this.initialized_nanos = initialized_nanos;
         }
-        this.nodes = Collections.unmodifiableList(this.nodes);
 
-        for (int i = 0; i < N_ACTORS; i++) {
-            List<Integer> ids = new ArrayList<>();
+        @Override
+        public String toString() {
+            return String.format("%d nodes: created in %.3f s, wired in %.3f s, initialized in %.3f s", nodes,
+                    created_nanos / 1e9, wired_nanos / 1e9, initialized_nanos / 1e9);
+        }
+    }
 
-            // parent
-            if (i != 0) {
-                int p = (i - 1) / 2;
-                ids.add(p);
-            }
-            // children
-            // left child
-            int lc = i * 2 + 1;
-            if (lc < N_ACTORS) {
-                ids.add(lc);
-                // right child
-                int rc = lc + 1;
-                if (rc < N_ACTORS) {
-                    ids.add(rc);
-                }
-            }
+    /**
+     * actor system initialization: create the nodes and "locates" them in the logical tree of the topology
+     * @return completed once every node is initialized, i.e. knows where the token is, with the startup times
+     */
+    public CompletionStage<Startup> init() {
+        return init(1);
+    }
 
-            List<ActorRef> neighs = new ArrayList<>();
-            List<Integer> neigh_ids = new ArrayList<>();
+    /**
+     * same as init(), with k tokens of the default lock (k-mutual exclusion): up to k nodes are in its CS
+     * at the same time, the named locks keep a single token
+     */
+    public CompletionStage<Startup> init(int k) {
+        final int n = topology.size();
+        long start = System.nanoTime();
 
-            for (Integer id : ids) {
-                neighs.add(this.nodes.get(id));
-                neigh_ids.add(id);
+        // the nodes are ours only if they have not been given to the constructor: then groups of about sqrt(n)
+        // nodes create and wire them, in parallel
+        boolean local = this.nodes.isEmpty();
+        long timeout = ASK_TIMEOUT_MS + n / 10;
+        List<ActorRef> groups = new ArrayList<>();
+        int group_size = Math.max(MIN_GROUP_SIZE, (int) Math.sqrt(n));
+        if (local) {
+            List<CompletableFuture<Object>> created = new ArrayList<>();
+            for (int from = 0; from < n; from += group_size) {
+                int to = Math.min(n, from + group_size);
+                for (int i = from; i < to; i++)
+                    node_metrics[i] = new NodeMetrics();
+                ActorRef group = system.actorOf(NodeGroup.props(), "Group_" + groups.size());
+                groups.add(group);
+                created.add(PatternsCS.ask(group, new NodeGroup.CreateMsg(from, to, config, node_metrics), timeout)
+                        .toCompletableFuture());
             }
+            for (CompletableFuture<Object> refs : created)
+                this.nodes.addAll(Arrays.asList((ActorRef[]) refs.join()));
+        }
+        this.nodes = Collections.unmodifiableList(this.nodes);
+        long created = System.nanoTime();
 
-            neighs = Collections.unmodifiableList(neighs);
-            neigh_ids = Collections.unmodifiableList(neigh_ids);
-            SystemNodeNeighbourhoodMsg neigh_msg = new SystemNodeNeighbourhoodMsg(neighs, neigh_ids);
+        if (local) {
+            NodeGroup.WireMsg wire = new NodeGroup.WireMsg(topology, this.nodes.toArray(new ActorRef[0]));
+            CompletableFuture.allOf(groups.stream()
+                    .map(group -> PatternsCS.ask(group, wire, timeout).toCompletableFuture())
+                    .toArray(CompletableFuture[]::new)).join();
+        } else {
+            for (int i = 0; i < n; i++) {
+                int[] neigh_ids = topology.neighbours(i);
+                ActorRef[] neighs = new ActorRef[neigh_ids.length];
+                for (int j = 0; j < neigh_ids.length; j++) {
+                    neighs[j] = this.nodes.get(neigh_ids[j]);
+                }
 
-            this.nodes.get(i).tell(neigh_msg, null);
+                this.nodes.get(i).tell(new SystemNodeNeighbourhoodMsg(neighs, neigh_ids, topology.reverseSlots(i)), null);
+            }
         }
+        long wired = System.nanoTime();
 
+        // the root answers with the number of nodes once their acknowledgements converged to it
+        CompletionStage<Startup> startup = PatternsCS.ask(this.nodes.get(topology.root()), new SystemInitMsg(k),
+                timeout).thenApply(nodes -> new Startup((Integer) nodes, created - start,
+                wired - created, System.nanoTime() - wired));
 
-        SystemInitMsg init = new SystemInitMsg();
-        this.nodes.get(0).tell(init, null);
-
+        // remote nodes are monitored through metrics(), in their own JVM
+        if (local)
+            registerMBean();
+        return startup;
     }
 
     /**
      * actor system termination
      */
     public void terminate() {
+        unregisterMBean();
         system.terminate();
     }
 
+    // exposes the metrics of the nodes through JMX, a failure only costs the monitoring
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("it.unitn.ds1:type=DistributedMutEx,name=" + INSTANCES.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new DistributedMutExMetrics(topology, node_metrics), name);
+            mbean_name = name;
+        } catch (JMException e) {
+            logger.error(e, "cannot register the metrics MBean");
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbean_name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean_name);
+        } catch (JMException e) {
+            logger.error(e, "cannot unregister the metrics MBean");
+        }
+        mbean_name = null;
+    }
+
     /**
      * simulates request of a node to enter the critical section
      * @param node: node index
      */
     public void request_cs(int node) {
-        SystemWantCSMsg wantCS = new SystemWantCSMsg();
-        this.nodes.get(node).tell(wantCS, null);
+        this.nodes.get(node).tell(WANT_CS, null);
+    }
+
+    /**
+     * simulates request of a node to enter the critical section of a named lock
+     * @param node: node index
+     * @param resource: id of the lock, see resource(String)
+     */
+    public void request_cs(int node, long resource) {
+        request_cs(node, resource, false);
+    }
+
+    /**
+     * as request_cs(node, resource), in shared mode if shared is true
+     */
+    public void request_cs(int node, long resource, boolean shared) {
+        request_cs(node, resource, shared, 0);
     }
 
+    /**
+     * as request_cs(node, resource, shared), with a priority: see acquire(node, resource, shared, priority)
+     */
+    public void request_cs(int node, long resource, boolean shared, int priority) {
+        checkPriority(priority);
+        this.nodes.get(node).tell(new SystemWantCSMsg(resource, shared, priority), null);
+    }
+
+    /**
+     * id of the named lock of a name. Each named lock has its own token, held by the root of the tree when the lock
+     * is not used: the nodes only keep a state for the locks they are involved in.
+     * Two names with the same 64 bit hash share their lock, which is still safe but serializes them.
+     * @param name: name of the lock
+     * @return id of the lock, never 0 (the default lock)
+     */
+    public static long resource(String name) {
+        // 64 bit FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+
+    /**
+     * asks a node to enter the critical section on behalf of the caller.
+     * The returned stage completes (on the node thread, callbacks must not block) when the node entered the CS,
+     * the CS is left only when the lease is released. It completes exceptionally if the node fails meanwhile.
+     * @param node: node index
+     */
+    public CompletionStage<Lease> acquire(int node) {
+        return acquire(node, 0);
+    }
+
+    /**
+     * as acquire(node), for a named lock: the CS of different locks can be held at the same time
+     * @param node: node index
+     * @param resource: id of the lock, see resource(String)
+     */
+    public CompletionStage<Lease> acquire(int node, long resource) {
+        return acquire(node, resource, false);
+    }
+
+    public CompletionStage<Lease> acquire(int node, String name) {
+        return acquire(node, resource(name));
+    }
+
+    /**
+     * as acquire(node, resource), in shared (read) mode if shared is true: shared leases of a lock are held at
+     * the same time, an exclusive one is held alone. Requests are served in order, a shared request made after
+     * an exclusive one waits for it, so writers are not starved by a stream of readers.
+     * @param node: node index
+     * @param resource: id of the lock, 0 for the default one
+     * @param shared: shared (read) or exclusive (write) mode
+     */
+    public CompletionStage<Lease> acquire(int node, long resource, boolean shared) {
+        return acquire(node, resource, shared, 0);
+    }
+
+    /**
+     * as acquire(node, resource, shared), with a priority class: 0 for the normal requests, a higher one is served
+     * first by every node on the way to the token. The priority of a request grows by one for each aging period
+     * (NodeConfig.aging) it waits at a node, so normal requests are delayed but never starved by urgent ones.
+     * @param priority: priority class, 0 or more
+     */
+    public CompletionStage<Lease> acquire(int node, long resource, boolean shared, int priority) {
+        return submit(node, new SystemAcquireMsg(resource, shared, priority, new CompletableFuture<>()));
+    }
+
+    /**
+     * as acquire(node), giving up after a timeout: if the CS is not entered by then the future fails with a
+     * TimeoutException and the request is withdrawn from the queues on the way to the token. With a zero timeout
+     * the CS is entered only if the token of the lock is at the node and free, without any message.
+     * @param node: node index
+     * @param timeout: how long to wait for the CS, on the clock of the node
+     */
+    public CompletionStage<Lease> tryAcquire(int node, long timeout, TimeUnit unit) {
+        return tryAcquire(node, 0, false, 0, timeout, unit);
+    }
+
+    public CompletionStage<Lease> tryAcquire(int node, long resource, long timeout, TimeUnit unit) {
+        return tryAcquire(node, resource, false, 0, timeout, unit);
+    }
+
+    public CompletionStage<Lease> tryAcquire(int node, long resource, boolean shared, int priority, long timeout,
+                                             TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("negative timeout: " + timeout);
+        return submit(node, new SystemAcquireMsg(resource, shared, priority, unit.toNanos(timeout),
+                new CompletableFuture<>()));
+    }
+
+    /**
+     * withdraws a request made by acquire or tryAcquire, the same as cancelling its future: the request leaves the
+     * queues on the way to the token, and a token already on its way is passed on by the node at once
+     * @return false if the CS was entered already (the lease must then be released), or the request failed
+     */
+    public boolean cancel(CompletionStage<Lease> request) {
+        return request.toCompletableFuture().cancel(false);
+    }
+
+    // sends a request to its node, which is told if the client cancels it before the CS is entered
+    private CompletionStage<Lease> submit(int node, SystemAcquireMsg msg) {
+        checkPriority(msg.priority);
+        ActorRef ref = this.nodes.get(node);
+        ref.tell(msg, null);
+        msg.future.whenComplete((lease, e) -> {
+            if (msg.future.isCancelled())
+                ref.tell(new SystemCancelMsg(msg.resource, msg.future), null);
+        });
+        return msg.future;
+    }
+
+    private static void checkPriority(int priority) {
+        if (priority < 0)
+            throw new IllegalArgumentException("negative priority: " + priority);
+    }
+
+    // shared lease of the default lock
+    public CompletionStage<Lease> acquireShared(int node) {
+        return acquire(node, 0, true);
+    }
+
+    /**
+     * java.util.concurrent.locks.Lock facade of the default lock at a node, for the local threads:
+     * see NodeConfig.localBatch to serve several of them each time the token comes.
+     * Every call for the same node and lock returns the same instance
+     * @param node: node index
+     */
+    public DistributedLock getLock(int node) {
+        return getLock(node, 0);
+    }
+
+    public DistributedLock getLock(int node, long resource) {
+        if (node < 0 || node >= nodes.size())
+            throw new IllegalArgumentException("no node " + node);
+        return locks.computeIfAbsent(node, n -> new ConcurrentHashMap<>())
+                .computeIfAbsent(resource, r -> new DistributedLock(this, node, r));
+    }
+
+    public DistributedLock getLock(int node, String name) {
+        return getLock(node, resource(name));
+    }
 
     /**
      * simulates node failure
@@ -103,26 +432,53 @@ public class DistributedMutEx {
     }
 
     /**
-     * print history of selected node only in history out file
+     * print history of selected node only in history out file, returns once it is written
      * @param node: node index
      * @param filename: out file name
      */
     public void printHist(int node, String filename) {
+        if (config.history_dir != null) {
+            mergeHistory(node, filename);
+            return;
+        }
         SystemPrintHistoryMsg pHist = new SystemPrintHistoryMsg(filename);
-        this.nodes.get(node).tell(pHist, null);
+        PatternsCS.ask(this.nodes.get(node), pHist, ASK_TIMEOUT_MS).toCompletableFuture().join();
     }
 
     /**
-     * prints history of all nodes
+     * prints history of all nodes, returns once all of them are written
      * @param filename: out file name
      */
     public void printAllHist(String filename){
+        if (config.history_dir != null) {
+            mergeHistory(-1, filename);
+            return;
+        }
         SystemPrintHistoryMsg msg = new SystemPrintHistoryMsg(filename);
-                    for (ActorRef peer : nodes) {
-                        peer.tell(msg, null);
-                    }
+        List<CompletableFuture<Object>> printed = new ArrayList<>();
+        for (ActorRef peer : nodes) {
+            printed.add(PatternsCS.ask(peer, msg, ASK_TIMEOUT_MS).toCompletableFuture());
+        }
+        CompletableFuture.allOf(printed.toArray(new CompletableFuture<?>[0])).join();
     }
 
+    /**
+     * with persisted histories: makes the nodes flush their records, then appends the merged timeline to the file
+     * @param node: node index, all nodes if negative
+     * @param filename: out file name
+     */
+    private void mergeHistory(int node, String filename) {
+        SystemFlushHistoryMsg flush = new SystemFlushHistoryMsg();
+        List<CompletableFuture<Object>> flushed = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (node < 0 || node == i)
+                flushed.add(PatternsCS.ask(nodes.get(i), flush, ASK_TIMEOUT_MS).toCompletableFuture());
+        }
+        try (FileWriter fileWriter = new FileWriter(filename, true)) {
+            CompletableFuture.allOf(flushed.toArray(new CompletableFuture<?>[0])).join();
+            HistoryMerge.merge(config.history_dir, fileWriter, node);
+        } catch (IOException e) {
+            logger.error(e, "cannot merge the histories into {}", filename);
+        }
+    }
 }
-
-
@@ -0,0 +1,58 @@
+package it.unitn.ds1;
+
+import java.util.Map;
+
+/**
+ * JMX view of the nodes of a DistributedMutEx instance, registered as it.unitn.ds1:type=DistributedMutEx,name=N.
+ * Values are read from the live node metrics and refreshed at most once a second. Times are in microseconds.
+ */
+public interface DistributedMutExMXBean {
+
+    String getTopology();
+
+    int getNodes();
+
+    // number of times a node entered the CS
+    long getGrants();
+
+    // node to node messages sent, by type
+    Map<String, Long> getMessagesSent();
+
+    long getMessagesSentTotal();
+
+    // requests currently queued, over all the nodes
+    int getQueuedRequests();
+
+    int getMaxQueueDepth();
+
+    // nodes that asked their holder for the privilege and are waiting for it
+    int getAskedNodes();
+
+    double getRequestToGrantMeanMicros();
+
+    long getRequestToGrantP50Micros();
+
+    long getRequestToGrantP99Micros();
+
+    long getRequestToGrantMaxMicros();
+
+    // the same for the requests made with a priority above 0
+    long getUrgentRequestToGrantP99Micros();
+
+    long getCSHoldP99Micros();
+
+    long getRecoveries();
+
+    long getRecoveryMaxMicros();
+
+    // neighbours currently suspected to have failed by the failure detector, summed over the nodes
+    long getSuspectedNeighbours();
+
+    long getSuspicions();
+
+    // leases revoked by their node when they expired (NodeConfig.leaseDuration)
+    long getRevokedLeases();
+
+    // the nodes receiving the most requests, i.e. the contention hot spots, as "node: requests received"
+    String[] getHottestNodes();
+}
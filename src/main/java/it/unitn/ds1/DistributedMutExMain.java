@@ -4,7 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 public class DistributedMutExMain {
 
@@ -20,14 +23,172 @@ public class DistributedMutExMain {
     }
 
     /**
-     * distributed mutual exclusion run with user interactive interface
+     * builds the topology from the command line arguments:
+     * --nodes=N (default 10) and --topology=chain|star|binary|kary:k|random:seed|caterpillar:spine (default binary),
+     * or --topology=graph:file, a weighted graph (see LatencyGraph) the nodes are taken from, with
+     * --tree=spanning|diameter|latency (default latency) and --token=center|frequent (default center)
      * @param args
      */
-    public static void main(String[] args) {
+    private static Topology parseTopology(String[] args) throws IOException {
+        String spec = option(args, "topology", "binary");
+        if (spec.startsWith("graph:")) {
+            LatencyGraph graph = LatencyGraph.load(Paths.get(spec.substring("graph:".length())));
+            LatencyGraph.Placement placement = LatencyGraph.Placement.valueOf(option(args, "token", "center").toUpperCase());
+            System.out.print(graph.report(placement));
+            return graph.tree(parseTree(option(args, "tree", "latency")), placement);
+        }
+        int n = Integer.parseInt(option(args, "nodes", "10"));
+        return Topology.parse(spec, n);
+    }
+
+    private static LatencyGraph.Tree parseTree(String tree) {
+        switch (tree) {
+            case "spanning":
+                return LatencyGraph.Tree.MINIMUM_SPANNING;
+            case "diameter":
+                return LatencyGraph.Tree.MINIMUM_DIAMETER;
+            case "latency":
+                return LatencyGraph.Tree.MINIMUM_LATENCY;
+            default:
+                throw new IllegalArgumentException("unknown tree: " + tree);
+        }
+    }
+
+    /**
+     * @return the value of the command line argument --name=value, or def if it is not given
+     */
+    private static String option(String[] args, String name, String def) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix))
+                return arg.substring(prefix.length());
+        }
+        return def;
+    }
+
+    /**
+     * node durations from the command line arguments: --cs-ms=N (default 10000), --failure-ms=N (default 5000),
+     * --aging-ms=N (default 1000), --local-batch=N (default 1), --lease-ms=N (default 0: leases do not expire),
+     * and the failure detector, off unless --heartbeat-ms=N is given, with --suspect-ms=N (default 4 heartbeats),
+     * --journal=<dir> for checkpoints, and
+     * --recovery-timeout-ms=N (default 1000) with --recovery-retries=N (default 3), and --network=<file> for
+     * emulated links between the nodes (see NetworkEmulator), with the jitter drawn from --seed=N (default 42)
+     */
+    private static NodeConfig parseConfig(String[] args) throws IOException {
+        NodeConfig config = new NodeConfig()
+                .csDuration(Long.parseLong(option(args, "cs-ms", "10000")), TimeUnit.MILLISECONDS)
+                .failureDuration(Long.parseLong(option(args, "failure-ms", "5000")), TimeUnit.MILLISECONDS)
+                .aging(Long.parseLong(option(args, "aging-ms", "1000")), TimeUnit.MILLISECONDS)
+                .localBatch(Integer.parseInt(option(args, "local-batch", "1")))
+                .leaseDuration(Long.parseLong(option(args, "lease-ms", "0")), TimeUnit.MILLISECONDS);
+        String heartbeat = option(args, "heartbeat-ms", null);
+        if (heartbeat != null) {
+            long interval = Long.parseLong(heartbeat);
+            config.heartbeat(interval, Long.parseLong(option(args, "suspect-ms", String.valueOf(4 * interval))),
+                    TimeUnit.MILLISECONDS);
+        }
+        config.recoveryTimeout(Long.parseLong(option(args, "recovery-timeout-ms", "1000")), TimeUnit.MILLISECONDS,
+                Integer.parseInt(option(args, "recovery-retries", "3")));
+        String journal = option(args, "journal", null);
+        if (journal != null)
+            config.journal(Paths.get(journal));
+        String network = option(args, "network", null);
+        if (network != null)
+            config.transport(new NetworkEmulator(Transport.AKKA, Long.parseLong(option(args, "seed", "42")))
+                    .load(Paths.get(network)));
+        return config;
+    }
+
+    /**
+     * runs an open loop workload instead of the interactive interface, options:
+     * --rate=R requests per second (default 10), --arrivals=poisson|fixed (default poisson),
+     * --select=uniform|zipf:s|hotspot:fraction:share (default uniform), --failure-rate=F failures per second (default 0),
+     * each of --failure-burst=N neighbouring nodes (default 1),
+     * --duration=S seconds (default 10), --ops=N requests (default unlimited), --drain=S seconds (default 5),
+     * --locks=N named locks the requests are spread over (default 0: the default lock only),
+     * --shared=F fraction of the requests made in shared mode (default 0),
+     * --urgent=F fraction of the requests made with priority --priority=P (default 0 and 1),
+     * --seed=N (default 42), --report=file (default: standard output only)
+     */
+    private static void runWorkload(DistributedMutEx mutEx_run, String[] args) throws Exception {
+        long seed = Long.parseLong(option(args, "seed", "42"));
+        Workload workload = new Workload(mutEx_run, seed)
+                .arrivals(Workload.Arrivals.valueOf(option(args, "arrivals", "poisson").toUpperCase()),
+                        Double.parseDouble(option(args, "rate", "10")))
+                .selection(Workload.Selection.parse(option(args, "select", "uniform"), mutEx_run.getnActors(), seed))
+                .failures(Double.parseDouble(option(args, "failure-rate", "0")))
+                .failureBurst(Integer.parseInt(option(args, "failure-burst", "1")))
+                .duration(Long.parseLong(option(args, "duration", "10")), TimeUnit.SECONDS)
+                .operations(Long.parseLong(option(args, "ops", String.valueOf(Long.MAX_VALUE))))
+                .locks(Integer.parseInt(option(args, "locks", "0")))
+                .shared(Double.parseDouble(option(args, "shared", "0")))
+                .urgent(Double.parseDouble(option(args, "urgent", "0")), Integer.parseInt(option(args, "priority", "1")));
+
+        Workload.Report report = workload.run(Long.parseLong(option(args, "drain", "5")), TimeUnit.SECONDS);
+        System.out.println(">>> Workload report <<<");
+        System.out.print(report);
+
+        String filename = option(args, "report", null);
+        if (filename != null) {
+            try (FileWriter fileWriter = new FileWriter(filename, false)) {
+                fileWriter.write(report.toString());
+            }
+        }
+    }
+
+    /**
+     * the nodes all live in this JVM, unless --members=M (default 1) spreads them over M JVMs on this host:
+     * each JVM is started with the same arguments and its own --member=k (0 to M-1), the ports go from --port=P
+     * (default 25520) to P+M-1. Member 0 drives the nodes, the others just host theirs until they are stopped.
+     * @return the instance to drive, null for a member that only hosts nodes
+     */
+    private static DistributedMutEx createMutEx(Topology topology, NodeConfig config, String[] args) throws Exception {
+        int members = Integer.parseInt(option(args, "members", "1"));
+        if (members == 1)
+            return new DistributedMutEx(topology, config);
+
+        int member = Integer.parseInt(option(args, "member", "0"));
+        RemoteDeployment deployment = new RemoteDeployment(topology, config, member, members,
+                option(args, "host", "127.0.0.1"), Integer.parseInt(option(args, "port", "25520")));
+        System.out.printf(">>> Member %d of %d, hosting %d nodes <<<%n", member, members, deployment.localNodes());
+        if (!deployment.isCoordinator()) {
+            deployment.getSystem().getWhenTerminated().toCompletableFuture().join();
+            return null;
+        }
+        return deployment.connect(60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * distributed mutual exclusion run with user interactive interface, or with a generated load if --workload is given,
+     * --tokens=k starts k tokens of the default lock, so that up to k nodes are in its CS at once (default 1)
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+
+        boolean workload = Arrays.asList(args).contains("--workload");
+        // the history of a generated load is far too long to be followed on the console
+        if (workload)
+            EventLog.setConsole(false);
 
         // initialization
-        DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        Topology topology = parseTopology(args);
+        System.out.println(">>> " + topology + " <<<");
+        DistributedMutEx mutEx_run = createMutEx(topology, parseConfig(args), args);
+        if (mutEx_run == null)
+            return;
+        // every node is initialized once the root heard from the whole tree
+        DistributedMutEx.Startup startup = mutEx_run.init(Integer.parseInt(option(args, "tokens", "1")))
+                .toCompletableFuture().join();
+        System.out.println(">>> " + startup + " <<<");
+
+        if (workload) {
+            try {
+                runWorkload(mutEx_run, args);
+            } finally {
+                mutEx_run.terminate();
+            }
+            return;
+        }
 
         // history file init/clean
         createFile("history.txt");
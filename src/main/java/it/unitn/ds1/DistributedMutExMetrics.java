@@ -0,0 +1,161 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DistributedMutExMXBean over the metrics of the nodes.
+ * The metrics are written by the node actors without synchronization, the values read here can be slightly stale.
+ */
+class DistributedMutExMetrics implements DistributedMutExMXBean {
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int HOTTEST = 5;
+
+    private final Topology topology;
+    private final NodeMetrics[] metrics;
+
+    private NodeMetrics.Snapshot[] nodes; // last per-node snapshots
+    private NodeMetrics.Snapshot total;   // and their sum
+    private long refreshed_at;
+
+    DistributedMutExMetrics(final Topology topology, final NodeMetrics[] metrics) {
+        this.topology = topology;
+        this.metrics = metrics;
+    }
+
+    // sum of the metrics of all the nodes, recomputed if older than REFRESH_NANOS
+    private synchronized NodeMetrics.Snapshot total() {
+        long now = System.nanoTime();
+        if (total == null || now - refreshed_at > REFRESH_NANOS) {
+            nodes = new NodeMetrics.Snapshot[metrics.length];
+            NodeMetrics.Snapshot sum = null;
+            for (int i = 0; i < metrics.length; i++) {
+                nodes[i] = metrics[i].snapshot(i);
+                sum = sum == null ? nodes[i] : sum.merge(nodes[i]);
+            }
+            total = sum;
+            refreshed_at = now;
+        }
+        return total;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public String getTopology() {
+        return topology.toString();
+    }
+
+    @Override
+    public int getNodes() {
+        return metrics.length;
+    }
+
+    @Override
+    public long getGrants() {
+        return total().grants;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        NodeMetrics.Snapshot t = total();
+        Map<String, Long> sent = new LinkedHashMap<>();
+        for (MessageType type : MessageType.values())
+            sent.put(type.name(), t.getSent(type));
+        return sent;
+    }
+
+    @Override
+    public long getMessagesSentTotal() {
+        NodeMetrics.Snapshot t = total();
+        long sum = 0;
+        for (MessageType type : MessageType.values())
+            sum += t.getSent(type);
+        return sum;
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        return total().queue_depth;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return total().max_queue_depth;
+    }
+
+    @Override
+    public int getAskedNodes() {
+        return total().asked;
+    }
+
+    @Override
+    public double getRequestToGrantMeanMicros() {
+        return total().request_to_grant.getMean() / 1e3;
+    }
+
+    @Override
+    public long getRequestToGrantP50Micros() {
+        return micros(total().request_to_grant.getPercentile(50));
+    }
+
+    @Override
+    public long getRequestToGrantP99Micros() {
+        return micros(total().request_to_grant.getPercentile(99));
+    }
+
+    @Override
+    public long getRequestToGrantMaxMicros() {
+        return micros(total().request_to_grant.getMax());
+    }
+
+    @Override
+    public long getUrgentRequestToGrantP99Micros() {
+        return micros(total().urgent_request_to_grant.getPercentile(99));
+    }
+
+    @Override
+    public long getCSHoldP99Micros() {
+        return micros(total().cs_hold.getPercentile(99));
+    }
+
+    @Override
+    public long getRecoveries() {
+        return total().recovery.getCount();
+    }
+
+    @Override
+    public long getRecoveryMaxMicros() {
+        return micros(total().recovery.getMax());
+    }
+
+    @Override
+    public long getSuspectedNeighbours() {
+        return total().suspected;
+    }
+
+    @Override
+    public long getSuspicions() {
+        return total().suspicions;
+    }
+
+    @Override
+    public long getRevokedLeases() {
+        return total().revoked;
+    }
+
+    @Override
+    public synchronized String[] getHottestNodes() {
+        total();
+        NodeMetrics.Snapshot[] sorted = nodes.clone();
+        Arrays.sort(sorted, (a, b) -> Long.compare(b.getReceived(MessageType.REQUEST), a.getReceived(MessageType.REQUEST)));
+        String[] hottest = new String[Math.min(HOTTEST, sorted.length)];
+        for (int i = 0; i < hottest.length; i++)
+            hottest[i] = sorted[i].node + ": " + sorted[i].getReceived(MessageType.REQUEST);
+        return hottest;
+    }
+}
@@ -4,10 +4,17 @@ import static org.junit.Assert.*;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class DistributedMutExTest {
@@ -24,6 +31,14 @@ public class DistributedMutExTest {
         }
     }
 
+    /**
+     * initializes the nodes and waits until the root heard from all of them
+     */
+    private void init(DistributedMutEx mutEx_run) {
+        DistributedMutEx.Startup startup = mutEx_run.init().toCompletableFuture().join();
+        assertEquals(mutEx_run.getnActors(), startup.nodes);
+    }
+
     private void createFile(String filename){
         //create history out file for debugging
         FileWriter fileWriter = null;
@@ -42,15 +57,12 @@ public class DistributedMutExTest {
     @org.junit.Test
     public void test0(){
         DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        init(mutEx_run);
 
         //initialize history file
         String outfile = "test0.txt";
         createFile(outfile);
 
-        //        wait 2 seconds to complete init
-        sleep(2);
-
         mutEx_run.printAllHist(outfile);
         boolean allReceivedInit = true;
         try {
@@ -82,16 +94,12 @@ public class DistributedMutExTest {
     public void test1() {
 
         DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        init(mutEx_run);
 
         //initialize history file
         String outfile = "test1.txt";
         createFile(outfile);
 
-//        wait 2 seconds to complete init
-
-        sleep(2);
-
         int[] nodes = {8};
         for (int i : nodes) {
             mutEx_run.request_cs(i);
@@ -133,16 +141,12 @@ public class DistributedMutExTest {
     public void test2() {
 
         DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        init(mutEx_run);
 
         //initialize history file
         String outfile = "test2.txt";
         createFile(outfile);
 
-//        wait 2 seconds to complete init
-
-        sleep(2);
-
         int[] nodes = {0, 3, 7, 8};
         for (int i : nodes) {
             mutEx_run.request_cs(i);
@@ -183,15 +187,12 @@ public class DistributedMutExTest {
     @org.junit.Test
     public void test3() {
         DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        init(mutEx_run);
 
         //initialize history file
         String outfile = "test3.txt";
         createFile(outfile);
 
-        //wait for init to complete
-        sleep(2);
-
         int[] nodes = {0, 3, 7, 8};
         for (int i : nodes) {
             mutEx_run.request_cs(i);
@@ -236,16 +237,12 @@ public class DistributedMutExTest {
     @org.junit.Test
     public void test4(){
         DistributedMutEx mutEx_run = new DistributedMutEx();
-        mutEx_run.init();
+        init(mutEx_run);
 
         //initialize history file
         String outfile = "test4.txt";
         createFile(outfile);
 
-//        wait 2 seconds to complete init
-
-        sleep(2);
-
         int[] nodes = {0, 1, 3, 4, 7, 8, 9};
         for (int i : nodes) {
             mutEx_run.request_cs(i);
@@ -290,4 +287,339 @@ public class DistributedMutExTest {
     }
 
 
-}
\ No newline at end of file
+    /**
+     * test5: a client acquires the CS through a lease and the next client gets it as soon as the lease is released
+     */
+    @org.junit.Test
+    public void test5() throws Exception {
+        DistributedMutEx mutEx_run = new DistributedMutEx();
+        init(mutEx_run);
+
+        Lease first = mutEx_run.acquire(8).toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(8, first.getNodeId());
+
+        CompletableFuture<Lease> second = mutEx_run.acquire(6).toCompletableFuture();
+        // the first lease has no timer, the second client must wait for its release
+        sleep(1);
+        assertFalse(second.isDone());
+
+        first.release();
+        Lease lease = second.get(5, TimeUnit.SECONDS);
+        assertEquals(6, lease.getNodeId());
+        lease.release();
+
+        mutEx_run.terminate();
+    }
+
+
+    /**
+     * test6: under heavy contention privileges are handed over together with the request for the rest of the queue,
+     * and every client still gets the CS
+     */
+    @org.junit.Test
+    public void test6() throws Exception {
+        DistributedMutEx mutEx_run = new DistributedMutEx();
+        init(mutEx_run);
+
+        int rounds = 50;
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int i = 0; i < mutEx_run.getnActors(); i++) {
+            clients.add(contend(mutEx_run, i, rounds));
+        }
+        CompletableFuture.allOf(clients.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        assertTrue(mutEx_run.getMessageCount(MessageType.PRIVILEGE_AND_REQUEST) > 0);
+        double per_cs = (double) (mutEx_run.getMessageCount() - mutEx_run.getMessageCount(MessageType.INITIALIZE)
+                - mutEx_run.getMessageCount(MessageType.INITIALIZED)) / (rounds * mutEx_run.getnActors());
+        // Raymond's algorithm needs about 4 messages per CS entry under heavy load
+        assertTrue("messages per CS entry: " + per_cs, per_cs < 4);
+
+        mutEx_run.terminate();
+    }
+
+    /**
+     * test7: an open loop workload issues its requests on schedule and all of them are served by the end of the drain
+     */
+    @org.junit.Test
+    public void test7() throws Exception {
+        DistributedMutEx mutEx_run = new DistributedMutEx(Topology.kary(10, 2),
+                new NodeConfig().csDuration(1, TimeUnit.MILLISECONDS));
+        init(mutEx_run);
+
+        Workload.Report report = new Workload(mutEx_run, 1)
+                .arrivals(Workload.Arrivals.FIXED, 20)
+                .selection(Workload.Selection.zipf(mutEx_run.getnActors(), 1.0, 1))
+                .operations(20)
+                .run(2, TimeUnit.SECONDS);
+
+        assertEquals(20, report.requests);
+        // requests to a node already waiting for the CS are merged with the pending one
+        assertTrue(report.grants > 0 && report.grants <= report.requests);
+        assertEquals(0, report.metrics.queue_depth);
+        assertEquals(report.grants, report.metrics.request_to_grant.getCount());
+        assertEquals(report.grants, report.metrics.cs_hold.getCount());
+        assertEquals(0, report.failures);
+        assertEquals(0, report.metrics.asked);
+        assertEquals(0, report.metrics.urgent_request_to_grant.getCount());
+        // a request and a privilege travel at most the diameter of the tree (6) for each CS entry
+        assertTrue(report.messages > 0 && report.messages <= 2 * 6 * report.grants);
+        assertTrue(report.throughput() > 0);
+
+        mutEx_run.terminate();
+    }
+
+    /**
+     * test8: with persisted histories the merged timeline has every message received after it was sent,
+     * also with more nodes than the merge opens at once
+     */
+    @org.junit.Test
+    public void test8() throws Exception {
+        Path dir = Files.createTempDirectory("history");
+        DistributedMutEx mutEx_run = new DistributedMutEx(Topology.kary(300, 3), new NodeConfig()
+                .csDuration(0, TimeUnit.SECONDS).history(dir).historySegmentSize(4096));
+        init(mutEx_run);
+
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int i = 0; i < mutEx_run.getnActors(); i += 37) {
+            clients.add(contend(mutEx_run, i, 5));
+        }
+        CompletableFuture.allOf(clients.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        String outfile = "test8.txt";
+        createFile(outfile);
+        mutEx_run.printAllHist(outfile);
+        mutEx_run.terminate();
+
+        // messages in flight on each link, by label
+        Map<String, Integer> in_flight = new HashMap<>();
+        Pattern sent = Pattern.compile("Node (\\d+) sent (\\w+) msg to node (\\d+)");
+        Pattern received = Pattern.compile("Node (\\d+) received (\\w+) msg from node (\\d+)");
+        long last = 0;
+        int lines = 0;
+        for (String line : Files.readAllLines(Paths.get(outfile))) {
+            long timestamp = Long.parseLong(line.trim().split(" ", 2)[0]);
+            assertTrue(timestamp >= last);
+            last = timestamp;
+            lines++;
+            Matcher m = sent.matcher(line);
+            if (m.find())
+                in_flight.merge(m.group(1) + m.group(2).toLowerCase() + m.group(3), 1, Integer::sum);
+            m = received.matcher(line);
+            if (m.find() && !m.group(1).equals(m.group(3)))
+                assertTrue(line, in_flight.merge(m.group(3) + m.group(2).toLowerCase() + m.group(1), -1, Integer::sum) >= 0);
+        }
+        assertTrue(lines > 0);
+        for (int count : in_flight.values())
+            assertEquals(0, count);
+
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir)) {
+            for (Path segment : segments)
+                Files.delete(segment);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * test9: nodes spread over two actor systems connected by akka remote pass the token to each other,
+     * their messages encoded by NodeMessageSerializer
+     */
+    @org.junit.Test
+    public void test9() throws Exception {
+        int[] grants = new int[6];
+        NodeConfig config = new NodeConfig().csDuration(0, TimeUnit.SECONDS).csListener(new NodeConfig.CSListener() {
+            @Override
+            public synchronized void onEnterCS(int node) {
+                grants[node]++;
+            }
+
+            @Override
+            public void onExitCS(int node) {
+            }
+        });
+        Topology chain = Topology.chain(grants.length);
+        RemoteDeployment member = new RemoteDeployment(chain, config, 1, 2, "127.0.0.1", 25720);
+        RemoteDeployment coordinator = new RemoteDeployment(chain, config, 0, 2, "127.0.0.1", 25720);
+        try {
+            DistributedMutEx mutEx_run = coordinator.connect(10, TimeUnit.SECONDS);
+            init(mutEx_run);
+
+            // the token goes from 0 to the far end of the chain and back, crossing the wire at each hop
+            mutEx_run.request_cs(grants.length - 1);
+            sleep(1);
+            mutEx_run.request_cs(0);
+            sleep(1);
+
+            synchronized (config.cs_listener) {
+                assertEquals(1, grants[grants.length - 1]);
+                assertEquals(1, grants[0]);
+            }
+            NodeMetrics.Snapshot metrics = mutEx_run.metrics(grants.length - 1).toCompletableFuture().get();
+            assertEquals(1, metrics.getReceived(MessageType.PRIVILEGE));
+        } finally {
+            coordinator.terminate();
+            member.terminate();
+        }
+    }
+
+    /**
+     * test10: threads of two nodes share the default lock through DistributedLock, with local batches:
+     * they are never in the CS together, and a timed tryLock gives up while the lock is held, withdrawing its request.
+     * Without waiting, tryLock only succeeds at the node the token is at
+     */
+    @org.junit.Test
+    public void test10() throws Exception {
+        DistributedMutEx mutEx_run = new DistributedMutEx(Topology.kary(10, 2),
+                new NodeConfig().csDuration(0, TimeUnit.SECONDS).localBatch(4));
+        init(mutEx_run);
+
+        int rounds = 50;
+        int[] counter = {0};
+        AtomicInteger inside = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int node : new int[]{7, 9}) {
+            DistributedLock lock = mutEx_run.getLock(node);
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            lock.lock();
+                            try {
+                                assertEquals(1, inside.incrementAndGet());
+                                counter[0]++;
+                                inside.decrementAndGet();
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        for (Thread thread : threads)
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+
+        assertEquals(Collections.emptyList(), errors);
+        // the threads joined: their increments are visible
+        assertEquals(rounds * threads.size(), counter[0]);
+
+        DistributedLock lock = mutEx_run.getLock(3);
+        lock.lock();
+        Thread other = new Thread(() -> {
+            try {
+                assertFalse(lock.tryLock());
+                assertFalse(lock.tryLock(200, TimeUnit.MILLISECONDS));
+                lock.unlock();
+                fail("unlocked by a thread not holding the lock");
+            } catch (IllegalMonitorStateException e) {
+                // expected
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(Collections.emptyList(), errors);
+        // one instance per node and lock: the owner is known to every caller of getLock
+        assertSame(lock, mutEx_run.getLock(3));
+        mutEx_run.getLock(3).unlock();
+        DistributedLock five = mutEx_run.getLock(5);
+        assertTrue(five.tryLock(5, TimeUnit.SECONDS));
+        five.unlock();
+        assertFalse(mutEx_run.getLock(3).tryLock());
+        assertTrue(five.tryLock());
+        five.unlock();
+
+        mutEx_run.terminate();
+    }
+
+    /**
+     * test11: init completes once every node of a large tree is initialized, each node but the root acknowledging
+     * its subtree to its parent: the first request is served without waiting any longer
+     */
+    @org.junit.Test
+    public void test11() throws Exception {
+        EventLog.setConsole(false);
+        DistributedMutEx mutEx_run = new DistributedMutEx(Topology.random(20_000, 11),
+                new NodeConfig().csDuration(0, TimeUnit.SECONDS));
+        try {
+            DistributedMutEx.Startup startup = mutEx_run.init().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            assertEquals(20_000, startup.nodes);
+            // every phase is timed, and the whole bootstrap of 20k nodes takes seconds
+            assertTrue(startup.toString(), startup.created_nanos > 0 && startup.wired_nanos > 0
+                    && startup.initialized_nanos > 0);
+            assertTrue(startup.toString(), startup.created_nanos + startup.wired_nanos + startup.initialized_nanos
+                    < TimeUnit.SECONDS.toNanos(20));
+            assertEquals(19_999, mutEx_run.getMessageCount(MessageType.INITIALIZE));
+            assertEquals(19_999, mutEx_run.getMessageCount(MessageType.INITIALIZED));
+            mutEx_run.acquire(19_999).toCompletableFuture().get(5, TimeUnit.SECONDS).release();
+        } finally {
+            EventLog.setConsole(true);
+            mutEx_run.terminate();
+        }
+    }
+
+    /**
+     * test12: a thread interrupted while it waits for a DistributedLock does not keep the lock, also when the grant
+     * arrives together with the interrupt: the lease is released and another node gets the lock
+     */
+    @org.junit.Test
+    public void test12() throws Exception {
+        // the grant reaches the waiting thread at the moment it is interrupted
+        DistributedMutEx mutEx_run = new DistributedMutEx(Topology.kary(10, 2),
+                new NodeConfig().csDuration(0, TimeUnit.SECONDS)) {
+            @Override
+            public CompletionStage<Lease> acquire(int node, long resource) {
+                CompletableFuture<Lease> granted = super.acquire(node, resource).toCompletableFuture();
+                return new CompletableFuture<Lease>() {
+                    @Override
+                    public Lease get() throws InterruptedException {
+                        complete(granted.join());
+                        throw new InterruptedException();
+                    }
+
+                    @Override
+                    public Lease get(long timeout, TimeUnit unit) throws InterruptedException {
+                        return get();
+                    }
+                };
+            }
+        };
+        init(mutEx_run);
+
+        DistributedLock lock = mutEx_run.getLock(9);
+        try {
+            lock.lockInterruptibly();
+            fail("not interrupted");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertFalse(lock.isHeldByCurrentThread());
+        try {
+            lock.tryLock(5, TimeUnit.SECONDS);
+            fail("not interrupted");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertFalse(lock.isHeldByCurrentThread());
+        // both leases were released
+        mutEx_run.acquire(3, 0, false).toCompletableFuture().get(5, TimeUnit.SECONDS).release();
+
+        mutEx_run.terminate();
+    }
+
+    // acquires and immediately releases the CS of a node the given number of times
+    private CompletableFuture<Void> contend(DistributedMutEx mutEx_run, int node, int rounds) {
+        if (rounds == 0)
+            return CompletableFuture.completedFuture(null);
+        return mutEx_run.acquire(node).thenCompose(lease -> {
+            lease.release();
+            return contend(mutEx_run, node, rounds - 1);
+        }).toCompletableFuture();
+    }
+
+}
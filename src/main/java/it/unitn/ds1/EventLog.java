@@ -0,0 +1,606 @@
+package it.unitn.ds1;
+
+import akka.event.LoggingAdapter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured per-node event log.
+ * Events are stored as fixed-size records (event, label, peer, aux) in a bounded ring buffer,
+ * text is produced only when the log is read: either by the shared background console writer
+ * or when the history of the node is printed.
+ * The ring is written only by the owning node (single producer), so recording an event does not lock nor allocate.
+ * Every event also gets a Lamport timestamp; when the node has a HistoryWriter, the events are persisted
+ * with their timestamps so that HistoryMerge can order the histories of all the nodes.
+ */
+class EventLog {
+
+    // categories of events, each one can be switched off independently
+    enum Category {
+        SETUP, RECEIVE, SEND, QUEUE, CS, RECOVERY;
+
+        final int bit = 1 << ordinal();
+    }
+
+    enum Event {
+        CREATED(Category.SETUP),
+        NEIGHBOURHOOD(Category.SETUP),
+        RECEIVED(Category.RECEIVE),
+        SENT(Category.SEND),
+        QUEUE_ADD(Category.QUEUE),      // peer = added node, aux = position in the queue
+        QUEUE_REMOVE(Category.QUEUE),   // peer = removed node, aux = position in the queue
+        QUEUE_CLEAR(Category.QUEUE),
+        ENTERED_CS(Category.CS),
+        EXITED_CS(Category.CS),
+        EXITED_RECOVERY(Category.RECOVERY),
+        SUSPECTED(Category.RECOVERY),   // peer = neighbour suspected to have failed
+        TRUSTED(Category.RECOVERY),     // peer = suspected neighbour heard from again
+        REVOKED(Category.CS);           // aux = SHARED for a shared CS
+
+        final Category category;
+
+        Event(Category category) {
+            this.category = category;
+        }
+    }
+
+    // message labels used by RECEIVED and SENT events, the text is the one of the original log format
+    enum Label {
+        NONE(""),
+        INITIALIZE("Initialize"),
+        REQUEST("Request"),
+        REQUEST_RECOVERY("Request in recovery mode"),
+        PRIVILEGE("Privilege"),
+        PRIVILEGE_RECOVERY("Privilege in recovery mode"),
+        PRIVILEGE_AND_REQUEST("PrivilegeAndRequest"),
+        PRIVILEGE_AND_REQUEST_RECOVERY("PrivilegeAndRequest in recovery mode"),
+        RESTART("Restart"),
+        RESTART_SENT("RESTART"),
+        ADVISE("Advise"),
+        EXIT_CS("ExitCS"),
+        START_RECOVERY("SelfStartRecoveryMsg"),
+        SYSTEM_INIT("SystemInitMessage"),
+        SYSTEM_WANT_CS("SystemWantCSMsg"),
+        SYSTEM_WANT_CS_RECOVERY("SystemWantCSMsg in recovery mode"),
+        SYSTEM_FAIL("SystemFailMsg"),
+        READ_GRANT("ReadGrant"),
+        READ_GRANT_RECOVERY("ReadGrant in recovery mode"),
+        READ_RELEASE("ReadRelease"),
+        INITIALIZED("Initialized"),
+        CANCEL("Cancel");
+
+        final String text;
+
+        Label(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    // aux of the messages about a named lock, and about the token j > 0 of the default lock (TOKEN + j)
+    static final int NAMED_LOCK = 1;
+    static final int TOKEN = 2;
+    static final int SHARED = 1; // aux of the CS events of a shared CS
+    private static final Label[] LABELS = Label.values();
+
+    // defaults for newly created logs, can be overridden with system properties or programmatically
+    private static volatile int default_mask = parseCategories(System.getProperty("mutex.log", "all"));
+    private static volatile boolean console = Boolean.parseBoolean(System.getProperty("mutex.log.console", "true"));
+    private static volatile int default_capacity = Integer.getInteger("mutex.log.capacity", 1 << 12);
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int node_id;
+    private final int mask; // enabled categories
+    private final boolean on_console; // registered with the console writer
+    private final int max_capacity; // power of two
+    private int[] neighbourhood; // ids printed by the NEIGHBOURHOOD event
+    private long clock; // Lamport clock of the node
+    private HistoryWriter history; // on-disk copy of the records, null if not persisted
+    private final LoggingAdapter logger; // reports the failures of the history, null if not persisted
+
+    // ring buffer, grown lazily (doubling) up to max_capacity, then the oldest records are overwritten
+    private volatile Slab slab;
+    private volatile long head; // sequence number of the next record to write
+
+    // queue content at the oldest retained record, kept up to date as records get overwritten
+    private final IntList evicted_queue = new IntList();
+
+    // state of the console writer, only touched by the writer thread
+    private long console_cursor;
+    private final IntList console_queue = new IntList();
+    private boolean console_queue_known = true; // false from a drop of records to the next clear of the queue
+
+    EventLog(final int node_id) {
+        this(node_id, null, null);
+    }
+
+    EventLog(final int node_id, final HistoryWriter history, final LoggingAdapter logger) {
+        this.node_id = node_id;
+        this.history = history;
+        this.logger = logger;
+        this.mask = default_mask;
+        this.max_capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, default_capacity));
+        this.slab = null;
+        this.head = 0;
+        this.on_console = console && mask != 0;
+        if (on_console)
+            Writer.INSTANCE.register(this);
+    }
+
+    // flushes the pending console output of this log and stops draining it
+    void close() {
+        if (on_console)
+            Writer.INSTANCE.unregister(this);
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                logger.error(e, "cannot close the history of node {}", node_id);
+            }
+            history = null;
+        }
+    }
+
+    // writes the pending records to disk
+    void flushHistory() {
+        if (history != null) {
+            try {
+                history.flush();
+            } catch (IOException e) {
+                persistenceFailed(e);
+            }
+        }
+    }
+
+    // the log keeps working in memory without its on-disk copy
+    private void persistenceFailed(IOException e) {
+        logger.error(e, "cannot write the history of node {}, it is kept in memory only", node_id);
+        try {
+            history.close();
+        } catch (IOException ignored) {
+        }
+        history = null;
+    }
+
+    /* -- Configuration ------------------------------------------------------- */
+
+    static void setEnabled(Category... categories) {
+        int m = 0;
+        for (Category c : categories)
+            m |= c.bit;
+        default_mask = m;
+    }
+
+    static void disableAll() {
+        default_mask = 0;
+    }
+
+    // the categories enabled for the logs created from now on, as a mask to give back to setMask
+    static int getMask() {
+        return default_mask;
+    }
+
+    static void setMask(int mask) {
+        default_mask = mask;
+    }
+
+    static void setConsole(boolean enabled) {
+        console = enabled;
+    }
+
+    static void setCapacity(int capacity) {
+        default_capacity = capacity;
+    }
+
+    private static int parseCategories(String spec) {
+        if (spec.equalsIgnoreCase("all"))
+            return (1 << Category.values().length) - 1;
+        int m = 0;
+        for (String s : spec.split(",")) {
+            s = s.trim();
+            if (!s.isEmpty() && !s.equalsIgnoreCase("none"))
+                m |= Category.valueOf(s.toUpperCase()).bit;
+        }
+        return m;
+    }
+
+    boolean isEnabled(Category category) {
+        return (mask & category.bit) != 0;
+    }
+
+    /* -- Lamport clock (owner node only) --------------------------------------- */
+
+    boolean isPersistent() {
+        return history != null;
+    }
+
+    // timestamp of the last recorded event, to be carried by the messages sent after it
+    long clock() {
+        return clock;
+    }
+
+    // a message with the given timestamp is being received: the receive event will follow it
+    void witness(final long timestamp) {
+        if (timestamp > clock)
+            clock = timestamp;
+    }
+
+    /* -- Recording (owner node only) ----------------------------------------- */
+
+    void record(final Event event, final Label label, final int peer, final int aux) {
+        clock++;
+        if ((mask & event.category.bit) == 0)
+            return;
+        if (history != null && event != Event.NEIGHBOURHOOD)
+            persist(peer, aux, event, label);
+
+        long seq = head;
+        Slab s = slab;
+        if (s == null || (seq >= s.capacity() && s.capacity() < max_capacity)) {
+            s = grow(s);
+        }
+        int idx = (int) (seq & (s.capacity() - 1));
+        if (seq >= s.capacity()) {
+            // about to overwrite the oldest record, remember its effect on the queue
+            applyQueueEvent(evicted_queue, s.event[idx], s.peer[idx], s.aux[idx]);
+        }
+        s.event[idx] = (byte) event.ordinal();
+        s.label[idx] = (byte) label.ordinal();
+        s.peer[idx] = peer;
+        s.aux[idx] = aux;
+        head = seq + 1; // publish
+    }
+
+    void record(final Event event, final int peer, final int aux) {
+        record(event, Label.NONE, peer, aux);
+    }
+
+    void received(final Label label, final int from_id) {
+        record(Event.RECEIVED, label, from_id, 0);
+    }
+
+    void sent(final Label label, final int to_id) {
+        record(Event.SENT, label, to_id, 0);
+    }
+
+    // messages about another lock than the first token of the default lock are marked by aux = lock,
+    // NAMED_LOCK or TOKEN + token
+    void received(final Label label, final int from_id, final int lock) {
+        record(Event.RECEIVED, label, from_id, lock);
+    }
+
+    void sent(final Label label, final int to_id, final int lock) {
+        record(Event.SENT, label, to_id, lock);
+    }
+
+    void neighbourhood(final int[] ids) {
+        this.neighbourhood = ids.clone();
+        record(Event.NEIGHBOURHOOD, Label.NONE, -1, 0);
+        if (history != null && isEnabled(Category.SETUP)) {
+            // records have no room for the ids: one record per neighbour, aux counts the ones still to come
+            if (ids.length == 0)
+                persist(-1, 0, Event.NEIGHBOURHOOD, Label.NONE);
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0)
+                    clock++;
+                persist(ids[i], ids.length - 1 - i, Event.NEIGHBOURHOOD, Label.NONE);
+            }
+        }
+    }
+
+    private void persist(final int peer, final int aux, final Event event, final Label label) {
+        try {
+            history.append(clock, node_id, peer, aux, (byte) event.ordinal(), (byte) label.ordinal());
+        } catch (IOException e) {
+            persistenceFailed(e);
+        }
+    }
+
+    private Slab grow(Slab old) {
+        int capacity = old == null ? Math.min(INITIAL_CAPACITY, max_capacity) : old.capacity() * 2;
+        Slab s = new Slab(capacity);
+        if (old != null) {
+            // no record has been overwritten yet, so sequence i is at index i in both slabs
+            int n = old.capacity();
+            System.arraycopy(old.event, 0, s.event, 0, n);
+            System.arraycopy(old.label, 0, s.label, 0, n);
+            System.arraycopy(old.peer, 0, s.peer, 0, n);
+            System.arraycopy(old.aux, 0, s.aux, 0, n);
+        }
+        slab = s;
+        return s;
+    }
+
+    /* -- Reading -------------------------------------------------------------- */
+
+    /**
+     * formats the retained records in the original text format.
+     * Must be called by the owner node (e.g. while handling SystemPrintHistoryMsg).
+     */
+    void formatHistory(final Appendable out) throws IOException {
+        Slab s = slab;
+        long h = head;
+        if (s == null)
+            return;
+        long from = Math.max(0, h - s.capacity());
+        IntList queue = evicted_queue.copy();
+        StringBuilder sb = new StringBuilder(128);
+        if (from > 0) {
+            sb.append("Node ").append(pad(node_id)).append(" discarded ").append(from).append(" older events\n");
+        }
+        for (long seq = from; seq < h; seq++) {
+            int idx = (int) (seq & (s.capacity() - 1));
+            format(sb, s, idx, queue);
+            out.append(sb);
+            sb.setLength(0);
+        }
+    }
+
+    String historyAsString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            formatHistory(sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    // formats one record, updating the replayed queue content
+    private void format(StringBuilder sb, Slab s, int idx, IntList queue) {
+        formatRecord(sb, node_id, neighbourhood, s.event[idx], s.label[idx], s.peer[idx], s.aux[idx], queue);
+    }
+
+    // formats one record of a node, also used by HistoryMerge for the persisted records. A null queue is an
+    // unknown content, after records were dropped
+    static void formatRecord(StringBuilder sb, int node_id, int[] neighbourhood, byte ev, byte label,
+                             int peer, int aux, IntList queue) {
+        if (queue != null)
+            applyQueueEvent(queue, ev, peer, aux);
+
+        switch (EVENTS[ev]) {
+            case CREATED:
+                sb.append("Node ").append(pad(node_id)).append(" created\n");
+                break;
+            case NEIGHBOURHOOD:
+                sb.append("Node ").append(pad(node_id)).append(" neighbourhood: ")
+                        .append(neighbourhood == null ? "[]" : Arrays.toString(neighbourhood)).append('\n');
+                break;
+            case RECEIVED:
+                sb.append("Node ").append(pad(node_id)).append(" received ").append(LABELS[label].text)
+                        .append(" msg from node ").append(pad(peer));
+                appendLock(sb, aux);
+                break;
+            case SENT:
+                sb.append("Node ").append(pad(node_id)).append(" sent ").append(LABELS[label].text)
+                        .append(" msg to node ").append(pad(peer));
+                appendLock(sb, aux);
+                break;
+            case QUEUE_ADD:
+                sb.append("Node ").append(pad(node_id)).append(" added node ").append(pad(peer)).append(" to its queue\n")
+                        .append("Queue content of node ").append(pad(node_id)).append(": ");
+                if (queue == null)
+                    sb.append("unknown, log events were dropped");
+                else
+                    queue.appendTo(sb);
+                sb.append('\n');
+                break;
+            case ENTERED_CS:
+                sb.append("Node ").append(pad(node_id)).append(aux == SHARED ? " entered CS in shared mode\n" : " entered CS\n");
+                break;
+            case EXITED_CS:
+                sb.append("Node ").append(pad(node_id)).append(aux == SHARED ? " exited CS in shared mode\n" : " exited CS\n");
+                break;
+            case EXITED_RECOVERY:
+                sb.append("Node ").append(pad(node_id)).append(" exited recovery mode\n");
+                break;
+            case REVOKED:
+                sb.append("Node ").append(pad(node_id)).append(aux == SHARED ? " revoked an expired shared lease\n"
+                        : " revoked an expired lease\n");
+                break;
+            case SUSPECTED:
+                sb.append("Node ").append(pad(node_id)).append(" suspects node ").append(pad(peer)).append(" failed\n");
+                break;
+            case TRUSTED:
+                sb.append("Node ").append(pad(node_id)).append(" heard from node ").append(pad(peer)).append(" again\n");
+                break;
+            default:
+                // QUEUE_REMOVE and QUEUE_CLEAR only affect the replayed queue content
+                break;
+        }
+    }
+
+    private static void appendLock(StringBuilder sb, int aux) {
+        if (aux == NAMED_LOCK)
+            sb.append(" (named lock)");
+        else if (aux >= TOKEN)
+            sb.append(" (token ").append(aux - TOKEN).append(')');
+        sb.append('\n');
+    }
+
+    private static void applyQueueEvent(IntList queue, byte ev, int peer, int aux) {
+        if (ev == Event.QUEUE_ADD.ordinal()) {
+            queue.insert(Math.min(aux, queue.size()), peer);
+        } else if (ev == Event.QUEUE_REMOVE.ordinal()) {
+            queue.removeAtOrValue(aux, peer);
+        } else if (ev == Event.QUEUE_CLEAR.ordinal()) {
+            queue.clear();
+        }
+    }
+
+    // same output as String.format("%02d", v)
+    private static String pad(int v) {
+        return (v >= 0 && v < 10) ? "0" + v : Integer.toString(v);
+    }
+
+    // drains new records to the console, called by the writer thread only
+    private void drainToConsole(StringBuilder sb) {
+        while (console_cursor != head) {
+            long h = head;
+            Slab s = slab; // read after head: it holds every record before h, even if it grew meanwhile
+            long oldest = h - s.capacity();
+            if (console_cursor < oldest) {
+                // the dropped records may have changed the queue: its content is not printed until it is cleared
+                sb.append("Node ").append(pad(node_id)).append(" dropped ").append(oldest - console_cursor)
+                        .append(" log events\n");
+                console_cursor = oldest;
+                console_queue.clear();
+                console_queue_known = false;
+            }
+            for (; console_cursor < h; console_cursor++) {
+                int idx = (int) (console_cursor & (s.capacity() - 1));
+                byte ev = s.event[idx];
+                byte label = s.label[idx];
+                int peer = s.peer[idx];
+                int aux = s.aux[idx];
+                // the producer may have lapped us while we were reading the slot: the record is not applied to the
+                // queue nor printed, the next pass counts it among the dropped ones. Only a full slab is overwritten,
+                // so the capacity of the current one tells
+                if (console_cursor < head - slab.capacity())
+                    break;
+                if (ev == Event.QUEUE_CLEAR.ordinal())
+                    console_queue_known = true;
+                formatRecord(sb, node_id, neighbourhood, ev, label, peer, aux,
+                        console_queue_known ? console_queue : null);
+            }
+        }
+    }
+
+    /* -- Utility classes ------------------------------------------------------ */
+
+    private static final class Slab {
+        final byte[] event;
+        final byte[] label;
+        final int[] peer;
+        final int[] aux;
+
+        Slab(int capacity) {
+            event = new byte[capacity];
+            label = new byte[capacity];
+            peer = new int[capacity];
+            aux = new int[capacity];
+        }
+
+        int capacity() {
+            return peer.length;
+        }
+    }
+
+    // minimal growable list of primitive ints, used to replay queue contents
+    static final class IntList {
+        private int[] data = new int[8];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void insert(int pos, int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            System.arraycopy(data, pos, data, pos + 1, size - pos);
+            data[pos] = v;
+            size++;
+        }
+
+        void removeAtOrValue(int pos, int v) {
+            if (pos < 0 || pos >= size || data[pos] != v) {
+                pos = -1;
+                for (int i = 0; i < size && pos < 0; i++)
+                    if (data[i] == v)
+                        pos = i;
+                if (pos < 0)
+                    return;
+            }
+            System.arraycopy(data, pos + 1, data, pos, size - pos - 1);
+            size--;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+
+        IntList copy() {
+            IntList l = new IntList();
+            l.data = Arrays.copyOf(data, Math.max(8, size));
+            l.size = size;
+            return l;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append('[');
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(data[i]);
+            }
+            sb.append(']');
+        }
+    }
+
+    /**
+     * single daemon thread shared by all nodes, periodically drains the logs to System.out
+     */
+    static final class Writer implements Runnable {
+        static final Writer INSTANCE = new Writer();
+
+        // every node registers and unregisters its log: a concurrent set keeps both O(1) with a million nodes
+        private final Set<EventLog> logs = ConcurrentHashMap.newKeySet();
+        private final StringBuilder buffer = new StringBuilder(1 << 16);
+        private final long period = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private Writer() {
+            Thread t = new Thread(this, "event-log-writer");
+            t.setDaemon(true);
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+        }
+
+        void register(EventLog log) {
+            logs.add(log);
+        }
+
+        synchronized void unregister(EventLog log) {
+            log.drainToConsole(buffer);
+            System.out.print(buffer);
+            buffer.setLength(0);
+            logs.remove(log);
+        }
+
+        synchronized void drain() {
+            for (EventLog log : logs) {
+                log.drainToConsole(buffer);
+                if (buffer.length() > (1 << 15)) {
+                    System.out.print(buffer);
+                    buffer.setLength(0);
+                }
+            }
+            if (buffer.length() > 0) {
+                System.out.print(buffer);
+                buffer.setLength(0);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                drain();
+                LockSupport.parkNanos(period);
+            }
+        }
+    }
+
+    // flushes all pending console output
+    static void flush() {
+        Writer.INSTANCE.drain();
+    }
+}
@@ -0,0 +1,35 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check of the fencing tokens, on the side of a resource protected by one lock: the work of a lease is admitted only
+ * if no lease with a higher fence was admitted before it. The late work of a client whose lease expired, and was
+ * revoked by its node (NodeConfig.leaseDuration), is rejected once the next holder of the lock reached the resource.
+ * Thread safe.
+ */
+public final class FenceGuard {
+    private final AtomicLong highest = new AtomicLong(0);
+
+    /**
+     * @return true if the work of the lease with this fence can go on, false if a later lease was admitted already
+     */
+    public boolean admit(final long fence) {
+        while (true) {
+            long current = highest.get();
+            if (fence < current)
+                return false;
+            if (fence == current || highest.compareAndSet(current, fence))
+                return true;
+        }
+    }
+
+    public boolean admit(final Lease lease) {
+        return admit(lease.getFence());
+    }
+
+    // the highest fence admitted so far, 0 if none
+    public long highest() {
+        return highest.get();
+    }
+}
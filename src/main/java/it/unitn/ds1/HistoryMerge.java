@@ -0,0 +1,255 @@
+package it.unitn.ds1;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Streaming merge of the history segments written by the nodes into one timeline, ordered by
+ * (Lamport timestamp, node id): an order consistent with causality (a send always comes before its receive).
+ * Only a small read buffer per node is kept in memory; with more than FAN_IN nodes the histories are first merged
+ * in groups into temporary runs (in the same binary format), so the number of open files stays bounded.
+ *
+ * usage: java it.unitn.ds1.HistoryMerge <history dir> [out file]
+ */
+public class HistoryMerge {
+    private static final int FAN_IN = 128;
+    private static final int READ_RECORDS = 128;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: HistoryMerge <history dir> [out file]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        if (args.length > 1) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                merge(dir, out, -1);
+            }
+        } else {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            merge(dir, out, -1);
+            out.flush();
+        }
+    }
+
+    /**
+     * writes the merged timeline as text, one event per line prefixed by its Lamport timestamp
+     * @param dir: directory of the segments
+     * @param out: destination of the text
+     * @param node: only the history of this node, all nodes if negative
+     */
+    public static void merge(final Path dir, final Appendable out, final int node) throws IOException {
+        Map<String, List<Path>> sources = segments(dir);
+        if (node >= 0)
+            sources.keySet().retainAll(Collections.singleton(HistoryWriter.nodeName(node)));
+
+        Path tmp = null;
+        try {
+            List<List<Path>> inputs = new ArrayList<>(sources.values());
+            int pass = 0;
+            while (inputs.size() > FAN_IN) {
+                if (tmp == null)
+                    tmp = Files.createTempDirectory(dir, "merge");
+                List<List<Path>> runs = new ArrayList<>();
+                for (int from = 0; from < inputs.size(); from += FAN_IN) {
+                    String name = "run-" + pass + "-" + runs.size();
+                    HistoryWriter run = new HistoryWriter(tmp, name, Long.MAX_VALUE);
+                    mergeInto(inputs.subList(from, Math.min(inputs.size(), from + FAN_IN)), run, null);
+                    run.close();
+                    runs.add(segments(tmp).get(name));
+                }
+                inputs = runs;
+                pass++;
+            }
+            mergeInto(inputs, null, new Formatter(out));
+        } finally {
+            if (tmp != null)
+                delete(tmp);
+        }
+    }
+
+    // k-way merge of the sources, into a binary run or into text
+    private static void mergeInto(final List<List<Path>> inputs, final HistoryWriter run, final Formatter text)
+            throws IOException {
+        PriorityQueue<Reader> heads = new PriorityQueue<>((a, b) -> {
+            int c = Long.compare(a.lamport, b.lamport);
+            return c != 0 ? c : Integer.compare(a.node, b.node);
+        });
+        List<Reader> readers = new ArrayList<>();
+        try {
+            for (List<Path> files : inputs) {
+                Reader r = new Reader(files);
+                readers.add(r);
+                if (r.next())
+                    heads.add(r);
+            }
+            Reader r;
+            while ((r = heads.poll()) != null) {
+                if (run != null)
+                    run.append(r.lamport, r.node, r.peer, r.aux, r.event, r.label);
+                else
+                    text.format(r);
+                if (r.next())
+                    heads.add(r);
+            }
+        } finally {
+            for (Reader reader : readers)
+                reader.close();
+        }
+    }
+
+    // segment files of each source in the directory, ordered by segment number
+    private static Map<String, List<Path>> segments(final Path dir) throws IOException {
+        Map<String, TreeMap<Integer, Path>> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + HistoryWriter.SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                name = name.substring(0, name.length() - HistoryWriter.SUFFIX.length());
+                int dot = name.lastIndexOf('.');
+                if (dot < 0)
+                    continue;
+                found.computeIfAbsent(name.substring(0, dot), k -> new TreeMap<>())
+                        .put(Integer.parseInt(name.substring(dot + 1)), file);
+            }
+        }
+        Map<String, List<Path>> sources = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<Integer, Path>> e : found.entrySet())
+            sources.put(e.getKey(), new ArrayList<>(e.getValue().values()));
+        return sources;
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * sequential reader of the records of the segments of one source
+     */
+    private static final class Reader {
+        private final List<Path> files;
+        private int file = 0;
+        private FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * HistoryWriter.RECORD_BYTES);
+
+        // current record
+        long lamport;
+        int node;
+        int peer;
+        int aux;
+        byte event;
+        byte label;
+
+        Reader(final List<Path> files) {
+            this.files = files;
+            buffer.flip();
+        }
+
+        // moves to the next record, false at the end of the last segment
+        boolean next() throws IOException {
+            while (buffer.remaining() < HistoryWriter.RECORD_BYTES) {
+                if (!fill())
+                    return false;
+            }
+            lamport = buffer.getLong();
+            node = buffer.getInt();
+            peer = buffer.getInt();
+            aux = buffer.getInt();
+            event = buffer.get();
+            label = buffer.get();
+            buffer.getShort();
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            if (channel == null) {
+                if (file == files.size())
+                    return false;
+                channel = FileChannel.open(files.get(file++), StandardOpenOption.READ);
+                ByteBuffer header = ByteBuffer.allocate(HistoryWriter.HEADER_BYTES);
+                while (header.hasRemaining() && channel.read(header) >= 0) ;
+                header.flip();
+                if (header.remaining() < HistoryWriter.HEADER_BYTES || header.getInt() != HistoryWriter.MAGIC
+                        || header.getInt() != HistoryWriter.VERSION)
+                    throw new IOException("not a history segment: " + files.get(file - 1));
+                buffer.clear().flip();
+            }
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                // a truncated last record (e.g. the node was killed while writing) is dropped
+                channel.close();
+                channel = null;
+                buffer.clear().flip();
+            }
+            return true;
+        }
+
+        void close() throws IOException {
+            if (channel != null)
+                channel.close();
+        }
+    }
+
+    /**
+     * text output, in the format of the node histories; keeps the replayed queue and the neighbourhood of each node
+     */
+    private static final class Formatter {
+        private final Appendable out;
+        private final StringBuilder sb = new StringBuilder(128);
+        private final Map<Integer, EventLog.IntList> queues = new HashMap<>();
+        private final Map<Integer, EventLog.IntList> neighbourhoods = new HashMap<>();
+
+        Formatter(final Appendable out) {
+            this.out = out;
+        }
+
+        void format(final Reader r) throws IOException {
+            int[] neighbourhood = null;
+            if (r.event == EventLog.Event.NEIGHBOURHOOD.ordinal()) {
+                // one record per neighbour, aux counts the ones still to come
+                EventLog.IntList ids = neighbourhoods.computeIfAbsent(r.node, k -> new EventLog.IntList());
+                if (r.peer >= 0)
+                    ids.insert(ids.size(), r.peer);
+                if (r.aux > 0)
+                    return;
+                neighbourhood = ids.toArray();
+                neighbourhoods.remove(r.node);
+            }
+            EventLog.IntList queue = queues.computeIfAbsent(r.node, k -> new EventLog.IntList());
+            sb.setLength(0);
+            EventLog.formatRecord(sb, r.node, neighbourhood, r.event, r.label, r.peer, r.aux, queue);
+            if (sb.length() == 0)
+                return;
+            // prefix every line of the event with its timestamp
+            int start = 0;
+            for (int i = 0; i < sb.length(); i++) {
+                if (sb.charAt(i) == '\n') {
+                    out.append(String.format("%10d ", r.lamport)).append(sb, start, i + 1);
+                    start = i + 1;
+                }
+            }
+        }
+    }
+}
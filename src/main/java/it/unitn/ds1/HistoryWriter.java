@@ -0,0 +1,104 @@
+package it.unitn.ds1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends the history records of one node to its segment files in a directory:
+ * node-<id>.<segment>.hist, a new segment is started when the current one reaches the segment size.
+ * Records are fixed-size (RECORD_BYTES) and buffered in a small direct buffer, written with a FileChannel
+ * when it is full and on flush(), so the node never formats text nor shares a file with other nodes.
+ * Used by the owner node only, like its EventLog.
+ *
+ * Segment layout: MAGIC, VERSION (ints), then records of
+ * lamport (long), node, peer, aux (ints), event, label (bytes), 2 padding bytes.
+ */
+class HistoryWriter {
+    static final int MAGIC = 0x52415948; // "RAYH"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_BYTES = 24;
+    static final String SUFFIX = ".hist";
+    private static final int BUFFER_RECORDS = 256;
+
+    private final Path dir;
+    private final String prefix; // file name up to the segment number
+    private final long segment_bytes;
+
+    private ByteBuffer buffer; // allocated on the first record
+    private FileChannel channel;
+    private int segment = -1;
+    private long segment_size; // bytes written to the current segment
+
+    /**
+     * @param dir: directory of the segments, created if missing
+     * @param name: name of the source of the records, e.g. node-3
+     * @param segment_bytes: size after which a new segment is started
+     */
+    HistoryWriter(final Path dir, final String name, final long segment_bytes) {
+        this.dir = dir;
+        this.prefix = name + ".";
+        this.segment_bytes = Math.max(HEADER_BYTES + RECORD_BYTES, segment_bytes);
+    }
+
+    static String nodeName(final int node) {
+        return "node-" + node;
+    }
+
+    void append(final long lamport, final int node, final int peer, final int aux,
+                final byte event, final byte label) throws IOException {
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES);
+        else if (buffer.remaining() < RECORD_BYTES)
+            flush();
+        buffer.putLong(lamport).putInt(node).putInt(peer).putInt(aux)
+                .put(event).put(label).putShort((short) 0);
+    }
+
+    // writes the buffered records to the current segment
+    void flush() throws IOException {
+        if (buffer == null || buffer.position() == 0)
+            return;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (channel == null || segment_size + RECORD_BYTES > segment_bytes)
+                nextSegment();
+            // never split a record across two segments
+            int records = (int) Math.min(buffer.remaining(), segment_bytes - segment_size) / RECORD_BYTES;
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(buffer.position() + records * RECORD_BYTES);
+            while (chunk.hasRemaining())
+                segment_size += channel.write(chunk);
+            buffer.position(chunk.position());
+        }
+        buffer.clear();
+    }
+
+    private void nextSegment() throws IOException {
+        if (channel != null)
+            channel.close();
+        Files.createDirectories(dir);
+        segment++;
+        channel = FileChannel.open(dir.resolve(String.format("%s%06d%s", prefix, segment, SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        segment_size = HEADER_BYTES;
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (channel != null)
+                channel.close();
+            channel = null;
+        }
+    }
+}
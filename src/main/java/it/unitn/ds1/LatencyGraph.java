@@ -0,0 +1,467 @@
+package it.unitn.ds1;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Weighted connectivity graph of the nodes: the links the tree can use, with their measured latency, and how often
+ * each node asks for the CS. It builds the spanning trees Raymond's algorithm runs over, as Topology instances,
+ * rooted where the token starts.
+ *
+ * File format, one entry per line, blank lines and lines starting with # are skipped:
+ *   a b latency    link between nodes a and b, latency in milliseconds (ids from 0, every node must be linked)
+ *   node a weight  relative request frequency of node a, 1 for the nodes not listed
+ *
+ * The cost of a tree is the expected latency per CS entry of requests made at independent nodes, drawn by weight:
+ * for the default lock the token is at the node that used it last, so the request and the token travel between two
+ * nodes drawn by weight; the idle token of a named lock goes back to the root, so they travel between the root and
+ * the requester.
+ */
+public class LatencyGraph {
+
+    // the spanning trees that can be built
+    public enum Tree {
+        MINIMUM_SPANNING,   // least total latency (Prim)
+        MINIMUM_DIAMETER,   // shortest paths from the node with the least eccentricity: at most twice the least diameter
+        MINIMUM_LATENCY     // the shortest path tree, among those of every node, with the least expected latency per CS
+    }
+
+    // where the token starts
+    public enum Placement {
+        CENTER,     // the node with the least expected distance from the requesters
+        FREQUENT    // the most frequent requester
+    }
+
+    private final String name;
+    private final int[] offsets; // links of node i: targets[offsets[i] .. offsets[i+1]) with their latencies
+    private final int[] targets;
+    private final double[] latencies;
+    private final double[] weights; // request frequencies, summing to 1
+
+    private LatencyGraph(final String name, final int n, final int[] from, final int[] to, final double[] latency,
+                         final int links, final double[] weights) {
+        this.name = name;
+        int[] off = new int[n + 1];
+        for (int e = 0; e < links; e++) {
+            off[from[e] + 1]++;
+            off[to[e] + 1]++;
+        }
+        for (int i = 0; i < n; i++)
+            off[i + 1] += off[i];
+        int[] fill = Arrays.copyOf(off, n);
+        this.targets = new int[off[n]];
+        this.latencies = new double[off[n]];
+        for (int e = 0; e < links; e++) {
+            targets[fill[from[e]]] = to[e];
+            latencies[fill[from[e]]++] = latency[e];
+            targets[fill[to[e]]] = from[e];
+            latencies[fill[to[e]]++] = latency[e];
+        }
+        this.offsets = off;
+
+        double total = 0;
+        for (double w : weights)
+            total += w;
+        this.weights = new double[n];
+        for (int i = 0; i < n; i++)
+            this.weights[i] = weights[i] / total;
+
+        if (order(0, new double[n], new int[n], new int[n], false) < n)
+            throw new IllegalArgumentException("graph " + name + " is not connected");
+    }
+
+    /**
+     * @param file: the graph, in the format above
+     * @throws IllegalArgumentException if a line is malformed or the graph is not connected
+     */
+    public static LatencyGraph load(final Path file) throws IOException {
+        int[] from = new int[16], to = new int[16];
+        double[] latency = new double[16];
+        double[] weights = new double[16];
+        Arrays.fill(weights, 1);
+        int links = 0, n = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            for (int number = 1; (line = in.readLine()) != null; number++) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] f = line.split("\\s+");
+                try {
+                    if (f.length != 3)
+                        throw new IllegalArgumentException("3 fields expected");
+                    if (f[0].equals("node")) {
+                        int a = Integer.parseInt(f[1]);
+                        double w = Double.parseDouble(f[2]);
+                        if (a < 0 || w <= 0)
+                            throw new IllegalArgumentException("negative id or weight");
+                        if (a >= weights.length) {
+                            int old = weights.length;
+                            weights = Arrays.copyOf(weights, Math.max(2 * old, a + 1));
+                            Arrays.fill(weights, old, weights.length, 1);
+                        }
+                        weights[a] = w;
+                        n = Math.max(n, a + 1);
+                    } else {
+                        int a = Integer.parseInt(f[0]), b = Integer.parseInt(f[1]);
+                        double l = Double.parseDouble(f[2]);
+                        if (a < 0 || b < 0 || a == b || !(l >= 0))
+                            throw new IllegalArgumentException("negative id or latency, or a self loop");
+                        if (links == from.length) {
+                            from = Arrays.copyOf(from, 2 * links);
+                            to = Arrays.copyOf(to, 2 * links);
+                            latency = Arrays.copyOf(latency, 2 * links);
+                        }
+                        from[links] = a;
+                        to[links] = b;
+                        latency[links++] = l;
+                        n = Math.max(n, Math.max(a, b) + 1);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(file + ":" + number + ": " + e.getMessage() + ": " + line);
+                }
+            }
+        }
+        if (n > weights.length) {
+            int old = weights.length;
+            weights = Arrays.copyOf(weights, n);
+            Arrays.fill(weights, old, n, 1);
+        }
+        return new LatencyGraph(file.getFileName().toString(), n, from, to, latency, links,
+                Arrays.copyOf(weights, n));
+    }
+
+    public int size() {
+        return weights.length;
+    }
+
+    /**
+     * spanning tree of the graph rooted where the token starts
+     */
+    public Topology tree(final Tree kind, final Placement placement) {
+        int[] parent;
+        switch (kind) {
+            case MINIMUM_SPANNING:
+                parent = new int[size()];
+                order(0, new double[size()], parent, new int[size()], true);
+                break;
+            case MINIMUM_DIAMETER:
+                parent = shortestPaths(graphCenter());
+                break;
+            default:
+                parent = null;
+                double best = Double.MAX_VALUE;
+                for (int r = 0; r < size(); r++) {
+                    int[] candidate = shortestPaths(r);
+                    double cost = pairCost(candidate, topDown(candidate), null);
+                    if (cost < best) {
+                        best = cost;
+                        parent = candidate;
+                    }
+                }
+        }
+        int root = placement == Placement.FREQUENT ? frequentRequester() : treeCenter(parent);
+        return Topology.of(kind.name().toLowerCase() + "(" + name + ")", reroot(parent, root));
+    }
+
+    /**
+     * one line for each tree that can be built, with its diameter and its expected latency per CS entry
+     * (see the class comment), in milliseconds and in hops
+     */
+    public String report(final Placement placement) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-18s %6s %12s %24s %24s%n", "tree", "root", "diameter ms", "default lock ms (hops)",
+                "named lock ms (hops)"));
+        double[] hops = new double[size()];
+        Arrays.fill(hops, 1);
+        for (Tree kind : Tree.values()) {
+            Topology t = tree(kind, placement);
+            int[] parent = parents(t);
+            int[] order = topDown(parent);
+            sb.append(String.format("%-18s %6d %12.1f %15.1f (%6.2f) %15.1f (%6.2f)%n", kind.name().toLowerCase(),
+                    t.root(), diameter(parent, order), pairCost(parent, order, null), pairCost(parent, order, hops),
+                    rootCost(parent, order, null), rootCost(parent, order, hops)));
+        }
+        return sb.toString();
+    }
+
+    /* -- Costs ---------------------------------------------------------------- */
+
+    /**
+     * @param t: spanning tree of this graph
+     * @return expected latency per CS entry of the default lock, in milliseconds
+     */
+    public double expectedLatency(final Topology t) {
+        int[] parent = parents(t);
+        return pairCost(parent, topDown(parent), null);
+    }
+
+    /**
+     * @param t: spanning tree of this graph
+     * @return expected latency per CS entry of a named lock whose token is idle at the root, in milliseconds
+     */
+    public double expectedRootLatency(final Topology t) {
+        int[] parent = parents(t);
+        return rootCost(parent, topDown(parent), null);
+    }
+
+    /**
+     * @param t: spanning tree of this graph
+     * @return latency of the longest path of the tree, in milliseconds
+     */
+    public double diameter(final Topology t) {
+        int[] parent = parents(t);
+        return diameter(parent, topDown(parent));
+    }
+
+    // expected cost of a request and of the token between two nodes drawn by weight: they cross each link when the
+    // two nodes are on different sides of it. The cost of the link to the parent of each node is given, null for
+    // its latency
+    private double pairCost(final int[] parent, final int[] order, final double[] cost) {
+        double[] below = subtreeWeights(parent, order);
+        double sum = 0;
+        for (int u : order) {
+            if (parent[u] >= 0)
+                sum += (cost == null ? latency(u, parent[u]) : cost[u]) * 2 * below[u] * (1 - below[u]);
+        }
+        return 2 * sum;
+    }
+
+    // the same between the root and a node drawn by weight
+    private double rootCost(final int[] parent, final int[] order, final double[] cost) {
+        double[] depth = new double[size()];
+        double sum = 0;
+        for (int u : order) {
+            if (parent[u] >= 0)
+                depth[u] = depth[parent[u]] + (cost == null ? latency(u, parent[u]) : cost[u]);
+            sum += weights[u] * depth[u];
+        }
+        return 2 * sum;
+    }
+
+    // longest path of the tree: the deepest two subtrees below some node
+    private double diameter(final int[] parent, final int[] order) {
+        double[] deepest = new double[size()];
+        double diameter = 0;
+        for (int i = order.length - 1; i >= 0; i--) {
+            int u = order[i];
+            if (parent[u] >= 0) {
+                double d = deepest[u] + latency(u, parent[u]);
+                diameter = Math.max(diameter, deepest[parent[u]] + d);
+                deepest[parent[u]] = Math.max(deepest[parent[u]], d);
+            }
+        }
+        return diameter;
+    }
+
+    private double[] subtreeWeights(final int[] parent, final int[] order) {
+        double[] below = weights.clone();
+        for (int i = order.length - 1; i > 0; i--)
+            below[parent[order[i]]] += below[order[i]];
+        return below;
+    }
+
+    /* -- Placement ------------------------------------------------------------ */
+
+    // weighted median of the tree: moving the root down a link brings it closer to the weight below the link
+    private int treeCenter(final int[] parent) {
+        int[] order = topDown(parent);
+        double[] below = subtreeWeights(parent, order);
+        double[] cost = new double[size()];
+        cost[order[0]] = rootCost(parent, order, null) / 2;
+        int center = order[0];
+        for (int i = 1; i < order.length; i++) {
+            int u = order[i];
+            cost[u] = cost[parent[u]] + latency(u, parent[u]) * (1 - 2 * below[u]);
+            if (cost[u] < cost[center] - 1e-9)
+                center = u;
+        }
+        return center;
+    }
+
+    private int frequentRequester() {
+        int best = 0;
+        for (int i = 1; i < size(); i++) {
+            if (weights[i] > weights[best])
+                best = i;
+        }
+        return best;
+    }
+
+    // the node whose farthest node is the closest, over the graph
+    private int graphCenter() {
+        int best = 0;
+        double best_eccentricity = Double.MAX_VALUE;
+        double[] dist = new double[size()];
+        int[] order = new int[size()];
+        for (int r = 0; r < size(); r++) {
+            order(r, dist, new int[size()], order, false);
+            double eccentricity = dist[order[size() - 1]];
+            if (eccentricity < best_eccentricity) {
+                best_eccentricity = eccentricity;
+                best = r;
+            }
+        }
+        return best;
+    }
+
+    /* -- Graph visits --------------------------------------------------------- */
+
+    private int[] shortestPaths(final int root) {
+        int[] parent = new int[size()];
+        order(root, new double[size()], parent, new int[size()], false);
+        return parent;
+    }
+
+    /*
+    Dijkstra from src (Prim if spanning): fills the distance of each node (the latency of the link to the tree for
+    Prim), its parent and the order the nodes are reached in, returns the number of nodes reached
+     */
+    private int order(final int src, final double[] dist, final int[] parent, final int[] order, final boolean spanning) {
+        Arrays.fill(dist, Double.MAX_VALUE);
+        Arrays.fill(parent, -1);
+        boolean[] done = new boolean[size()];
+        Heap heap = new Heap(size());
+        dist[src] = 0;
+        heap.update(src, 0);
+        int reached = 0;
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            done[u] = true;
+            order[reached++] = u;
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = targets[e];
+                double d = spanning ? latencies[e] : dist[u] + latencies[e];
+                if (!done[v] && d < dist[v]) {
+                    dist[v] = d;
+                    parent[v] = u;
+                    heap.update(v, d);
+                }
+            }
+        }
+        return reached;
+    }
+
+    // the nodes of a tree, parents before their children
+    private int[] topDown(final int[] parent) {
+        int n = size();
+        int[] first_child = new int[n];
+        int[] next_sibling = new int[n];
+        Arrays.fill(first_child, -1);
+        int root = -1;
+        for (int u = n - 1; u >= 0; u--) {
+            if (parent[u] < 0) {
+                root = u;
+            } else {
+                next_sibling[u] = first_child[parent[u]];
+                first_child[parent[u]] = u;
+            }
+        }
+        int[] order = new int[n];
+        int tail = 0;
+        order[tail++] = root;
+        for (int head = 0; head < tail; head++) {
+            for (int c = first_child[order[head]]; c >= 0; c = next_sibling[c])
+                order[tail++] = c;
+        }
+        return order;
+    }
+
+    // the same tree with its links turned towards another root
+    private static int[] reroot(final int[] parent, final int root) {
+        int[] rerooted = parent.clone();
+        int previous = -1;
+        for (int u = root; u >= 0; ) {
+            int up = parent[u];
+            rerooted[u] = previous;
+            previous = u;
+            u = up;
+        }
+        return rerooted;
+    }
+
+    private static int[] parents(final Topology t) {
+        int[] parent = new int[t.size()];
+        for (int i = 0; i < parent.length; i++)
+            parent[i] = t.parent(i);
+        return parent;
+    }
+
+    private double latency(final int a, final int b) {
+        double best = Double.MAX_VALUE;
+        for (int e = offsets[a]; e < offsets[a + 1]; e++) {
+            if (targets[e] == b)
+                best = Math.min(best, latencies[e]);
+        }
+        return best;
+    }
+
+    // binary min heap of the nodes by key, with decrease key
+    private static final class Heap {
+        private final int[] nodes;
+        private final int[] position; // of each node in nodes, -1 if not in the heap
+        private final double[] keys;
+        private int size;
+
+        Heap(final int n) {
+            nodes = new int[n];
+            position = new int[n];
+            keys = new double[n];
+            Arrays.fill(position, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void update(final int node, final double key) {
+            keys[node] = key;
+            if (position[node] < 0) {
+                nodes[size] = node;
+                position[node] = size++;
+            }
+            up(position[node]);
+        }
+
+        int poll() {
+            int top = nodes[0];
+            position[top] = -1;
+            if (--size > 0) {
+                nodes[0] = nodes[size];
+                position[nodes[0]] = 0;
+                down(0);
+            }
+            return top;
+        }
+
+        private void up(int i) {
+            while (i > 0 && keys[nodes[(i - 1) / 2]] > keys[nodes[i]]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void down(int i) {
+            while (2 * i + 1 < size) {
+                int c = 2 * i + 1;
+                if (c + 1 < size && keys[nodes[c + 1]] < keys[nodes[c]])
+                    c++;
+                if (keys[nodes[i]] <= keys[nodes[c]])
+                    return;
+                swap(i, c);
+                i = c;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            int t = nodes[i];
+            nodes[i] = nodes[j];
+            nodes[j] = t;
+            position[nodes[i]] = i;
+            position[nodes[j]] = j;
+        }
+    }
+}
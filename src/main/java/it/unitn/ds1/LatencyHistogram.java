@@ -0,0 +1,110 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of durations in nanoseconds: each power of two range is split into
+ * SUB_BUCKETS linear buckets, so percentiles are within ~1/SUB_BUCKETS of the true value.
+ * Recording is a couple of shifts and an array increment, the buckets are allocated on the first record.
+ * Not thread safe: written by the owner node only.
+ */
+public class LatencyHistogram implements Serializable {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        if (counts == null)
+            counts = new long[BUCKETS];
+        counts[index(nanos)]++;
+        count++;
+        sum += nanos;
+        if (nanos > max)
+            max = nanos;
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1; // >= 1
+        int sub = (int) (v >>> (exp - 1)) & (SUB_BUCKETS - 1);
+        return exp * SUB_BUCKETS + sub;
+    }
+
+    // upper bound of the values of a bucket
+    private static long upper(int idx) {
+        int exp = idx / SUB_BUCKETS;
+        int sub = idx % SUB_BUCKETS;
+        if (exp == 0)
+            return sub;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - 1)) - 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param p: percentile, in [0, 100]
+     * @return the value below which p percent of the recorded durations fall, in nanoseconds
+     */
+    public long getPercentile(double p) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(p / 100.0 * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upper(i), max);
+        }
+        return max;
+    }
+
+    public void add(LatencyHistogram other) {
+        // counts can still be null when other is read, without synchronization, while it is being written
+        if (other.count == 0 || other.counts == null)
+            return;
+        if (counts == null)
+            counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.counts = counts == null ? null : Arrays.copyOf(counts, BUCKETS);
+        h.count = count;
+        h.sum = sum;
+        h.max = max;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                count, getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(99) / 1e3,
+                getPercentile(99.9) / 1e3, max / 1e3);
+    }
+}
@@ -0,0 +1,100 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.unitn.ds1.Node.SystemReleaseMsg;
+
+/**
+ * Permission to stay in the critical section, obtained through DistributedMutEx.acquire().
+ * The node stays in the CS until release() is called, then the privilege is passed on.
+ * A shared lease can be held at the same time as other shared leases of the same lock, never with an exclusive one.
+ * With NodeConfig.leaseDuration the node revokes the lease when it expires, released or not: the work of a client
+ * that may outlive its lease is checked against its fencing token by the resource it goes to (see FenceGuard).
+ */
+public final class Lease {
+    private final ActorRef node;
+    private final int node_id;
+    private final long resource;
+    private final long grant;
+    private final long fence;
+    private final boolean shared;
+    private final long expires_at; // on the clock of the transport, Long.MAX_VALUE if the lease does not expire
+    private final Transport transport;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    Lease(final ActorRef node, final int node_id, final long resource, final long grant, final long fence,
+          final boolean shared, final long expires_at, final Transport transport) {
+        this.node = node;
+        this.node_id = node_id;
+        this.resource = resource;
+        this.grant = grant;
+        this.fence = fence;
+        this.shared = shared;
+        this.expires_at = expires_at;
+        this.transport = transport;
+    }
+
+    /**
+     * @return id of the node in the critical section
+     */
+    public int getNodeId() {
+        return node_id;
+    }
+
+    /**
+     * @return id of the lock, 0 for the default one
+     */
+    public long getResource() {
+        return resource;
+    }
+
+    /**
+     * @return sequence number of this CS entry on its node
+     */
+    public long getGrant() {
+        return grant;
+    }
+
+    /**
+     * @return fencing token of this lease: the leases of a lock get rising ones (for the default lock with several
+     * tokens, the leases of each token), so a resource that saw a lease can reject the work of the ones before it
+     */
+    public long getFence() {
+        return fence;
+    }
+
+    /**
+     * @return true once the lease outlived NodeConfig.leaseDuration: its node revokes it, if it did not already
+     */
+    public boolean isExpired() {
+        return transport.nanoTime() >= expires_at;
+    }
+
+    /**
+     * @return true for a shared (read) lease, false for an exclusive one
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * leaves the critical section, calling it more than once (or after the lease was revoked) has no effect
+     */
+    public void release() {
+        if (released.compareAndSet(false, true))
+            transport.send(node, new SystemReleaseMsg(resource, grant, shared), ActorRef.noSender());
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Lease(node %02d, %sgrant %d, fence %d%s%s)", node_id,
+                resource == 0 ? "" : "resource " + resource + ", ", grant, fence, shared ? ", shared" : "",
+                released.get() ? ", released" : "");
+    }
+}
@@ -0,0 +1,18 @@
+package it.unitn.ds1;
+
+/**
+ * Types of the messages exchanged between nodes, used to count them.
+ */
+public enum MessageType {
+    INITIALIZE,
+    INITIALIZED,
+    REQUEST,
+    PRIVILEGE,
+    PRIVILEGE_AND_REQUEST,
+    CANCEL,
+    RESTART,
+    ADVISE,
+    READ_GRANT,
+    READ_RELEASE,
+    HEARTBEAT
+}
@@ -0,0 +1,262 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorRef;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import it.unitn.ds1.Node.NodeToNodeMsg;
+import it.unitn.ds1.Node.StampedMsg;
+
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Transport that makes the messages between two nodes cross an emulated link, in this JVM: each tree edge has a
+ * profile (delay, jitter, bandwidth and reordering), the default one for the edges without their own. Messages are
+ * handed to the wrapped transport when they are due, by one delivery thread; the other messages (a node to itself,
+ * the clients) go straight through. Simulation uses the same links on its virtual clock.
+ *
+ * A message leaves once the link has sent the ones before it, at the bandwidth of the link (its size is the one of
+ * NodeMessageSerializer), then arrives after the delay plus a random queueing delay, exponentially distributed with
+ * the jitter as mean. It can overtake the messages sent before it on the link by up to the reordering bound: links
+ * are FIFO by default, as in akka. Each direction of a link is independent.
+ *
+ * File format, one entry per line, blank lines and lines starting with # are skipped:
+ *   a b delay [jitter [bandwidth [reorder]]]        link between nodes a and b
+ *   default delay [jitter [bandwidth [reorder]]]    the other links
+ * delays in milliseconds, bandwidth in kbit/s (0 for unlimited). "node" lines are skipped, so the graph of a
+ * LatencyGraph is also a valid file: the links get their measured latencies.
+ */
+public class NetworkEmulator implements Transport {
+
+    // how an emulated link carries the messages
+    public static final class LinkProfile {
+        long delay_nanos = 0;
+        long jitter_nanos = 0;
+        long bits_per_second = 0; // 0 for unlimited
+        long reorder_nanos = 0;
+
+        public LinkProfile delay(final long amount, final TimeUnit unit) {
+            this.delay_nanos = unit.toNanos(amount);
+            return this;
+        }
+
+        // mean of the queueing delay added to each message
+        public LinkProfile jitter(final long amount, final TimeUnit unit) {
+            this.jitter_nanos = unit.toNanos(amount);
+            return this;
+        }
+
+        public LinkProfile bandwidth(final long bits_per_second) {
+            if (bits_per_second < 0)
+                throw new IllegalArgumentException("negative bandwidth: " + bits_per_second);
+            this.bits_per_second = bits_per_second;
+            return this;
+        }
+
+        // how much earlier than a message sent before it a message can arrive, 0 for a FIFO link
+        public LinkProfile reorder(final long amount, final TimeUnit unit) {
+            this.reorder_nanos = unit.toNanos(amount);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delay %.1f ms, jitter %.1f ms, %s, reordering %.1f ms", delay_nanos / 1e6,
+                    jitter_nanos / 1e6, bits_per_second == 0 ? "unlimited" : bits_per_second / 1000 + " kbit/s",
+                    reorder_nanos / 1e6);
+        }
+    }
+
+    // one direction of a link, guarded by itself
+    private static final class Link {
+        final LinkProfile profile;
+        final Random random;
+        long busy_until = Long.MIN_VALUE; // when the last message sent has left
+        long last_delivery = Long.MIN_VALUE; // latest arrival of the messages sent so far
+
+        Link(final LinkProfile profile, final long seed) {
+            this.profile = profile;
+            this.random = new Random(seed);
+        }
+    }
+
+    private final Transport transport;
+    private final long seed;
+    private LinkProfile default_profile = new LinkProfile();
+    private final Map<Long, LinkProfile> profiles = new HashMap<>(); // by edge, the lower id in the high bits
+    private final Map<Long, Link> links = new HashMap<>(); // by direction, the sender in the high bits
+    private final NodeMessageSerializer serializer = new NodeMessageSerializer();
+    private volatile ScheduledExecutorService delivery; // started at the first delayed message
+
+    /**
+     * @param transport: the transport the messages are handed to when they are due
+     * @param seed: seed of the jitter, each direction of a link draws from its own generator
+     */
+    public NetworkEmulator(final Transport transport, final long seed) {
+        this.transport = transport;
+        this.seed = seed;
+    }
+
+    public NetworkEmulator defaultLink(final LinkProfile profile) {
+        this.default_profile = profile;
+        return this;
+    }
+
+    public NetworkEmulator link(final int a, final int b, final LinkProfile profile) {
+        if (a < 0 || b < 0 || a == b)
+            throw new IllegalArgumentException("not a link: " + a + " " + b);
+        profiles.put(edge(a, b), profile);
+        return this;
+    }
+
+    /**
+     * adds the links of a file, in the format above
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    public NetworkEmulator load(final Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            for (int number = 1; (line = in.readLine()) != null; number++) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] f = line.split("\\s+");
+                if (f[0].equals("node"))
+                    continue;
+                try {
+                    boolean all = f[0].equals("default");
+                    int first = all ? 1 : 2;
+                    if (f.length <= first || f.length > first + 4)
+                        throw new IllegalArgumentException("wrong number of fields");
+                    LinkProfile profile = new LinkProfile().delay(micros(f[first]), TimeUnit.MICROSECONDS);
+                    if (f.length > first + 1)
+                        profile.jitter(micros(f[first + 1]), TimeUnit.MICROSECONDS);
+                    if (f.length > first + 2)
+                        profile.bandwidth(Math.round(Double.parseDouble(f[first + 2]) * 1000));
+                    if (f.length > first + 3)
+                        profile.reorder(micros(f[first + 3]), TimeUnit.MICROSECONDS);
+                    if (all)
+                        defaultLink(profile);
+                    else
+                        link(Integer.parseInt(f[0]), Integer.parseInt(f[1]), profile);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(file + ":" + number + ": " + e.getMessage() + ": " + line);
+                }
+            }
+        }
+        return this;
+    }
+
+    private static long micros(final String ms) {
+        double v = Double.parseDouble(ms);
+        if (!(v >= 0))
+            throw new IllegalArgumentException("negative duration: " + ms);
+        return Math.round(v * 1000);
+    }
+
+    public LinkProfile profile(final int a, final int b) {
+        return profiles.getOrDefault(edge(a, b), default_profile);
+    }
+
+    /* -- Transport ------------------------------------------------------------ */
+
+    @Override
+    public void send(final ActorRef to, final Object msg, final ActorRef sender) {
+        int from = sender(msg);
+        int dest = from < 0 ? -1 : nodeId(to);
+        if (dest < 0 || dest == from) {
+            transport.send(to, msg, sender);
+            return;
+        }
+        long now = transport.nanoTime();
+        long delay = deliveryTime(from, dest, msg, now) - now;
+        if (delay <= 0 && delivery == null) {
+            transport.send(to, msg, sender);
+            return;
+        }
+        deliveryThread().schedule(() -> transport.send(to, msg, sender), delay, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void schedule(final ActorContext context, final FiniteDuration delay, final Object msg) {
+        transport.schedule(context, delay, msg);
+    }
+
+    @Override
+    public long nanoTime() {
+        return transport.nanoTime();
+    }
+
+    // single thread, so that messages due at the same time keep their order
+    private synchronized ScheduledExecutorService deliveryThread() {
+        if (delivery == null) {
+            delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "network-emulator");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return delivery;
+    }
+
+    /* -- Links ---------------------------------------------------------------- */
+
+    // id of the node that sent a message between nodes, -1 for the other messages
+    static int sender(final Object msg) {
+        Object m = msg instanceof StampedMsg ? ((StampedMsg) msg).msg : msg;
+        return m instanceof NodeToNodeMsg ? ((NodeToNodeMsg) m).senderId : -1;
+    }
+
+    // id of a node from the name of its actor (Node_<id>), -1 for the other actors
+    private static int nodeId(final ActorRef ref) {
+        String name = ref.path().name();
+        if (!name.startsWith("Node_"))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring("Node_".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * when a message sent now from node "from" to node "to" arrives, on the clock of now
+     */
+    long deliveryTime(final int from, final int to, final Object msg, final long now) {
+        Link link;
+        synchronized (links) {
+            link = links.computeIfAbsent(((long) from << 32) | (to & 0xffffffffL),
+                    k -> new Link(profile(from, to), seed * 31 + k));
+        }
+        LinkProfile p = link.profile;
+        long bytes = p.bits_per_second == 0 ? 0 : serializer.toBinary(msg).length;
+        synchronized (link) {
+            long departure = now;
+            if (p.bits_per_second > 0) {
+                departure = Math.max(now, link.busy_until) + bytes * 8 * 1_000_000_000L / p.bits_per_second;
+                link.busy_until = departure;
+            }
+            long arrival = departure + p.delay_nanos;
+            if (p.jitter_nanos > 0)
+                arrival += (long) (-Math.log(1 - link.random.nextDouble()) * p.jitter_nanos);
+            if (link.last_delivery != Long.MIN_VALUE)
+                arrival = Math.max(arrival, link.last_delivery - p.reorder_nanos);
+            link.last_delivery = Math.max(link.last_delivery, arrival);
+            return arrival;
+        }
+    }
+
+    private static long edge(final int a, final int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
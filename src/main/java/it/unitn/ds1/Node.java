@@ -1,84 +1,204 @@
 package it.unitn.ds1;
 
 import akka.actor.ActorRef;
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithStash;
 
 import java.io.IOException;
 import java.util.*;
 import java.io.Serializable;
 
 import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.PartialFunction;
+import scala.concurrent.duration.FiniteDuration;
+import scala.runtime.BoxedUnit;
 
-import java.util.concurrent.TimeUnit;
 import java.io.FileWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import scala.concurrent.duration.FiniteDuration;
+import it.unitn.ds1.EventLog.Event;
+import it.unitn.ds1.EventLog.Label;
 
-class Node extends AbstractActor {
+class Node extends AbstractActorWithStash {
     private final int id;    // ID of the current actor
-    private List<ActorInfo> neighbours; // neighbourhood of this node (list of pairs of (actoref, int)
-
-    private ActorInfo holder; // who is the holder for this node
-    private boolean using; // is the node in the CS?
-    private boolean asked; // has the node asked for the PRIVILEGE token to its holder?
+    private ActorInfo[] neighbours; // neighbourhood of this node (pairs of (actoref, int), indexed by slot)
+    private final ActorInfo self; // this node, as holder or as entry of the request queue
+
+    private ActorInfo parent; // neighbour towards the root of the tree (self for the root), known after initialization
+    private int init_pending; // children that have not acknowledged their initialization yet
+    private int init_nodes; // nodes of our subtree that acknowledged their initialization, us included
+    private ActorRef init_reply; // root only: who asked for the initialization, told once the whole tree is done
+    private final LockState lock; // the default lock (resource 0)
+    // the tokens of the default lock, tokens[0] is lock: with k tokens up to k nodes are in its CS at once,
+    // each token is served by its own instance of the algorithm over the same tree
+    private LockState[] tokens;
+    private int next_token; // the token the next local request of the default lock waits for, in turn
+    // the named locks this node is involved in, by resource id: a lock with no state here is idle
+    // and its token is at the root (or on its way there)
+    private final ResourceMap<LockState> named_locks;
     private boolean in_recovery_mode; // is the node in recovery mode?
     private boolean in_failure_mode; // is the node in failure mode?
-    private Deque<ActorInfo> request_queue; // Queue where to store requests incoming from neighbours.
     private int total_advise_msgs_received; // amount of advise msgs received during this recovery
-
-    // durations
-    private final FiniteDuration FAILURE_DURATION = new FiniteDuration(5, TimeUnit.SECONDS);
-    private final FiniteDuration CS_DURATION = new FiniteDuration(10, TimeUnit.SECONDS);
+    private boolean[] advised; // during recovery: the neighbours (by slot) whose Advise we received
+    private boolean[] restart_pending; // during recovery: the recovering neighbours (by slot) we owe an Advise
+    private boolean[] restarted_again; // during recovery: the neighbours we sent a second Restart to
+    private int recoveries; // recoveries started, the timeouts of the previous ones are ignored
+    private int recovery_rounds; // timeouts of the current recovery
+    private long grants; // number of times this node entered a CS, identifies the current lease
+    // highest fencing token granted here or brought here by a token (or its shared grants): each CS entered takes the
+    // next one, so the leases of a lock get rising fences wherever they are granted. Kept across failures, like grants
+    private long fence;
+
+    // messages of the default lock for each neighbour, created once when the neighbourhood is known: they only carry
+    // our id and our slot in the neighbourhood of the receiver, so sending them allocates nothing (the ones carrying
+    // the token are stamped with our fence when sent)
+    private InitializeMsg[] initialize_msgs;
+    private RequestMsg[] request_msgs;
+    private PrivilegeMsg[] privilege_msgs;
+    private PrivilegeAndRequestMsg[] privilege_and_request_msgs;
+    private RestartMsg[] restart_msgs;
+    private final SelfExitCSMsg exit_cs_msg = new SelfExitCSMsg();
+    private static final SlotQueue EMPTY_QUEUE = new SlotQueue(1);
+
+    // failure detector (NodeConfig.heartbeat), by neighbour slot: when we last heard from it and sent it something,
+    // whether we suspect it failed, and the messages of the locks we hold back for it meanwhile
+    private long[] last_heard;
+    private long[] last_sent;
+    private boolean[] suspected;
+    private List<ArrayDeque<Object>> held_back;
+    private long last_tick; // previous period of the detector
+    private HeartbeatMsg[] heartbeat_msgs;
+    private final SelfHeartbeatMsg heartbeat_tick = new SelfHeartbeatMsg();
+
+    // checkpoints (NodeConfig.journal), null when off: the locks changed by the message being handled, by resource
+    // and token, are journaled once it is handled, all of them if journal_snapshot
+    private CheckpointJournal journal;
+    private long[] changed_resources;
+    private int[] changed_tokens;
+    private int changed;
+    private boolean journal_snapshot;
+    private boolean[] missed; // during a failure: the neighbours whose lock messages we dropped
+
+    // durations, listener and counters shared by all nodes
+    private final NodeConfig config;
     // logging
-    private StringBuffer history;
+    private final EventLog log;
+    // errors of the node itself, e.g. of its journal and history files
+    private final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
+    // counters, gauges and histograms of this node
+    private final NodeMetrics metrics;
+    private Receive receive; // behaviour of the node, also applied to the messages unwrapped from a StampedMsg
 
 
     /* -- Actor constructor --------------------------------------------------- */
-    public Node(final int id) {
+    public Node(final int id, final NodeConfig config, final NodeMetrics metrics) {
         this.id = id;
+        this.config = config;
+        this.metrics = metrics;
         this.neighbours = null;
-        this.holder = null;
-        this.using = false;
-        this.asked = false;
+        this.self = new ActorInfo(getSelf(), id, -1);
+        this.parent = null;
+        this.lock = new LockState(0, 0, null, 1);
+        this.tokens = new LockState[]{lock};
+        this.named_locks = new ResourceMap<>();
         this.in_recovery_mode = false;
         this.in_failure_mode = false;
-        this.request_queue = new ArrayDeque<>();
         this.total_advise_msgs_received = 0;
-        this.history = new StringBuffer();
+        this.grants = 0;
+        this.log = new EventLog(id, config.history_dir == null ? null
+                : new HistoryWriter(config.history_dir, HistoryWriter.nodeName(id), config.history_segment_bytes),
+                logger);
+        if (config.journal_dir != null) {
+            this.journal = new CheckpointJournal(config.journal_dir, HistoryWriter.nodeName(id));
+            this.changed_resources = new long[4];
+            this.changed_tokens = new int[4];
+        }
 
-        String to_log = String.format("Node %02d created\n", this.id);
-        history.append(to_log);
-        System.out.print(to_log);
+        log.record(Event.CREATED, -1, 0);
     }
 
     static public Props props(final int id) {
-        return Props.create(Node.class, () -> new Node(id));
+        return props(id, new NodeConfig());
+    }
+
+    static public Props props(final int id, final NodeConfig config) {
+        return props(id, config, new NodeMetrics());
+    }
+
+    // metrics is written by the node only, the caller can read it to monitor the node
+    static public Props props(final int id, final NodeConfig config, final NodeMetrics metrics) {
+        return Props.create(Node.class, () -> new Node(id, config, metrics));
+    }
+
+    @Override
+    public void postStop() {
+        log.close();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error(e, "cannot close the journal");
+            }
+        }
+        super.postStop();
+    }
+
+    // the changes of the locks made by a message are journaled before the next message is handled
+    @Override
+    public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+        super.aroundReceive(receive, msg);
+        if (journal != null && (changed > 0 || journal_snapshot))
+            checkpoint();
     }
 
     // Here we define the mapping between the received message types
     // and our actor methods
     @Override
     public Receive createReceive() {
-        return receiveBuilder()
+        receive = receiveBuilder()
+                // with nodes in several JVMs a neighbour can be initialized before we know our neighbourhood:
+                // its messages wait until then
+                .match(NodeToNodeMsg.class, msg -> neighbours == null, msg -> stash())
+                .match(StampedMsg.class, msg -> neighbours == null, msg -> stash())
+
                 // messages sent from node to node
+                .match(StampedMsg.class, this::onStampedMsg)
                 .match(InitializeMsg.class, this::onInitializeMsg)
+                .match(InitializedMsg.class, this::onInitializedMsg)
                 .match(RequestMsg.class, this::onRequestMsg)
                 .match(PrivilegeMsg.class, this::onPrivilegeMsg)
                 .match(PrivilegeAndRequestMsg.class, this::onPrivilegeAndRequestMsg)
                 .match(RestartMsg.class, this::onRestartMsg)
                 .match(AdviseMsg.class, this::onAdviseMsg)
+                .match(ReadGrantMsg.class, this::onReadGrantMsg)
+                .match(ReadReleaseMsg.class, this::onReadReleaseMsg)
+                .match(CancelMsg.class, this::onCancelMsg)
+                .match(HeartbeatMsg.class, this::onHeartbeatMsg)
 
                 // messages sent from a node to itself, to trigger/simulate the exit from CS or the end of a failure
                 .match(SelfExitCSMsg.class, this::onSelfExitCSMsg)
                 .match(SelfStartRecoveryMsg.class, this::onSelfStartRecoveryMsg)
+                .match(SelfHeartbeatMsg.class, this::onSelfHeartbeatMsg)
+                .match(SelfRecoveryTimeoutMsg.class, this::onSelfRecoveryTimeoutMsg)
+                .match(SelfAcquireTimeoutMsg.class, this::onSelfAcquireTimeoutMsg)
+                .match(SelfLeaseExpiredMsg.class, this::onSelfLeaseExpiredMsg)
 
                 // system messages, sent from "outside" (from the main loop)
                 .match(SystemNodeNeighbourhoodMsg.class, this::onSystemNodeNeighbourhoodMsg)
                 .match(SystemInitMsg.class, this::onSystemInitMsg)
                 .match(SystemWantCSMsg.class, this::onSystemWantCSMsg)
+                .match(SystemAcquireMsg.class, this::onSystemAcquireMsg)
+                .match(SystemReleaseMsg.class, this::onSystemReleaseMsg)
+                .match(SystemCancelMsg.class, this::onSystemCancelMsg)
                 .match(SystemFailMsg.class, this::onSystemFailMsg)
                 .match(SystemPrintHistoryMsg.class, this::onSystemPrintHistoryMsg)
+                .match(SystemMetricsMsg.class, this::onSystemMetricsMsg)
+                .match(SystemFlushHistoryMsg.class, this::onSystemFlushHistoryMsg)
                 .build();
+        return receive;
     }
 
     /*
@@ -88,36 +208,221 @@ class Node extends AbstractActor {
     */
     public static class NodeToNodeMsg implements Serializable {
         public final int senderId;
+        // position of the sender in the neighbourhood of the receiver, -1 if unknown
+        public final int senderSlot;
 
         public NodeToNodeMsg(final int senderId) {
-            this.senderId = senderId;
+            this(senderId, -1);
+        }
 
+        public NodeToNodeMsg(final int senderId, final int senderSlot) {
+            this.senderId = senderId;
+            this.senderSlot = senderSlot;
         }
     }
 
     // Messages sent from node to node
     //###############################
     public static class InitializeMsg extends NodeToNodeMsg {
+        public final int tokens; // number of tokens of the default lock
+
         public InitializeMsg(final int senderId) {
-            super(senderId);
+            this(senderId, -1);
+        }
+
+        public InitializeMsg(final int senderId, final int senderSlot) {
+            this(senderId, senderSlot, 1);
+        }
+
+        public InitializeMsg(final int senderId, final int senderSlot, final int tokens) {
+            super(senderId, senderSlot);
+            this.tokens = tokens;
+        }
+    }
+
+    // sent to the parent once every node of the subtree of the sender is initialized, nodes is their number:
+    // the acknowledgements converge to the root, which then knows the whole tree is initialized
+    public static class InitializedMsg extends NodeToNodeMsg {
+        public final int nodes;
+
+        public InitializedMsg(final int senderId, final int senderSlot, final int nodes) {
+            super(senderId, senderSlot);
+            this.nodes = nodes;
         }
     }
 
-    public static class RequestMsg extends NodeToNodeMsg {
+    // a message about one lock: resource is 0 for the default lock, the id of a named lock otherwise,
+    // token is the token of the default lock it is about (0 for the named locks)
+    public static class LockMsg extends NodeToNodeMsg {
+        public final long resource;
+        public final int token;
+
+        public LockMsg(final int senderId, final int senderSlot, final long resource) {
+            this(senderId, senderSlot, resource, 0);
+        }
+
+        public LockMsg(final int senderId, final int senderSlot, final long resource, final int token) {
+            super(senderId, senderSlot);
+            this.resource = resource;
+            this.token = token;
+        }
+    }
+
+    public static class RequestMsg extends LockMsg {
+        // does the sender only need shared grants for now?
+        public final boolean shared;
+        // the highest priority among the requests queued by the sender, 0 for the normal ones
+        public final int priority;
+
         public RequestMsg(final int senderId) {
-            super(senderId);
+            this(senderId, -1);
+        }
+
+        public RequestMsg(final int senderId, final int senderSlot) {
+            this(senderId, senderSlot, 0);
+        }
+
+        public RequestMsg(final int senderId, final int senderSlot, final long resource) {
+            this(senderId, senderSlot, resource, false);
+        }
+
+        public RequestMsg(final int senderId, final int senderSlot, final long resource, final boolean shared) {
+            this(senderId, senderSlot, resource, 0, shared);
+        }
+
+        public RequestMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                          final boolean shared) {
+            this(senderId, senderSlot, resource, token, shared, 0);
+        }
+
+        public RequestMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                          final boolean shared, final int priority) {
+            super(senderId, senderSlot, resource, token);
+            this.shared = shared;
+            this.priority = priority;
         }
     }
 
-    public static class PrivilegeMsg extends NodeToNodeMsg {
+    public static class PrivilegeMsg extends LockMsg {
+        // the fencing token of the sender, the next CS takes a higher one. Stamped when the preallocated message of
+        // the default lock is sent: the token comes back to the sender only after the receiver handled the message
+        public long fence;
+
         public PrivilegeMsg(final int senderId) {
-            super(senderId);
+            this(senderId, -1);
+        }
+
+        public PrivilegeMsg(final int senderId, final int senderSlot) {
+            this(senderId, senderSlot, 0);
+        }
+
+        public PrivilegeMsg(final int senderId, final int senderSlot, final long resource) {
+            this(senderId, senderSlot, resource, 0);
+        }
+
+        public PrivilegeMsg(final int senderId, final int senderSlot, final long resource, final int token) {
+            this(senderId, senderSlot, resource, token, 0);
+        }
+
+        public PrivilegeMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                            final long fence) {
+            super(senderId, senderSlot, resource, token);
+            this.fence = fence;
         }
     }
 
-    public static class PrivilegeAndRequestMsg extends NodeToNodeMsg {
+    public static class PrivilegeAndRequestMsg extends LockMsg {
+        // does the sender only need shared grants for now?
+        public final boolean shared;
+        // the highest priority among the requests queued by the sender, 0 for the normal ones
+        public final int priority;
+        // the fencing token of the sender, as for PrivilegeMsg
+        public long fence;
+
         public PrivilegeAndRequestMsg(final int senderId) {
-            super(senderId);
+            this(senderId, -1);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot) {
+            this(senderId, senderSlot, 0);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot, final long resource) {
+            this(senderId, senderSlot, resource, false);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot, final long resource,
+                                      final boolean shared) {
+            this(senderId, senderSlot, resource, 0, shared);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                                      final boolean shared) {
+            this(senderId, senderSlot, resource, token, shared, 0);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                                      final boolean shared, final int priority) {
+            this(senderId, senderSlot, resource, token, shared, priority, 0);
+        }
+
+        public PrivilegeAndRequestMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                                      final boolean shared, final int priority, final long fence) {
+            super(senderId, senderSlot, resource, token);
+            this.shared = shared;
+            this.priority = priority;
+            this.fence = fence;
+        }
+    }
+
+    // sent by the holder to a neighbour whose request is shared: the neighbour can grant the shared requests
+    // at the head of its queue, while the token stays with the holder
+    public static class ReadGrantMsg extends LockMsg {
+        // the fencing token of the sender: the shared CS allowed by the grant take higher ones
+        public final long fence;
+
+        public ReadGrantMsg(final int senderId, final int senderSlot, final long resource) {
+            this(senderId, senderSlot, resource, 0);
+        }
+
+        public ReadGrantMsg(final int senderId, final int senderSlot, final long resource, final int token) {
+            this(senderId, senderSlot, resource, token, 0);
+        }
+
+        public ReadGrantMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                            final long fence) {
+            super(senderId, senderSlot, resource, token);
+            this.fence = fence;
+        }
+    }
+
+    // returns count shared grants to the neighbour they were received from, once all the shared CS they allowed ended
+    public static class ReadReleaseMsg extends LockMsg {
+        public final int count;
+        // the fencing token of the sender, so that the next exclusive CS gets a higher one than the shared CS
+        public final long fence;
+
+        public ReadReleaseMsg(final int senderId, final int senderSlot, final long resource, final int count) {
+            this(senderId, senderSlot, resource, 0, count);
+        }
+
+        public ReadReleaseMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                              final int count) {
+            this(senderId, senderSlot, resource, token, count, 0);
+        }
+
+        public ReadReleaseMsg(final int senderId, final int senderSlot, final long resource, final int token,
+                              final int count, final long fence) {
+            super(senderId, senderSlot, resource, token);
+            this.count = count;
+            this.fence = fence;
+        }
+    }
+
+    // withdraws the request the sender made for the token: nothing on its side waits for it anymore
+    public static class CancelMsg extends LockMsg {
+        public CancelMsg(final int senderId, final int senderSlot, final long resource, final int token) {
+            super(senderId, senderSlot, resource, token);
         }
     }
 
@@ -125,22 +430,76 @@ class Node extends AbstractActor {
         public RestartMsg(final int senderId) {
             super(senderId);
         }
+
+        public RestartMsg(final int senderId, final int senderSlot) {
+            super(senderId, senderSlot);
+        }
     }
 
     public static class AdviseMsg extends NodeToNodeMsg {
+        // bits of the advice about a named lock
+        public static final byte YOU_ARE_MY_HOLDER = 1;
+        public static final byte ASKED = 2;
+        public static final byte YOU_ASKED_ME = 4;
+        private static final long[] NO_RESOURCES = new long[0];
+        private static final byte[] NO_ADVICE = new byte[0];
+
         // if the node requesting the Advise message is the holder for the node sending the message.
         public final boolean you_are_my_holder;
         // if the node sending the Advise message has asked for the token to its holder.
         public final boolean asked;
         // if the node requesting the Advise message is in the request queue of the node sending the message.
         public final boolean you_asked_me;
+        // the same for the named locks whose state is not the one of an idle lock (the others are implied):
+        // advice[i] holds the bits about resources[i]
+        public final long[] resources;
+        public final byte[] advice;
+        // the bits about the tokens 1 .. k-1 of the default lock, token_advice[j - 1] for token j
+        public final byte[] token_advice;
 
         public AdviseMsg(final int senderId, final boolean you_are_my_holder,
                          final boolean asked, final boolean you_asked_me) {
-            super(senderId);
+            this(senderId, -1, you_are_my_holder, asked, you_asked_me);
+        }
+
+        public AdviseMsg(final int senderId, final int senderSlot, final boolean you_are_my_holder,
+                         final boolean asked, final boolean you_asked_me) {
+            this(senderId, senderSlot, you_are_my_holder, asked, you_asked_me, NO_RESOURCES, NO_ADVICE);
+        }
+
+        public AdviseMsg(final int senderId, final int senderSlot, final boolean you_are_my_holder,
+                         final boolean asked, final boolean you_asked_me, final long[] resources, final byte[] advice) {
+            this(senderId, senderSlot, you_are_my_holder, asked, you_asked_me, resources, advice, NO_ADVICE);
+        }
+
+        public AdviseMsg(final int senderId, final int senderSlot, final boolean you_are_my_holder,
+                         final boolean asked, final boolean you_asked_me, final long[] resources, final byte[] advice,
+                         final byte[] token_advice) {
+            super(senderId, senderSlot);
             this.you_are_my_holder = you_are_my_holder;
             this.asked = asked;
             this.you_asked_me = you_asked_me;
+            this.resources = resources;
+            this.advice = advice;
+            this.token_advice = token_advice;
+        }
+    }
+
+    // sent to a neighbour we sent nothing else to for a period of the failure detector
+    public static class HeartbeatMsg extends NodeToNodeMsg {
+        public HeartbeatMsg(final int senderId, final int senderSlot) {
+            super(senderId, senderSlot);
+        }
+    }
+
+    // a node to node message with the Lamport timestamp of its send event, used when the history is persisted
+    public static class StampedMsg implements Serializable {
+        public final long timestamp;
+        public final NodeToNodeMsg msg;
+
+        public StampedMsg(final long timestamp, final NodeToNodeMsg msg) {
+            this.timestamp = timestamp;
+            this.msg = msg;
         }
     }
 
@@ -149,44 +508,194 @@ class Node extends AbstractActor {
 
     // Msg to be sent to itself to exit the CS
     public static class SelfExitCSMsg implements Serializable {
+        public final long resource;
+        public final long grant; // CS to exit, -1 for the current exclusive one
+        public final boolean shared;
+
+        public SelfExitCSMsg() {
+            this(0, -1, false);
+        }
+
+        public SelfExitCSMsg(final long resource, final long grant, final boolean shared) {
+            this.resource = resource;
+            this.grant = grant;
+            this.shared = shared;
+        }
     }
 
     // Msg to be sent to itself to exit the CS
     public static class SelfStartRecoveryMsg implements Serializable {
     }
 
+    // Msg to be sent to itself every period of the failure detector
+    public static class SelfHeartbeatMsg implements Serializable {
+    }
+
+    // Msg to be sent to itself when the neighbours did not advise us in time
+    public static class SelfRecoveryTimeoutMsg implements Serializable {
+        public final int recovery;
+
+        public SelfRecoveryTimeoutMsg(final int recovery) {
+            this.recovery = recovery;
+        }
+    }
+
+    // Msg to be sent to itself when a request made with a timeout is due, unless it was granted meanwhile
+    public static class SelfAcquireTimeoutMsg implements Serializable {
+        public final long resource;
+        public final transient CompletableFuture<Lease> future;
+
+        public SelfAcquireTimeoutMsg(final long resource, final CompletableFuture<Lease> future) {
+            this.resource = resource;
+            this.future = future;
+        }
+    }
+
+    // Msg to be sent to itself when a lease is due (NodeConfig.leaseDuration), unless it was released meanwhile
+    public static class SelfLeaseExpiredMsg implements Serializable {
+        public final long resource;
+        public final long grant;
+        public final boolean shared;
+
+        public SelfLeaseExpiredMsg(final long resource, final long grant, final boolean shared) {
+            this.resource = resource;
+            this.grant = grant;
+            this.shared = shared;
+        }
+    }
+
     // Messages sent from the system (main loop) to a node
     //###############################
 
     // we will use this to tell a node who are its neighbours
+    // (neighbourhood[i] is the actor of the node with id neighbourhood_ids[i],
+    // and the receiving node is in position reverse_slots[i] of the neighbourhood of that node)
     public static class SystemNodeNeighbourhoodMsg implements Serializable {
-        public final List<ActorRef> neighbourhood;
-        public final List<Integer> neighbourhood_ids;
+        public final ActorRef[] neighbourhood;
+        public final int[] neighbourhood_ids;
+        public final int[] reverse_slots;
 
-        public SystemNodeNeighbourhoodMsg(final List<ActorRef> neighbourhood, final List<Integer> neighbourhood_ids) {
+        public SystemNodeNeighbourhoodMsg(final ActorRef[] neighbourhood, final int[] neighbourhood_ids,
+                                          final int[] reverse_slots) {
             this.neighbourhood = neighbourhood;
             this.neighbourhood_ids = neighbourhood_ids;
+            this.reverse_slots = reverse_slots;
         }
     }
 
     // we will use this to tell a node he is the first holder of the token,
     // the node will follow by sending the InitializeMsg to all its neighbours,
     // effectively initializing the algorithm
+    // (tokens is the number of tokens of the default lock, the nodes that can be in its CS at the same time)
     public static class SystemInitMsg implements Serializable {
+        public final int tokens;
+
+        public SystemInitMsg() {
+            this(1);
+        }
+
+        public SystemInitMsg(final int tokens) {
+            if (tokens < 1)
+                throw new IllegalArgumentException("at least one token is needed: " + tokens);
+            this.tokens = tokens;
+        }
     }
 
-    // we will use this to ask a node to becoming willing to enter the CS,
+    // we will use this to ask a node to becoming willing to enter the CS (of the default lock or of a named one),
     // thus sending a RequestMsg sooner or later
     public static class SystemWantCSMsg implements Serializable {
+        public final long resource;
+        public final boolean shared;
+        public final int priority; // requests of a higher priority are served first, 0 for the normal ones
+
+        public SystemWantCSMsg() {
+            this(0);
+        }
+
+        public SystemWantCSMsg(final long resource) {
+            this(resource, false);
+        }
+
+        public SystemWantCSMsg(final long resource, final boolean shared) {
+            this(resource, shared, 0);
+        }
+
+        public SystemWantCSMsg(final long resource, final boolean shared, final int priority) {
+            this.resource = resource;
+            this.shared = shared;
+            this.priority = priority;
+        }
+    }
+
+    // we will use this to ask a node to enter the CS on behalf of a client,
+    // the future is completed with a Lease when the node enters the CS and the CS lasts until the lease is released
+    public static class SystemAcquireMsg implements Serializable {
+        public final long resource;
+        public final boolean shared; // shared CS can be held by several nodes (and clients) at the same time
+        public final int priority; // requests of a higher priority are served first, 0 for the normal ones
+        // the request is withdrawn, and the future fails with a TimeoutException, if the CS is not entered
+        // by then: -1 to wait for ever, 0 to enter only if the node holds the free token
+        public final long timeout_nanos;
+        public final transient CompletableFuture<Lease> future;
+
+        public SystemAcquireMsg(final CompletableFuture<Lease> future) {
+            this(0, future);
+        }
+
+        public SystemAcquireMsg(final long resource, final CompletableFuture<Lease> future) {
+            this(resource, false, future);
+        }
+
+        public SystemAcquireMsg(final long resource, final boolean shared, final CompletableFuture<Lease> future) {
+            this(resource, shared, 0, future);
+        }
+
+        public SystemAcquireMsg(final long resource, final boolean shared, final int priority,
+                                final CompletableFuture<Lease> future) {
+            this(resource, shared, priority, -1, future);
+        }
+
+        public SystemAcquireMsg(final long resource, final boolean shared, final int priority,
+                                final long timeout_nanos, final CompletableFuture<Lease> future) {
+            this.resource = resource;
+            this.shared = shared;
+            this.priority = priority;
+            this.timeout_nanos = timeout_nanos;
+            this.future = future;
+        }
+    }
+
+    // sent when the client of a SystemAcquireMsg gives up (cancels its future) before the CS is entered:
+    // the request is withdrawn from the queues on the way to the token
+    public static class SystemCancelMsg implements Serializable {
+        public final long resource;
+        public final transient CompletableFuture<Lease> future;
+
+        public SystemCancelMsg(final long resource, final CompletableFuture<Lease> future) {
+            this.resource = resource;
+            this.future = future;
+        }
+    }
+
+    // sent by Lease.release(), makes the node leave the CS of resource entered with the given grant
+    public static class SystemReleaseMsg implements Serializable {
+        public final long resource;
+        public final long grant;
+        public final boolean shared;
+
+        public SystemReleaseMsg(final long resource, final long grant, final boolean shared) {
+            this.resource = resource;
+            this.grant = grant;
+            this.shared = shared;
+        }
     }
-    // we will use this to ask a node to becoming willing to enter the CS,
 
     // we will use this to set a node in fail mode, after a certain time
     // it will be back to normal and start its recovery phase
     public static class SystemFailMsg implements Serializable {
     }
 
-    // we will use this to ask a node to print its history
+    // we will use this to ask a node to print its history, the node replies with the message once it is written
     public static class SystemPrintHistoryMsg implements Serializable {
         public final String filename;
 
@@ -195,6 +704,14 @@ class Node extends AbstractActor {
         }
     }
 
+    // we will use this to make a node write its pending history records to disk, the node replies with the message
+    public static class SystemFlushHistoryMsg implements Serializable {
+    }
+
+    // we will use this to ask a node for a snapshot of its metrics, the node replies with a NodeMetrics.Snapshot
+    public static class SystemMetricsMsg implements Serializable {
+    }
+
     /*
     ###########################
     Methods related to the receiving of a message.
@@ -204,193 +721,751 @@ class Node extends AbstractActor {
     // Methods for messages sent from node to node
     //###############################
 
-    private void onInitializeMsg(InitializeMsg msg) {
-        logReceivingMsg("Initialize", msg.senderId);
+    private void onStampedMsg(StampedMsg msg) {
+        log.witness(msg.timestamp);
+        receive.onMessage().apply(msg.msg);
+    }
 
-        holder = new ActorInfo(getSender(), msg.senderId);
+    private void onInitializeMsg(InitializeMsg msg) {
+        received(msg, MessageType.INITIALIZE);
+        log.received(Label.INITIALIZE, msg.senderId);
+
+        parent = neighbour(msg);
+        createTokens(msg.tokens);
+        for (LockState l : tokens)
+            l.holder = parent;
+        journal_snapshot = true;
         // flood the rest of the neighbours
         for (ActorInfo neigh : neighbours) {
-            if (neigh.reference != holder.reference) {
-                logSendingMsg("Initialize", neigh.id);
-                neigh.reference.tell(new InitializeMsg(id), getSelf());
+            if (neigh != parent) {
+                log.sent(Label.INITIALIZE, neigh.id);
+                send(neigh, initializeMsg(neigh), MessageType.INITIALIZE);
             }
         }
+        init_pending = neighbours.length - 1;
+        init_nodes = 1;
+        if (init_pending == 0)
+            initialized();
+    }
+
+    private void onInitializedMsg(InitializedMsg msg) {
+        received(msg, MessageType.INITIALIZED);
+        log.received(Label.INITIALIZED, msg.senderId);
+        init_nodes += msg.nodes;
+        if (--init_pending == 0)
+            initialized();
+    }
+
+    // our whole subtree is initialized: tell the parent, or whoever asked the root
+    private void initialized() {
+        if (parent != self) {
+            log.sent(Label.INITIALIZED, parent.id);
+            send(parent, new InitializedMsg(id, initialize_msgs[parent.slot].senderSlot, init_nodes),
+                    MessageType.INITIALIZED);
+        } else if (init_reply != null) {
+            init_reply.tell(init_nodes, getSelf());
+            init_reply = null;
+        }
     }
 
     private void onRequestMsg(RequestMsg msg) {
+        received(msg, MessageType.REQUEST);
         if (this.in_failure_mode){}
         else if (this.in_recovery_mode){
-            logReceivingMsg("Request in recovery mode", msg.senderId);
-            request_queue.add(new ActorInfo(getSender(), msg.senderId));
-            logQueueUpdate(msg.senderId);
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.REQUEST_RECOVERY, msg.senderId, tag(l));
+            enqueue(l, neighbour(msg), msg.shared, msg.priority);
         }
         else{
-            logReceivingMsg("Request", msg.senderId);
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.REQUEST, msg.senderId, tag(l));
 
-            request_queue.add(new ActorInfo(getSender(), msg.senderId));
-            logQueueUpdate(msg.senderId);
-            assignPrivilege();
-            makeRequest();
+            enqueue(l, neighbour(msg), msg.shared, msg.priority);
+            assignPrivilege(l);
+            makeRequest(l);
+            settle(l);
         }
     }
 
     private void onPrivilegeMsg(PrivilegeMsg msg) {
+        received(msg, MessageType.PRIVILEGE);
         if (this.in_failure_mode){}
         else if (this.in_recovery_mode){
-            logReceivingMsg("Privilege in recovery mode", msg.senderId);
-            holder = new ActorInfo(getSelf(), id);
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.PRIVILEGE_RECOVERY, msg.senderId, tag(l));
+            fence = Math.max(fence, msg.fence);
+            // with the token we are not asking for it anymore, even if the request it answers was lost here
+            l.holder = self;
+            l.asked = false;
         }
         else {
-            logReceivingMsg("Privilege", msg.senderId);
-            holder = new ActorInfo(getSelf(), id);
-            assignPrivilege();
-            makeRequest();
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.PRIVILEGE, msg.senderId, tag(l));
+            fence = Math.max(fence, msg.fence);
+            l.holder = self;
+            l.asked = false;
+            assignPrivilege(l);
+            makeRequest(l);
+            settle(l);
         }
     }
 
     private void onPrivilegeAndRequestMsg(PrivilegeAndRequestMsg msg) {
-        logReceivingMsg("PrivilegeAndRequest", msg.senderId);
-        holder = new ActorInfo(getSelf(), id);
-        request_queue.add(new ActorInfo(getSender(), msg.senderId));
-        logQueueUpdate(msg.senderId);
-        assignPrivilege();
-        makeRequest();
+        received(msg, MessageType.PRIVILEGE_AND_REQUEST);
+        if (this.in_failure_mode){}
+        else if (this.in_recovery_mode){
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.PRIVILEGE_AND_REQUEST_RECOVERY, msg.senderId, tag(l));
+            fence = Math.max(fence, msg.fence);
+            l.holder = self;
+            l.asked = false;
+            enqueue(l, neighbour(msg), msg.shared, msg.priority);
+        }
+        else {
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.PRIVILEGE_AND_REQUEST, msg.senderId, tag(l));
+            fence = Math.max(fence, msg.fence);
+            l.holder = self;
+            l.asked = false;
+            enqueue(l, neighbour(msg), msg.shared, msg.priority);
+            assignPrivilege(l);
+            makeRequest(l);
+            settle(l);
+        }
+    }
+
+    private void onReadGrantMsg(ReadGrantMsg msg) {
+        received(msg, MessageType.READ_GRANT);
+        if (this.in_failure_mode){}
+        else if (this.in_recovery_mode){
+            ActorInfo from = neighbour(msg);
+            // a grant sent before the Advise of its sender was forgotten by the sender when it got our Restart,
+            // a later one is kept until the end of the recovery
+            if (advised[from.slot]) {
+                LockState l = lockState(msg.resource, msg.token);
+                log.received(Label.READ_GRANT_RECOVERY, msg.senderId, tag(l));
+                fence = Math.max(fence, msg.fence);
+                receivedReadGrant(l);
+            }
+        }
+        else {
+            LockState l = lockState(msg.resource, msg.token);
+            log.received(Label.READ_GRANT, msg.senderId, tag(l));
+            fence = Math.max(fence, msg.fence);
+            receivedReadGrant(l);
+            serveReadGrants(l);
+            makeRequest(l);
+            settle(l);
+        }
+    }
+
+    private void onReadReleaseMsg(ReadReleaseMsg msg) {
+        received(msg, MessageType.READ_RELEASE);
+        // a node holding shared grants cannot fail, and neither can the node they were granted by
+        if (this.in_failure_mode || this.in_recovery_mode){}
+        else {
+            LockState l = msg.resource == 0 ? token(msg.token) : named_locks.get(msg.resource);
+            ActorInfo from = neighbour(msg);
+            log.received(Label.READ_RELEASE, msg.senderId, l == null ? EventLog.NAMED_LOCK : tag(l));
+            fence = Math.max(fence, msg.fence);
+            if (l != null && dropReadGrants(l, from, msg.count)) {
+                releaseReadGrants(l);
+                assignPrivilege(l);
+                makeRequest(l);
+                settle(l);
+            }
+        }
+    }
+
+    private void onCancelMsg(CancelMsg msg) {
+        received(msg, MessageType.CANCEL);
+        if (this.in_failure_mode){}
+        else {
+            // the request of the sender may have been served already, then there is nothing to withdraw;
+            // during recovery our own request is not withdrawn until the end of it
+            LockState l = msg.resource == 0 ? token(msg.token) : named_locks.get(msg.resource);
+            log.received(Label.CANCEL, msg.senderId, l == null ? EventLog.NAMED_LOCK : tag(l));
+            if (l != null) {
+                removeFromQueue(l, neighbour(msg).slot);
+                assignPrivilege(l);
+                retract(l);
+                settle(l);
+            }
+        }
     }
 
     private void onRestartMsg(RestartMsg msg) {
-        logReceivingMsg("Restart", msg.senderId);
-        boolean you_are_my_holder = getSender() == holder.reference;
-        boolean you_asked_me = request_queue.contains(new ActorInfo(getSender(), msg.senderId));
+        ActorInfo from = neighbour(msg);
+        // the neighbour lost its state: the messages we held back for it are summed up by the Advise we send now
+        if (held_back != null)
+            held_back.get(from.slot).clear();
+        received(msg, MessageType.RESTART);
+        log.received(Label.RESTART, msg.senderId);
+        // a failed node knows nothing it could advise about: the neighbour asks again after our own Restart
+        if (in_failure_mode)
+            return;
+
+        if (!in_recovery_mode) {
+            sendAdvise(from);
+        } else {
+            // we advise a recovering neighbour once our advice about the link to it is final (see answerRestarts)
+            restart_pending[from.slot] = true;
+            // a neighbour recovering as we are may have dropped our Restart while it was failed
+            if (!advised[from.slot] && !restarted_again[from.slot]) {
+                restarted_again[from.slot] = true;
+                log.sent(Label.RESTART_SENT, from.id);
+                send(from, restart_msgs[from.slot], MessageType.RESTART);
+            }
+            answerRestarts();
+        }
+
+        // the shared grants we sent the neighbour were lost with its failure (or are dropped on arrival)
+        List<LockState> released = new ArrayList<>();
+        for (LockState l : tokens) {
+            if (dropReadGrants(l, from, Integer.MAX_VALUE))
+                released.add(l);
+        }
+        named_locks.forEach(l -> {
+            if (dropReadGrants(l, from, Integer.MAX_VALUE))
+                released.add(l);
+        });
+        if (!in_recovery_mode) {
+            for (LockState l : released) {
+                releaseReadGrants(l);
+                assignPrivilege(l);
+                makeRequest(l);
+                settle(l);
+            }
+        }
+    }
+
+    // answers the Restart of a neighbour with the state of our locks towards it
+    private void sendAdvise(ActorInfo from) {
+        // during our recovery a lock whose holder is not known yet is on the side of our parent, the only
+        // neighbour we advise before the end of the recovery
+        boolean you_are_my_holder = from == holderOf(lock);
+        boolean you_asked_me = lock.request_queue.contains(from.slot);
+
+        // the advice about a named lock we keep no state for is the one of an idle lock (our holder is our parent,
+        // we did not ask and nobody asked us): only the named locks whose advice differs from it are sent
+        long[] resources = new long[named_locks.size()];
+        byte[] advice = new byte[named_locks.size()];
+        int[] count = {0};
+        named_locks.forEach(l -> {
+            boolean holder = holderOf(l) == from;
+            boolean asked_me = l.request_queue.contains(from.slot);
+            if (holder != (parent == from) || (holder && l.asked) || asked_me) {
+                resources[count[0]] = l.resource;
+                advice[count[0]++] = (byte) ((holder ? AdviseMsg.YOU_ARE_MY_HOLDER : 0)
+                        | (l.asked ? AdviseMsg.ASKED : 0) | (asked_me ? AdviseMsg.YOU_ASKED_ME : 0));
+            }
+        });
+
+        // the other tokens of the default lock are always advised about
+        byte[] token_advice = new byte[tokens.length - 1];
+        for (int j = 1; j < tokens.length; j++) {
+            LockState l = tokens[j];
+            token_advice[j - 1] = (byte) ((holderOf(l) == from ? AdviseMsg.YOU_ARE_MY_HOLDER : 0)
+                    | (l.asked ? AdviseMsg.ASKED : 0) | (l.request_queue.contains(from.slot) ? AdviseMsg.YOU_ASKED_ME : 0));
+        }
+
+        log.sent(Label.ADVISE, from.id);
+        config.countMessage(MessageType.ADVISE);
+        metrics.sent(MessageType.ADVISE);
+        // our slot in the neighbourhood of the requester is the one carried by every message we send it
+        AdviseMsg advise = new AdviseMsg(id, request_msgs[from.slot].senderSlot, you_are_my_holder, lock.asked,
+                you_asked_me, Arrays.copyOf(resources, count[0]), Arrays.copyOf(advice, count[0]), token_advice);
+        config.transport.send(from.reference, log.isPersistent() ? new StampedMsg(log.clock(), advise) : advise,
+                getSelf());
+    }
 
-        logSendingMsg("Advise", msg.senderId);
-        getSender().tell(new AdviseMsg(id, you_are_my_holder, asked, you_asked_me), getSelf());
+    private ActorInfo holderOf(LockState l) {
+        return l.holder == null ? parent : l.holder;
+    }
+
+    /*
+    the advice about the link to a neighbour only depends on what is on our other side of the tree: during our
+    recovery we advise our recovering parent once all our children advised us, and our recovering children once
+    the recovery is over. The recoveries of adjacent nodes thus go up to the topmost one and back down: a token no
+    recovering node was told about is found missing only there, and regenerated once
+     */
+    private void answerRestarts() {
+        if (parent != self && restart_pending[parent.slot] && !advised[parent.slot]
+                && total_advise_msgs_received == neighbours.length - 1) {
+            restart_pending[parent.slot] = false;
+            sendAdvise(parent);
+        }
     }
 
     private void onAdviseMsg(AdviseMsg msg) {
-        logReceivingMsg("Advise", msg.senderId);
+        received(msg, MessageType.ADVISE);
+        log.received(Label.ADVISE, msg.senderId);
+        ActorInfo from = neighbour(msg);
+        // a second answer, to a Restart we sent again
+        if (advised[from.slot] || in_failure_mode)
+            return;
+        advised[from.slot] = true;
+        if (!in_recovery_mode) {
+            lateAdvise(msg, from);
+            return;
+        }
         total_advise_msgs_received++;
 
-        // note that msg.asked and mgs.you_asked_me are mutually exclusive
-        if (msg.asked && msg.you_are_my_holder) {
-            // if the other node asked us for the PRIVILEGE we enqueue it
-            request_queue.add(new ActorInfo(getSender(), msg.senderId));
-            logQueueUpdate(msg.senderId);
-        } else if (!msg.you_are_my_holder) {
+        advise(lock, from, msg.you_are_my_holder, msg.asked, msg.you_asked_me);
+        for (int j = 1; j <= msg.token_advice.length; j++) {
+            byte bits = msg.token_advice[j - 1];
+            advise(token(j), from, (bits & AdviseMsg.YOU_ARE_MY_HOLDER) != 0, (bits & AdviseMsg.ASKED) != 0,
+                    (bits & AdviseMsg.YOU_ASKED_ME) != 0);
+        }
+        for (int i = 0; i < msg.resources.length; i++) {
+            LockState l = lockState(msg.resources[i], 0);
+            if (from == parent)
+                l.advised_by_parent = true;
+            advise(l, from, (msg.advice[i] & AdviseMsg.YOU_ARE_MY_HOLDER) != 0, (msg.advice[i] & AdviseMsg.ASKED) != 0,
+                    (msg.advice[i] & AdviseMsg.YOU_ASKED_ME) != 0);
+        }
+
+        // if we received all Advise messages we can get out of the recovery phase
+        // holder, asked, and the request queue have been incrementally built each time we received a msg
+        if (total_advise_msgs_received == neighbours.length)
+            exitRecovery();
+        else
+            answerRestarts();
+    }
+
+    // the Advise of a neighbour we ended the recovery without: the holders were known without it, the requests
+    // it advises about are queued
+    private void lateAdvise(AdviseMsg msg, ActorInfo from) {
+        List<LockState> asked = new ArrayList<>();
+        if (msg.asked && msg.you_are_my_holder)
+            asked.add(lock);
+        for (int j = 1; j <= msg.token_advice.length && j < tokens.length; j++) {
+            if ((msg.token_advice[j - 1] & (AdviseMsg.ASKED | AdviseMsg.YOU_ARE_MY_HOLDER))
+                    == (AdviseMsg.ASKED | AdviseMsg.YOU_ARE_MY_HOLDER))
+                asked.add(token(j));
+        }
+        for (int i = 0; i < msg.resources.length; i++) {
+            if ((msg.advice[i] & (AdviseMsg.ASKED | AdviseMsg.YOU_ARE_MY_HOLDER))
+                    == (AdviseMsg.ASKED | AdviseMsg.YOU_ARE_MY_HOLDER))
+                asked.add(lockState(msg.resources[i], 0));
+        }
+        for (LockState l : asked) {
+            enqueue(l, from, false, 0);
+            assignPrivilege(l);
+            makeRequest(l);
+            settle(l);
+        }
+    }
+
+    private void onSelfRecoveryTimeoutMsg(SelfRecoveryTimeoutMsg msg) {
+        if (!in_recovery_mode || msg.recovery != recoveries)
+            return;
+        recovery_rounds++;
+        if (recovery_rounds >= config.recovery_retries && holdersKnown()) {
+            exitRecovery();
+            return;
+        }
+        // the Restart or the Advise may have been lost, a neighbour still recovering answers when it can
+        for (ActorInfo neigh : neighbours) {
+            if (!advised[neigh.slot]) {
+                log.sent(Label.RESTART_SENT, neigh.id);
+                send(neigh, restart_msgs[neigh.slot], MessageType.RESTART);
+            }
+        }
+        config.transport.schedule(getContext(), config.recovery_timeout, msg);
+    }
+
+    /*
+    the neighbours still silent after the retries can be failed themselves, or waiting for failed ones: the recovery
+    ends without them if they cannot have any token. That is the case when our parent advised us and every token
+    is known to be on the side of another neighbour (or here). A named lock no neighbour told us about is on the
+    side of the parent, unless the parent said it is on ours
+     */
+    private boolean holdersKnown() {
+        if (parent != self && !advised[parent.slot])
+            return false;
+        for (LockState l : tokens) {
+            if (l.holder == null)
+                return false;
+        }
+        boolean[] known = {true};
+        named_locks.forEach(l -> {
+            if (l.holder == null && l.advised_by_parent)
+                known[0] = false;
+        });
+        return known[0];
+    }
+
+    private void exitRecovery() {
+        in_recovery_mode = false;
+        log.record(Event.EXITED_RECOVERY, -1, 0);
+        metrics.recoveryEnded(config.transport.nanoTime());
+        updateGauges();
+        journal_snapshot = true;
+        // a token no neighbour said is on its side is here
+        for (LockState l : tokens) {
+            if (l.holder == null)
+                l.holder = self;
+        }
+        // a named lock no neighbour told us about the holder of is held by us if our parent said it is not
+        // our holder, otherwise it is held on the side of our parent, as if the parent had advised so
+        List<LockState> recovered = new ArrayList<>(named_locks.size());
+        named_locks.forEach(recovered::add);
+        for (LockState l : recovered) {
+            if (l.holder == null)
+                l.holder = l.advised_by_parent ? self : parent;
+            l.advised_by_parent = false;
+        }
+
+        // the advice we owe the recovering neighbours is final now
+        for (ActorInfo neigh : neighbours) {
+            if (restart_pending[neigh.slot]) {
+                restart_pending[neigh.slot] = false;
+                sendAdvise(neigh);
+            }
+        }
+        // and the requests withdrawn meanwhile are withdrawn on the way to the token
+        for (LockState l : tokens) {
+            serveReadGrants(l);
+            assignPrivilege(l);
+            makeRequest(l);
+            retract(l);
+        }
+        for (LockState l : recovered) {
+            serveReadGrants(l);
+            assignPrivilege(l);
+            makeRequest(l);
+            retract(l);
+            settle(l);
+        }
+    }
+
+    // rebuilds the state of a lock from the advice of a neighbour
+    private void advise(LockState l, ActorInfo from, boolean you_are_my_holder, boolean asked, boolean you_asked_me) {
+        // note that asked and you_asked_me are mutually exclusive
+        if (asked && you_are_my_holder) {
+            // if the other node asked us for the PRIVILEGE we enqueue it, in the mode that serves any request
+            enqueue(l, from, false, 0);
+        } else if (!you_are_my_holder) {
             /*
             if the receiving node is not the holder of the sender, then the sender is the holder
             of the receiver (this node)
              */
-            holder = new ActorInfo(getSender(), msg.senderId);
-
-            // did we ask our holder for the privilege?
-            if (msg.you_asked_me)
-                asked = true;
+            l.holder = from;
+
+            // did we ask our holder for the privilege? A shared request of the normal priority is assumed:
+            // if we need the token for an exclusive or urgent request we ask again, and the holder upgrades the queued one
+            if (you_asked_me) {
+                l.asked = true;
+                l.asked_shared = true;
+                l.asked_priority = 0;
+            }
         }
+    }
 
-        // if we received all Advise messages we can get out of the recovery phase
-        // holder, asked, and the request queue have been incrementally built each time we received a msg
-        if (total_advise_msgs_received == neighbours.size()) {
-            in_recovery_mode = false;
-            logExitRecoveryMode();
-            assignPrivilege();
-            makeRequest();
-        }
+    private void onHeartbeatMsg(HeartbeatMsg msg) {
+        // counted as any message of the neighbour, it only tells us the neighbour is alive
+        received(msg, MessageType.HEARTBEAT);
     }
 
     // Methods for messages sent from a node to itself
     //###############################
 
     private void onSelfExitCSMsg(SelfExitCSMsg msg) {
-        logReceivingMsg("ExitCS", id);
-        String to_log = String.format("Node %02d exited CS\n", this.id);
-        history.append(to_log);
-        System.out.print(to_log);
+        LockState l = grantedLock(msg.resource, msg.grant);
+        if (msg.resource == 0)
+            log.received(Label.EXIT_CS, id);
+        if (l != null && msg.shared)
+            exitShared(l, msg.grant);
+        else if (l != null && l.using && l.timed_cs && (msg.grant < 0 || msg.grant == l.grant))
+            exitCS(l);
+    }
 
-        using = false;
-        assignPrivilege();
-        makeRequest();
+    private void onSelfLeaseExpiredMsg(SelfLeaseExpiredMsg msg) {
+        LockState l = grantedLock(msg.resource, msg.grant);
+        // a lease released in time has nothing to revoke
+        if (l == null || (msg.shared ? l.findReader(msg.grant) < 0 : !l.using || l.timed_cs || l.grant != msg.grant))
+            return;
+        // the client is too late: the CS is left on its behalf, and its late work is told apart by its fence
+        metrics.revoked++;
+        if (l.resource == 0)
+            log.record(Event.REVOKED, -1, msg.shared ? EventLog.SHARED : 0);
+        if (msg.shared)
+            exitShared(l, msg.grant);
+        else
+            exitCS(l);
     }
 
     private void onSelfStartRecoveryMsg(SelfStartRecoveryMsg msg) {
-        logReceivingMsg("SelfStartRecoveryMsg", id);
+        log.received(Label.START_RECOVERY, id);
         // we are now in recovery mode
         in_failure_mode = false;
         in_recovery_mode = true;
-        using = false;
+        metrics.recoveryStarted(config.transport.nanoTime());
 
         // throughout the recovery these fields will be modified/updated incrementally each time
         // we receive ad advise msg
-        asked = false;
-        holder = new ActorInfo(getSelf(), id);
-        request_queue = new ArrayDeque<>();
+        for (LockState l : tokens) {
+            l.using = false;
+            l.asked = false;
+            l.asked_shared = false;
+            l.asked_priority = 0;
+            // not known until a neighbour says the token is on its side
+            l.holder = null;
+            l.request_queue.clear();
+        }
+        Arrays.fill(advised, false);
+        Arrays.fill(restarted_again, false);
+        recovery_rounds = 0;
+        config.transport.schedule(getContext(), config.recovery_timeout, new SelfRecoveryTimeoutMsg(++recoveries));
+        log.record(Event.QUEUE_CLEAR, -1, 0);
+        if (last_heard != null)
+            resetDetector(config.transport.nanoTime());
+        // the named locks are rebuilt from scratch, as they are advised about
+        named_locks.clear();
+        updateGauges();
         // we will use this to decide when the recovery is over
         total_advise_msgs_received = 0;
 
+        // with a checkpoint, the state of the locks towards the neighbours we missed no message of is the journaled
+        // one: only the others are asked for advice
+        CheckpointJournal.Checkpoint checkpoint = journal == null ? null : loadCheckpoint();
+        if (checkpoint != null) {
+            for (ActorInfo neigh : neighbours) {
+                if (!missed[neigh.slot]) {
+                    advised[neigh.slot] = true;
+                    total_advise_msgs_received++;
+                }
+            }
+            restore(checkpoint);
+        }
+
         // ask all neighbours for Advise Msgs
         for (ActorInfo neigh : neighbours) {
-            logSendingMsg("RESTART", neigh.id);
-            neigh.reference.tell(new RestartMsg(id), getSelf());
+            if (!advised[neigh.slot]) {
+                log.sent(Label.RESTART_SENT, neigh.id);
+                send(neigh, restart_msgs[neigh.slot], MessageType.RESTART);
+            }
+        }
+        if (total_advise_msgs_received == neighbours.length)
+            exitRecovery();
+    }
+
+    // the journaled state of the locks, null if there is none
+    private CheckpointJournal.Checkpoint loadCheckpoint() {
+        try {
+            return journal.load();
+        } catch (IOException e) {
+            logger.error(e, "cannot load the checkpoint, recovering from the advice of the neighbours");
+            return null;
+        }
+    }
+
+    // rebuilds the state of the locks from the checkpoint, but for the neighbours we missed messages of: they are
+    // taken out of the queues, and a lock they held for us is held by us until they advise otherwise (for a token,
+    // or a named lock held by our parent, the rule of a full recovery applies)
+    private void restore(CheckpointJournal.Checkpoint checkpoint) {
+        int parent_slot = parent == self ? CheckpointJournal.SELF : parent.slot;
+        List<CheckpointJournal.LockRecord> records = new ArrayList<>(checkpoint.tokens.values());
+        for (CheckpointJournal.LockRecord r : checkpoint.named_locks.values()) {
+            if (r.holder != parent_slot || r.asked || r.queue.length > (contains(r.queue, neighbours.length) ? 1 : 0))
+                records.add(r);
+        }
+        for (CheckpointJournal.LockRecord r : records) {
+            LockState l = r.resource == 0 ? token(r.token) : lockState(r.resource, 0);
+            ActorInfo holder = r.holder == CheckpointJournal.SELF ? self : neighbours[r.holder];
+            boolean missed_holder = holder != self && missed[holder.slot];
+            l.holder = !missed_holder ? holder : holder == parent || l.resource == 0 ? null : self;
+            // the mode and priority of our request are not known, as after an Advise
+            l.asked = r.asked && !missed_holder;
+            l.asked_shared = l.asked;
+            // our own entry went with our local requests
+            for (int slot : r.queue) {
+                if (slot < neighbours.length && !missed[slot])
+                    enqueue(l, neighbours[slot], false, 0);
+            }
+        }
+    }
+
+    private static boolean contains(int[] slots, int slot) {
+        for (int s : slots) {
+            if (s == slot)
+                return true;
         }
+        return false;
+    }
+
+    private void onSelfHeartbeatMsg(SelfHeartbeatMsg msg) {
+        long now = config.transport.nanoTime();
+        // a failed node is silent
+        if (!in_failure_mode) {
+            for (ActorInfo neigh : neighbours) {
+                // the messages of the algorithm tell the neighbour we are alive too: only a link we sent nothing on
+                // since the previous period carries a Heartbeat
+                if (last_sent[neigh.slot] <= last_tick)
+                    send(neigh, heartbeat_msgs[neigh.slot], MessageType.HEARTBEAT);
+                if (!suspected[neigh.slot] && now - last_heard[neigh.slot] > config.suspect_nanos)
+                    suspect(neigh);
+            }
+        }
+        last_tick = now;
+        config.transport.schedule(getContext(), config.heartbeat_interval, heartbeat_tick);
     }
 
     // Methods for messages sent from the system to a node
     //###############################
 
     private void onSystemNodeNeighbourhoodMsg(SystemNodeNeighbourhoodMsg msg) {
-        // build all pairs of (actor reference, id)
-        List<ActorInfo> neighbours = new ArrayList<>();
-        Iterator<ActorRef> refIte = msg.neighbourhood.iterator();
-        Iterator<Integer> idIte = msg.neighbourhood_ids.iterator();
-        while (refIte.hasNext() && idIte.hasNext()) {
-            neighbours.add(new ActorInfo(refIte.next(), idIte.next()));
+        // build all pairs of (actor reference, id), and the messages we will send to each neighbour
+        int n = msg.neighbourhood.length;
+        neighbours = new ActorInfo[n];
+        initialize_msgs = new InitializeMsg[n];
+        request_msgs = new RequestMsg[n];
+        privilege_msgs = new PrivilegeMsg[n];
+        privilege_and_request_msgs = new PrivilegeAndRequestMsg[n];
+        restart_msgs = new RestartMsg[n];
+        advised = new boolean[n];
+        restart_pending = new boolean[n];
+        restarted_again = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            neighbours[i] = new ActorInfo(msg.neighbourhood[i], msg.neighbourhood_ids[i], i);
+            int slot = msg.reverse_slots == null ? -1 : msg.reverse_slots[i];
+            initialize_msgs[i] = new InitializeMsg(id, slot);
+            request_msgs[i] = new RequestMsg(id, slot);
+            privilege_msgs[i] = new PrivilegeMsg(id, slot);
+            privilege_and_request_msgs[i] = new PrivilegeAndRequestMsg(id, slot);
+            restart_msgs[i] = new RestartMsg(id, slot);
+        }
+        lock.request_queue = new SlotQueue(n + 1);
+        if (journal != null)
+            missed = new boolean[n];
+
+        if (config.heartbeat_interval != null) {
+            last_heard = new long[n];
+            last_sent = new long[n];
+            suspected = new boolean[n];
+            held_back = new ArrayList<>(n);
+            heartbeat_msgs = new HeartbeatMsg[n];
+            for (int i = 0; i < n; i++) {
+                held_back.add(new ArrayDeque<>());
+                heartbeat_msgs[i] = new HeartbeatMsg(id, initialize_msgs[i].senderSlot);
+            }
+            resetDetector(config.transport.nanoTime());
+            config.transport.schedule(getContext(), config.heartbeat_interval, heartbeat_tick);
         }
-        this.neighbours = Collections.unmodifiableList(neighbours);
-
 
-        String to_log = String.format("Node %02d neighbourhood: %s\n", this.id, msg.neighbourhood_ids);
-        history.append(to_log);
-        System.out.print(to_log);
+        log.neighbourhood(msg.neighbourhood_ids);
+        unstashAll();
     }
 
     private void onSystemInitMsg(SystemInitMsg msg) {
-        logReceivingMsg("SystemInitMessage", -1);
-        // i am the holder now
-        holder = new ActorInfo(getSelf(), id);
+        log.received(Label.SYSTEM_INIT, -1);
+        // i am the holder now, of the default lock and of all the named ones
+        parent = self;
+        createTokens(msg.tokens);
+        for (LockState l : tokens)
+            l.holder = self;
+        journal_snapshot = true;
         // flood neighbours
 
         for (ActorInfo neigh : neighbours) {
-            logSendingMsg("Initialize", neigh.id);
-            neigh.reference.tell(new InitializeMsg(id), getSelf());
+            log.sent(Label.INITIALIZE, neigh.id);
+            send(neigh, initializeMsg(neigh), MessageType.INITIALIZE);
         }
+        // the number of nodes goes back to the sender, if any, once they all are initialized
+        init_reply = getSender() == getContext().getSystem().deadLetters() ? null : getSender();
+        init_pending = neighbours.length;
+        init_nodes = 1;
+        if (init_pending == 0)
+            initialized();
     }
 
     private void onSystemWantCSMsg(SystemWantCSMsg msg) {
         if (this.in_failure_mode){}
         else if (this.in_recovery_mode){
-            logReceivingMsg("SystemWantCSMsg in recovery mode", -1);
-            if (!queueContainsSelf())
-                request_queue.add(new ActorInfo(getSelf(), id));
-                logQueueUpdate(id);
+            log.received(Label.SYSTEM_WANT_CS_RECOVERY, -1);
+            addLocalRequest(localLockState(msg.resource), null, msg.shared, msg.priority);
         }
         else {
-            logReceivingMsg("SystemWantCSMsg", -1);
-            if (!queueContainsSelf())
-                request_queue.add(new ActorInfo(getSelf(), id));
-                logQueueUpdate(id);
-            assignPrivilege();
-            makeRequest();
+            log.received(Label.SYSTEM_WANT_CS, -1);
+            LockState l = localLockState(msg.resource);
+            addLocalRequest(l, null, msg.shared, msg.priority);
+            assignPrivilege(l);
+            makeRequest(l);
         }
     }
 
+    private void onSystemAcquireMsg(SystemAcquireMsg msg) {
+        if (this.in_failure_mode) {
+            msg.future.completeExceptionally(new IllegalStateException("node " + id + " is in failure mode"));
+            return;
+        }
+        else if (this.in_recovery_mode) {
+            log.received(Label.SYSTEM_WANT_CS_RECOVERY, -1);
+            addLocalRequest(localLockState(msg.resource), msg.future, msg.shared, msg.priority);
+        }
+        else {
+            log.received(Label.SYSTEM_WANT_CS, -1);
+            LockState l = localLockState(msg.resource);
+            addLocalRequest(l, msg.future, msg.shared, msg.priority);
+            assignPrivilege(l);
+            // without waiting, the request is not sent on: the CS is free only if the token is here
+            if (msg.timeout_nanos != 0)
+                makeRequest(l);
+        }
+        if (msg.timeout_nanos == 0)
+            onSelfAcquireTimeoutMsg(new SelfAcquireTimeoutMsg(msg.resource, msg.future));
+        else if (msg.timeout_nanos > 0 && !msg.future.isDone())
+            config.transport.schedule(getContext(), FiniteDuration.create(msg.timeout_nanos, TimeUnit.NANOSECONDS),
+                    new SelfAcquireTimeoutMsg(msg.resource, msg.future));
+    }
+
+    private void onSystemCancelMsg(SystemCancelMsg msg) {
+        if (!this.in_failure_mode)
+            withdraw(msg.resource, msg.future);
+    }
+
+    private void onSelfAcquireTimeoutMsg(SelfAcquireTimeoutMsg msg) {
+        // a request granted in time, or failed with the node, is not waiting anymore
+        if (!this.in_failure_mode && withdraw(msg.resource, msg.future))
+            msg.future.completeExceptionally(new TimeoutException("node " + id + " did not enter the CS in time"));
+    }
+
+    private void onSystemReleaseMsg(SystemReleaseMsg msg) {
+        LockState l = grantedLock(msg.resource, msg.grant);
+        // ignore releases of leases that already ended
+        if (l != null && msg.shared)
+            exitShared(l, msg.grant);
+        else if (l != null && l.using && !l.timed_cs && msg.grant == l.grant)
+            exitCS(l);
+    }
+
     private void onSystemFailMsg(SystemFailMsg msg) {
-        logReceivingMsg("SystemFailMsg", -1);
-        // node cannot fail in recovery mode and while is in critical section by assumption
-        if (!in_recovery_mode && !using) {
+        log.received(Label.SYSTEM_FAIL, -1);
+        // node cannot fail in recovery mode and while is in critical section by assumption (shared CS granted
+        // through the node included),
+        // a failed node is already failed (a second recovery could start while the node is back in a CS)
+        if (!in_failure_mode && !in_recovery_mode && !inCS()) {
             in_failure_mode = true;
+            // local state is lost with the failure, clients waiting for the CS are told so
+            for (LockState l : tokens)
+                failLocalRequests(l);
+            named_locks.forEach(this::failLocalRequests);
+            named_locks.clear();
+            if (missed != null)
+                Arrays.fill(missed, false);
+            if (held_back != null) {
+                // the lock messages held back for a neighbour are lost, as the ones it sends us
+                for (int i = 0; i < held_back.size(); i++) {
+                    if (missed != null && !held_back.get(i).isEmpty())
+                        missed[i] = true;
+                    held_back.get(i).clear();
+                }
+            }
+            updateGauges();
             // send a recovery message to yourself to simulate the end of the failure in the future
             SelfStartRecoveryMsg rec_msg = new SelfStartRecoveryMsg();
-            context().system().scheduler().scheduleOnce(FAILURE_DURATION, getSelf(),
-                    rec_msg, context().system().dispatcher(), null);
+            config.transport.schedule(getContext(), config.failure_duration, rec_msg);
         }
     }
 
@@ -399,12 +1474,22 @@ class Node extends AbstractActor {
         FileWriter fileWriter = null;
         try {
             fileWriter = new FileWriter(msg.filename, true);
-            fileWriter.write(history.toString());
+            log.formatHistory(fileWriter);
             fileWriter.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error(e, "cannot write the history to {}", msg.filename);
         }
+        // the history is written, whoever asked for it can read the file
+        getSender().tell(msg, getSelf());
+    }
 
+    private void onSystemFlushHistoryMsg(SystemFlushHistoryMsg msg) {
+        log.flushHistory();
+        getSender().tell(msg, getSelf());
+    }
+
+    private void onSystemMetricsMsg(SystemMetricsMsg msg) {
+        getSender().tell(metrics.snapshot(id), getSelf());
     }
 
     /*
@@ -413,107 +1498,882 @@ class Node extends AbstractActor {
     ##########################
      */
 
-    private void makeRequest() {
-        if ((holder.reference != getSelf()) && (!request_queue.isEmpty()) && (!asked)) {
-            logSendingMsg("Request", holder.id);
-            holder.reference.tell(new RequestMsg(id), getSelf());
-            asked = true;
+    private void makeRequest(LockState l) {
+        if ((l.holder == self) || l.request_queue.isEmpty())
+            return;
+        // a request only needs shared grants if all the queued ones do, an exclusive request queued after
+        // we asked for shared grants is sent again to upgrade ours
+        // the same for a request of a higher priority than the one we asked with
+        boolean shared = queueShared(l);
+        int priority = queuePriority(l);
+        if (!l.asked || (l.asked_shared && !shared) || priority > l.asked_priority) {
+            log.sent(Label.REQUEST, l.holder.id, tag(l));
+            send(l.holder, l == lock && !shared && priority == 0 ? request_msgs[l.holder.slot]
+                    : new RequestMsg(id, slotAt(l.holder), l.resource, l.token, shared, priority), MessageType.REQUEST);
+            l.asked = true;
+            l.asked_shared = shared;
+            l.asked_priority = priority;
+            updateGauges();
         }
     }
 
-    private void assignPrivilege() {
-        if ((holder.reference == getSelf()) && (!using) && (!request_queue.isEmpty())) {
-            holder = request_queue.removeFirst();
-            asked = false;
+    private void assignPrivilege(LockState l) {
+        // the shared requests at the head of the queue are granted together, the token stays here
+        while ((l.holder == self) && (!l.using) && (!l.request_queue.isEmpty()) && isShared(l, peekNext(l))) {
+            l.asked = false;
+            grantShared(l, pollNext(l));
+        }
+        // an exclusive request waits for the end of the shared CS granted before it
+        if ((l.holder == self) && (!l.using) && l.readers == 0 && (!l.request_queue.isEmpty())) {
+            l.holder = entry(pollNext(l));
+            l.asked = false;
 
             // if we are the holder we can use the CS, if interested
-            if (holder.reference == getSelf()) {
-                using = true;
-
-                // simulate CS duration by a message that is sent to us in the future
-                context().system().scheduler().scheduleOnce(CS_DURATION, getSelf(),
-                        new SelfExitCSMsg(), context().system().dispatcher(), null);
-
-                String to_log = String.format("Node %02d entered CS\n", this.id);
-                history.append(to_log);
-                System.out.print(to_log);
+            if (l.holder == self) {
+                l.batched = 0;
+                enterCS(l);
+            } else if (config.piggyback && !l.request_queue.isEmpty()) {
+                // we still have requests to serve: the request for the privilege travels with it,
+                // instead of being sent by makeRequest as a separate message
+                boolean shared = queueShared(l);
+                int priority = queuePriority(l);
+                log.sent(Label.PRIVILEGE_AND_REQUEST, l.holder.id, tag(l));
+                send(l.holder, l == lock && !shared && priority == 0 ? privilegeAndRequestMsg(l.holder)
+                        : new PrivilegeAndRequestMsg(id, slotAt(l.holder), l.resource, l.token, shared, priority, fence),
+                        MessageType.PRIVILEGE_AND_REQUEST);
+                l.asked = true;
+                l.asked_shared = shared;
+                l.asked_priority = priority;
             } else {
                 // if we are not the new holder send the Privilege to the new one
-                logSendingMsg("Privilege", holder.id);
-                holder.reference.tell(new PrivilegeMsg(id), getSelf());
+                sendPrivilege(l, l.holder);
             }
+            updateGauges();
+        }
+    }
+
+    // grants a shared request: ours enter the CS, a neighbour is allowed to grant the shared requests it queued
+    private void grantShared(LockState l, int slot) {
+        ActorInfo to = entry(slot);
+        if (to == self) {
+            enterShared(l);
+        } else {
+            if (l.read_grants == null)
+                l.read_grants = new int[neighbours.length];
+            l.read_grants[slot]++;
+            l.readers++;
+            log.sent(Label.READ_GRANT, to.id, tag(l));
+            send(to, new ReadGrantMsg(id, slotAt(to), l.resource, l.token, fence), MessageType.READ_GRANT);
+        }
+        updateGauges();
+    }
+
+    private void receivedReadGrant(LockState l) {
+        l.held_grants++;
+        if (l.asked_shared)
+            l.asked = false;
+    }
+
+    // with shared grants from our holder, the shared requests at the head of our queue are granted in turn;
+    // the ones queued later ask the holder again, so that they do not overtake an exclusive request there
+    private void serveReadGrants(LockState l) {
+        if (l.held_grants == 0)
+            return;
+        while (!l.request_queue.isEmpty() && isShared(l, peekNext(l))) {
+            // a request of our holder made before it got the token back from us is dropped: granting it
+            // would make each of us wait for the release of the other
+            int slot = pollNext(l);
+            if (entry(slot) != l.holder)
+                grantShared(l, slot);
+        }
+        releaseReadGrants(l);
+    }
+
+    // once all the shared CS allowed through this node ended, the grants received for them go back to our holder
+    private void releaseReadGrants(LockState l) {
+        if (l.readers == 0 && l.held_grants > 0) {
+            log.sent(Label.READ_RELEASE, l.holder.id, tag(l));
+            send(l.holder, new ReadReleaseMsg(id, slotAt(l.holder), l.resource, l.token, l.held_grants, fence),
+                    MessageType.READ_RELEASE);
+            l.held_grants = 0;
         }
     }
 
-    private void logReceivingMsg(final String msg_type, final int from_id) {
-        String to_log = String.format("Node %02d received %s msg from node %02d\n", this.id, msg_type, from_id);
-        history.append(to_log);
-        System.out.print(to_log);
+    // forgets up to count shared grants sent to a neighbour, returns true if it was the last shared CS running
+    private boolean dropReadGrants(LockState l, ActorInfo from, int count) {
+        if (l.read_grants == null || l.read_grants[from.slot] == 0)
+            return false;
+        count = Math.min(count, l.read_grants[from.slot]);
+        l.read_grants[from.slot] -= count;
+        l.readers -= count;
+        return l.readers == 0;
     }
 
+    private void sendPrivilege(LockState l, ActorInfo to) {
+        log.sent(Label.PRIVILEGE, to.id, tag(l));
+        send(to, l == lock ? privilegeMsg(to) : new PrivilegeMsg(id, slotAt(to), l.resource, l.token, fence),
+                MessageType.PRIVILEGE);
+    }
 
-    private void logSendingMsg(final String msg_type, final int to_id) {
-        String to_log = String.format("Node %02d sent %s msg to node %02d\n", this.id, msg_type, to_id);
-        history.append(to_log);
-        System.out.print(to_log);
+    // the preallocated Privilege of the default lock for a neighbour, stamped with our fence
+    private PrivilegeMsg privilegeMsg(ActorInfo to) {
+        PrivilegeMsg msg = privilege_msgs[to.slot];
+        msg.fence = fence;
+        return msg;
     }
 
-    private void logExitRecoveryMode(){
-        String to_log = String.format("Node %02d exited recovery mode\n", this.id);
-        history.append(to_log);
-        System.out.print(to_log);
+    private PrivilegeAndRequestMsg privilegeAndRequestMsg(ActorInfo to) {
+        PrivilegeAndRequestMsg msg = privilege_and_request_msgs[to.slot];
+        msg.fence = fence;
+        return msg;
     }
 
-    private void logQueueUpdate(int lastNode){
-        ArrayList<Integer> nodes = new ArrayList<>();
-        for (ActorInfo node : this.request_queue){
-            nodes.add(node.id);
+    /**
+     * keeps the state of the named locks proportional to their use: a token nobody here is waiting for
+     * goes back to the root, and the state of a lock that is back to the one of an idle lock is dropped
+     */
+    private void settle(LockState l) {
+        if (l.resource == 0 || in_recovery_mode)
+            return;
+        if (l.holder == self && parent != self && !l.using && l.readers == 0 && l.request_queue.isEmpty()) {
+            l.holder = parent;
+            sendPrivilege(l, parent);
         }
+        if (l.isIdle()) {
+            named_locks.remove(l.resource);
+            metrics.locks = named_locks.size();
+        }
+    }
 
-        String to_log = String.format("Node %02d added node %02d to its queue\n" +
-                "Queue content of node %02d: %s\n", this.id, lastNode, this.id, nodes.toString());
-        history.append(to_log);
-        System.out.print(to_log);
+    private void enterCS(LockState l) {
+        l.using = true;
+        l.grant = ++grants;
+        long now = config.transport.nanoTime();
+        l.entered_at = now;
+
+        LocalRequest request = l.local_requests.pollFirst();
+        metrics.enteredCS(request == null ? -1 : now - request.since, request != null && request.priority > 0);
+        if (l.resource == 0)
+            log.record(Event.ENTERED_CS, -1, 0);
+        config.cs_listener.onEnterCS(id, l.resource, false);
+
+        l.timed_cs = request == null || request.future == null;
+        if (request != null && request.future == null)
+            l.timed_requested = false;
+        ++fence;
+        if (l.timed_cs) {
+            // simulate CS duration by a message that is sent to us in the future
+            config.transport.schedule(getContext(), config.cs_duration,
+                    l == lock ? exit_cs_msg : new SelfExitCSMsg(l.resource, l.grant, false));
+        } else {
+            grantLease(l, request, l.grant, false, now);
+        }
+    }
 
+    // hands a lease to the client of a request, to be revoked when it expires; if the client gave up
+    // (cancelled the future) the CS is left immediately
+    private void grantLease(LockState l, LocalRequest request, long grant, boolean shared, long now) {
+        long expires_at = config.lease_nanos == 0 ? Long.MAX_VALUE : now + config.lease_nanos;
+        if (!request.future.complete(new Lease(getSelf(), id, l.resource, grant, fence, shared, expires_at,
+                config.transport)))
+            config.transport.send(getSelf(), new SystemReleaseMsg(l.resource, grant, shared), getSelf());
+        else if (config.lease_nanos > 0)
+            config.transport.schedule(getContext(), FiniteDuration.create(config.lease_nanos, TimeUnit.NANOSECONDS),
+                    new SelfLeaseExpiredMsg(l.resource, grant, shared));
+    }
 
+    // enters a shared CS for each of the shared requests at the head of the local ones, all at once
+    private void enterShared(LockState l) {
+        long now = config.transport.nanoTime();
+        while (!l.local_requests.isEmpty() && l.local_requests.peekFirst().shared) {
+            LocalRequest request = l.local_requests.pollFirst();
+            long grant = ++grants;
+            l.addReader(grant, now);
+            metrics.enteredCS(now - request.since, request.priority > 0);
+            if (l.resource == 0)
+                log.record(Event.ENTERED_CS, -1, EventLog.SHARED);
+            config.cs_listener.onEnterCS(id, l.resource, true);
+
+            ++fence;
+            if (request.future == null) {
+                l.timed_shared_requested = false;
+                config.transport.schedule(getContext(), config.cs_duration, new SelfExitCSMsg(l.resource, grant, true));
+            } else {
+                grantLease(l, request, grant, true, now);
+            }
+        }
+        // an exclusive local request is next, it needs the token
+        if (!l.local_requests.isEmpty() && !queueContainsSelf(l))
+            enqueue(l, self, false, 0);
+    }
 
+    // leaves the shared CS entered with the given grant, if it did not end already
+    private void exitShared(LockState l, long grant) {
+        int reader = l.findReader(grant);
+        if (reader < 0)
+            return;
+        long now = config.transport.nanoTime();
+        metrics.exitedCS(now - l.removeReader(reader));
+        if (l.resource == 0)
+            log.record(Event.EXITED_CS, -1, EventLog.SHARED);
+        config.cs_listener.onExitCS(id, l.resource, true);
+
+        releaseReadGrants(l);
+        assignPrivilege(l);
+        makeRequest(l);
+        settle(l);
     }
 
-    // utility classes
-    class ActorInfo {
-        public final ActorRef reference;
-        public final int id;
+    private void exitCS(LockState l) {
+        if (l.resource == 0)
+            log.record(Event.EXITED_CS, -1, 0);
+        metrics.exitedCS(config.transport.nanoTime() - l.entered_at);
+        config.cs_listener.onExitCS(id, l.resource, false);
+
+        l.using = false;
+        // other local requests are waiting: the next ones of a batch enter the CS at once, unless a queued request
+        // is more urgent, so that the token moves once for several of them
+        if (!l.local_requests.isEmpty() && ++l.batched < config.local_batch && !l.local_requests.peekFirst().shared
+                && queuePriority(l) <= l.local_requests.peekFirst().priority) {
+            if (queueContainsSelf(l))
+                removeFromQueue(l, neighbours.length);
+            enterCS(l);
+            return;
+        }
+        // otherwise we need the privilege again
+        if (!l.local_requests.isEmpty() && !queueContainsSelf(l))
+            enqueue(l, self, false, 0);
+        assignPrivilege(l);
+        makeRequest(l);
+        settle(l);
+    }
 
-        public ActorInfo(final ActorRef reference, final int id) {
-            this.reference = reference;
-            this.id = id;
+    // registers a local request for the CS (future null for a SystemWantCSMsg), the node queues itself once for all of them
+    private void addLocalRequest(LockState l, CompletableFuture<Lease> future, boolean shared, int priority) {
+        long now = config.transport.nanoTime();
+        // like the original SystemWantCSMsg, a timed request is not duplicated (one per mode),
+        // the waiting one takes the higher priority
+        if (future != null || !(shared ? l.timed_shared_requested : l.timed_requested)) {
+            insertLocalRequest(l, new LocalRequest(future, now, shared, priority), now);
+            if (future == null && shared)
+                l.timed_shared_requested = true;
+            else if (future == null)
+                l.timed_requested = true;
+        } else if (priority > 0) {
+            for (Iterator<LocalRequest> it = l.local_requests.iterator(); it.hasNext(); ) {
+                LocalRequest request = it.next();
+                if (request.future == null && request.shared == shared && request.priority < priority) {
+                    it.remove();
+                    insertLocalRequest(l, new LocalRequest(null, request.since, shared, priority), now);
+                    break;
+                }
+            }
         }
+        if (!queueContainsSelf(l))
+            enqueue(l, self, false, 0);
+    }
 
-        @Override
-        public boolean equals(Object o) {
+    // local requests are served by priority, aged like the queued ones: a request goes after the ones that are
+    // at least as urgent, their waiting time included
+    private void insertLocalRequest(LockState l, LocalRequest request, long now) {
+        if (request.priority > 0)
+            usePriorities(l, now);
+        if (request.priority == 0 || l.local_requests.isEmpty()) {
+            l.local_requests.addLast(request);
+            return;
+        }
+        int ahead = 0;
+        for (LocalRequest r : l.local_requests) {
+            if (aged(r.priority, r.since, now) < request.priority)
+                break;
+            ahead++;
+        }
+        LocalRequest[] first = new LocalRequest[ahead];
+        for (int i = 0; i < ahead; i++)
+            first[i] = l.local_requests.pollFirst();
+        l.local_requests.addFirst(request);
+        for (int i = ahead - 1; i >= 0; i--)
+            l.local_requests.addFirst(first[i]);
+    }
+
+    // the clients waiting for the CS of a lock are told that the node failed
+    private void failLocalRequests(LockState l) {
+        for (LocalRequest request : l.local_requests) {
+            if (request.future != null)
+                request.future.completeExceptionally(new IllegalStateException("node " + id + " failed"));
+        }
+        l.local_requests.clear();
+        l.timed_requested = false;
+        l.timed_shared_requested = false;
+    }
 
-            if (o == this) {
+    // withdraws the waiting local request of a future, returns false if it is not waiting (granted, or failed):
+    // once no local request is left our entry leaves the queue, and a token that comes for it is passed on at once
+    private boolean withdraw(long resource, CompletableFuture<Lease> future) {
+        if (resource != 0)
+            return withdraw(named_locks.get(resource), future);
+        for (LockState l : tokens) {
+            if (withdraw(l, future))
                 return true;
+        }
+        return false;
+    }
+
+    private boolean withdraw(LockState l, CompletableFuture<Lease> future) {
+        if (l == null)
+            return false;
+        for (Iterator<LocalRequest> it = l.local_requests.iterator(); it.hasNext(); ) {
+            if (it.next().future == future) {
+                it.remove();
+                if (l.local_requests.isEmpty() && queueContainsSelf(l))
+                    removeFromQueue(l, neighbours.length);
+                if (!in_recovery_mode) {
+                    // our exclusive request may have held back shared ones queued after it
+                    assignPrivilege(l);
+                    retract(l);
+                    settle(l);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // nobody here waits for the token anymore: the request we sent for it is withdrawn, and so on by each node
+    // on the way whose queue it empties. A token already on its way comes anyway, and goes on from here
+    // (links are FIFO: a later request of ours cannot overtake the Cancel)
+    private void retract(LockState l) {
+        if (l.holder == self || l.holder == null || !l.asked || !l.request_queue.isEmpty() || in_recovery_mode)
+            return;
+        log.sent(Label.CANCEL, l.holder.id, tag(l));
+        send(l.holder, new CancelMsg(id, slotAt(l.holder), l.resource, l.token), MessageType.CANCEL);
+        l.asked = false;
+        updateGauges();
+    }
+
+    // is the node in the CS of any lock, or are shared CS granted through it still running?
+    private boolean inCS() {
+        for (LockState l : tokens) {
+            if (l.using || l.readers > 0 || l.held_grants > 0)
+                return true;
+        }
+        boolean[] using = {false};
+        named_locks.forEach(l -> using[0] |= l.using || l.readers > 0 || l.held_grants > 0);
+        return using[0];
+    }
+
+    // sends a message to a neighbour, counting it
+    private void send(ActorInfo to, NodeToNodeMsg msg, MessageType type) {
+        config.countMessage(type);
+        metrics.sent(type);
+        // the timestamp is the one of the SENT event just recorded
+        Object wire = log.isPersistent() ? new StampedMsg(log.clock(), msg) : msg;
+        if (journal != null && msg instanceof LockMsg)
+            changed((LockMsg) msg);
+        if (last_sent != null) {
+            // a suspected neighbour gets the messages of the locks once it is heard from again, in order
+            if (suspected[to.slot] && msg instanceof LockMsg) {
+                held_back.get(to.slot).add(wire);
+                return;
+            }
+            last_sent[to.slot] = config.transport.nanoTime();
+        }
+        config.transport.send(to.reference, wire, getSelf());
+    }
+
+    // counts a message of a neighbour, which also tells us it is alive
+    private void received(NodeToNodeMsg msg, MessageType type) {
+        metrics.received(type);
+        // a neighbour that restarted meanwhile waits for our advice too
+        if (journal != null && in_failure_mode && (msg instanceof LockMsg || msg instanceof RestartMsg))
+            missed[neighbour(msg).slot] = true;
+        else if (journal != null && msg instanceof LockMsg)
+            changed((LockMsg) msg);
+        if (last_heard != null) {
+            ActorInfo from = neighbour(msg);
+            last_heard[from.slot] = config.transport.nanoTime();
+            if (suspected[from.slot])
+                trust(from);
+        }
+    }
+
+    // the neighbour was silent for longer than the detection bound: the clients waiting here for a token on its side
+    // are told at once (their requests stay queued, a token that comes back later is passed on), and the messages of
+    // the locks for it are held back until it is heard from again
+    private void suspect(ActorInfo neigh) {
+        suspected[neigh.slot] = true;
+        metrics.suspected(1);
+        log.record(Event.SUSPECTED, neigh.id, 0);
+        for (LockState l : tokens) {
+            if (l.holder == neigh)
+                failWaiting(l, neigh);
+        }
+        named_locks.forEach(l -> {
+            if (l.holder == neigh)
+                failWaiting(l, neigh);
+        });
+    }
+
+    // a lock message sent or received changes the state of its lock
+    private void changed(LockMsg msg) {
+        if (changed == changed_resources.length) {
+            changed_resources = Arrays.copyOf(changed_resources, 2 * changed);
+            changed_tokens = Arrays.copyOf(changed_tokens, 2 * changed);
+        }
+        changed_resources[changed] = msg.resource;
+        changed_tokens[changed++] = msg.token;
+    }
+
+    // journals the state of the locks changed by the message just handled, or of all of them
+    private void checkpoint() {
+        // a failed node changes nothing, a recovering one journals all its locks at the end
+        if (in_failure_mode || in_recovery_mode) {
+            changed = 0;
+            return;
+        }
+        try {
+            if (journal_snapshot) {
+                for (LockState l : tokens)
+                    journalLock(l);
+                named_locks.forEach(this::journalLock);
+                journal.rewrite();
+            } else {
+                for (int i = 0; i < changed; i++) {
+                    LockState l = changed_resources[i] == 0 ? token(changed_tokens[i]) : named_locks.get(changed_resources[i]);
+                    // a named lock with no state is idle
+                    if (l == null)
+                        journal.put(changed_resources[i], 0, parent == self ? CheckpointJournal.SELF : parent.slot,
+                                false, EMPTY_QUEUE);
+                    else
+                        journalLock(l);
+                }
+                journal.commit();
+            }
+        } catch (IOException e) {
+            // the node goes on without checkpoints, it recovers from the advice of all its neighbours
+            logger.error(e, "cannot write the checkpoint, journaling disabled");
+            journal = null;
+        }
+        changed = 0;
+        journal_snapshot = journal != null && journal.size() > config.journal_bytes;
+        if (journal_snapshot)
+            checkpoint();
+    }
+
+    private void journalLock(LockState l) {
+        ActorInfo holder = l.holder == null ? parent : l.holder;
+        journal.put(l.resource, l.token, holder == self ? CheckpointJournal.SELF : holder.slot, l.asked,
+                l.request_queue);
+    }
+
+    // a suspected neighbour is alive after all (or recovered): what we held back for it is sent now
+    private void trust(ActorInfo neigh) {
+        suspected[neigh.slot] = false;
+        metrics.suspected(-1);
+        log.record(Event.TRUSTED, neigh.id, 0);
+        ArrayDeque<Object> messages = held_back.get(neigh.slot);
+        if (!messages.isEmpty())
+            last_sent[neigh.slot] = config.transport.nanoTime();
+        while (!messages.isEmpty())
+            config.transport.send(neigh.reference, messages.pollFirst(), getSelf());
+    }
+
+    // every neighbour is alive as of now
+    private void resetDetector(long now) {
+        Arrays.fill(last_heard, now);
+        Arrays.fill(last_sent, now);
+        for (int i = 0; i < suspected.length; i++) {
+            if (suspected[i])
+                metrics.suspected(-1);
+        }
+        Arrays.fill(suspected, false);
+        for (ArrayDeque<Object> messages : held_back)
+            messages.clear();
+        last_tick = now;
+    }
+
+    // the clients waiting for the CS of a lock are failed, their requests are left to be served by an immediate exit
+    private void failWaiting(LockState l, ActorInfo suspect) {
+        for (LocalRequest request : l.local_requests) {
+            if (request.future != null)
+                request.future.completeExceptionally(new IllegalStateException("node " + id + " suspects node "
+                        + suspect.id + " failed, on the way to the token"));
+        }
+    }
+
+    // publishes the current queue depth and asked flag of the default lock (over all its tokens),
+    // and the number of named locks
+    private void updateGauges() {
+        int depth = 0;
+        boolean asked = false;
+        for (LockState l : tokens) {
+            depth += l.request_queue.size();
+            asked |= l.asked;
+        }
+        metrics.queueDepth(depth);
+        metrics.asked = asked;
+        metrics.locks = named_locks.size();
+    }
+
+    // appends a request to the queue of a lock, logging the insertion; our own mode and priority are the ones of
+    // our local requests, shared and priority are the ones of a neighbour's request
+    private void enqueue(LockState l, ActorInfo requester, boolean shared, int priority) {
+        // a node is never queued twice (e.g. a request and an Advise for the same request during recovery)
+        int slot = queueSlot(requester);
+        if (l.request_queue.add(slot)) {
+            if (requester != self && (shared || l.shared_slots != null)) {
+                if (l.shared_slots == null)
+                    l.shared_slots = new boolean[neighbours.length];
+                l.shared_slots[slot] = shared;
+            }
+            if (requester != self && (priority > 0 || l.slot_priority != null)) {
+                long now = config.transport.nanoTime();
+                usePriorities(l, now);
+                l.slot_priority[slot] = priority;
+                l.queued_at[slot] = now;
+            }
+            if (l == lock)
+                log.record(Event.QUEUE_ADD, requester.id, l.request_queue.size() - 1);
+            updateGauges();
+        } else if (requester != self) {
+            // an exclusive or more urgent request upgrades the one queued for the same neighbour
+            if (!shared && l.shared_slots != null)
+                l.shared_slots[slot] = false;
+            if (priority > 0) {
+                usePriorities(l, config.transport.nanoTime());
+                l.slot_priority[slot] = Math.max(l.slot_priority[slot], priority);
+            }
+        }
+    }
+
+    // from the first request of a higher priority on, the requests of a lock are served by priority
+    private void usePriorities(LockState l, long now) {
+        if (l.slot_priority == null) {
+            l.slot_priority = new int[neighbours.length];
+            // the requests queued so far are aged from now on
+            l.queued_at = new long[neighbours.length];
+            Arrays.fill(l.queued_at, now);
+        }
+    }
+
+    // a priority raised by one for each aging period waited, so that no request starves
+    private long aged(int priority, long since, long now) {
+        return priority + (now - since) / config.aging_nanos;
+    }
+
+    // the aged priority of the request queued in the given slot, ours being the one of our most urgent local request
+    private long agedPriority(LockState l, int slot, long now) {
+        if (slot != neighbours.length)
+            return aged(l.slot_priority[slot], l.queued_at[slot], now);
+        long max = 0;
+        for (LocalRequest request : l.local_requests)
+            max = Math.max(max, aged(request.priority, request.since, now));
+        return max;
+    }
+
+    // position in the queue of the request served next: the head, or with priorities in use the one of the highest
+    // aged priority (the oldest of them for a tie)
+    private int nextIndex(LockState l) {
+        if (l.slot_priority == null)
+            return 0;
+        long now = config.transport.nanoTime();
+        int next = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < l.request_queue.size(); i++) {
+            long priority = agedPriority(l, l.request_queue.get(i), now);
+            if (priority > max) {
+                max = priority;
+                next = i;
             }
+        }
+        return next;
+    }
+
+    // the slot of the request served next
+    private int peekNext(LockState l) {
+        return l.request_queue.get(nextIndex(l));
+    }
+
+    // removes the request served next from the queue, logging the removal
+    private int pollNext(LockState l) {
+        int i = nextIndex(l);
+        int slot = l.request_queue.removeAt(i);
+        if (l == lock)
+            log.record(Event.QUEUE_REMOVE, entry(slot).id, i);
+        return slot;
+    }
 
-            if (!(o instanceof ActorInfo)) {
+    // removes the request of a slot wherever it is in the queue, logging the removal
+    private void removeFromQueue(LockState l, int slot) {
+        if (!l.request_queue.contains(slot))
+            return;
+        for (int i = 0; i < l.request_queue.size(); i++) {
+            if (l.request_queue.get(i) == slot) {
+                l.request_queue.removeAt(i);
+                if (l == lock)
+                    log.record(Event.QUEUE_REMOVE, entry(slot).id, i);
+                updateGauges();
+                return;
+            }
+        }
+    }
+
+    // the highest priority among the queued requests, the one we ask our holder with (it is aged by each node
+    // on the way, from the time the request reached it)
+    private int queuePriority(LockState l) {
+        if (l.slot_priority == null)
+            return 0;
+        int max = 0;
+        for (int i = 0; i < l.request_queue.size(); i++) {
+            int slot = l.request_queue.get(i);
+            if (slot != neighbours.length) {
+                max = Math.max(max, l.slot_priority[slot]);
+            } else {
+                for (LocalRequest request : l.local_requests)
+                    max = Math.max(max, request.priority);
+            }
+        }
+        return max;
+    }
+
+    // is the request queued in the given slot a shared one?
+    private boolean isShared(LockState l, int slot) {
+        if (slot == neighbours.length)
+            return !l.local_requests.isEmpty() && l.local_requests.peekFirst().shared;
+        return l.shared_slots != null && l.shared_slots[slot];
+    }
+
+    // are all the queued requests shared?
+    private boolean queueShared(LockState l) {
+        for (int i = 0; i < l.request_queue.size(); i++) {
+            if (!isShared(l, l.request_queue.get(i)))
                 return false;
+        }
+        return true;
+    }
+
+    // the state of a lock (of one of the tokens of the default lock), created for a named lock we keep no state for
+    private LockState lockState(long resource, int token) {
+        if (resource == 0)
+            return token(token);
+        LockState l = named_locks.get(resource);
+        if (l == null) {
+            // an idle lock: its holder is our parent, unless we are rebuilding our state from the advice
+            // of our neighbours, the holder is then found at the end of the recovery
+            l = new LockState(resource, 0, in_recovery_mode ? null : parent, neighbours.length + 1);
+            named_locks.put(resource, l);
+            metrics.locks = named_locks.size();
+        }
+        return l;
+    }
+
+    // the state of a lock a local request waits for: for the default lock, one of its tokens
+    private LockState localLockState(long resource) {
+        return resource == 0 ? pickToken() : lockState(resource, 0);
+    }
+
+    // the token of the default lock a new local request waits for: one that is here and free if any, otherwise
+    // the next one, in turn, we did not queue ourselves for, so that our requests wait for different tokens
+    private LockState pickToken() {
+        if (tokens.length == 1)
+            return lock;
+        for (LockState l : tokens) {
+            if (l.holder == self && !l.using && l.readers == 0 && l.request_queue.isEmpty())
+                return l;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            LockState l = tokens[next_token];
+            next_token = (next_token + 1) % tokens.length;
+            if (!queueContainsSelf(l))
+                return l;
+        }
+        LockState least = lock;
+        for (LockState l : tokens) {
+            if (l.local_requests.size() < least.local_requests.size())
+                least = l;
+        }
+        return least;
+    }
+
+    // the state of the lock a CS of this node was entered with, null if it ended with the state of its named lock:
+    // the token of the default lock is the one holding the grant, grants being unique in the node
+    private LockState grantedLock(long resource, long grant) {
+        if (resource != 0)
+            return named_locks.get(resource);
+        for (LockState l : tokens) {
+            if ((l.using && l.grant == grant) || l.findReader(grant) >= 0)
+                return l;
+        }
+        return lock;
+    }
+
+    // a token of the default lock, the ones a neighbour knows about before us are created on their first message
+    private LockState token(int token) {
+        if (token >= tokens.length)
+            createTokens(token + 1);
+        return tokens[token];
+    }
+
+    // creates the tokens of the default lock up to k, their holder is our parent like for an idle named lock
+    private void createTokens(int k) {
+        int n = tokens.length;
+        if (k <= n)
+            return;
+        tokens = Arrays.copyOf(tokens, k);
+        for (int j = n; j < k; j++)
+            tokens[j] = new LockState(0, j, in_recovery_mode ? self : parent, neighbours.length + 1);
+    }
+
+    // the InitializeMsg for a neighbour, the preallocated one is for a single token
+    private InitializeMsg initializeMsg(ActorInfo neigh) {
+        return tokens.length == 1 ? initialize_msgs[neigh.slot] : new InitializeMsg(id, slotAt(neigh), tokens.length);
+    }
+
+    // the lock marker of the messages logged about a lock
+    private int tag(LockState l) {
+        if (l.resource != 0)
+            return EventLog.NAMED_LOCK;
+        return l.token == 0 ? 0 : EventLog.TOKEN + l.token;
+    }
+
+    // the neighbour that sent msg, found through the slot carried by the message
+    private ActorInfo neighbour(NodeToNodeMsg msg) {
+        int slot = msg.senderSlot;
+        if (slot >= 0 && slot < neighbours.length && neighbours[slot].id == msg.senderId)
+            return neighbours[slot];
+        for (ActorInfo neigh : neighbours) {
+            if (neigh.id == msg.senderId)
+                return neigh;
+        }
+        throw new IllegalArgumentException("node " + msg.senderId + " is not a neighbour of node " + id);
+    }
+
+    // our slot in the neighbourhood of a neighbour
+    private int slotAt(ActorInfo neigh) {
+        return request_msgs[neigh.slot].senderSlot;
+    }
+
+    // utility classes
+
+    // state of the token of one lock as seen by this node, as in the original single lock algorithm
+    final class LockState {
+        final long resource;
+        final int token; // the token of the default lock, 0 for the named locks
+        ActorInfo holder; // who is the holder for this node
+        boolean using; // is the node in the CS?
+        boolean asked; // has the node asked for the PRIVILEGE token to its holder?
+        // Queue where to store requests incoming from neighbours: slots of the neighbours, neighbours.length for the node itself
+        SlotQueue request_queue;
+        // local requests for the CS, served in order each time the node enters it
+        final Deque<LocalRequest> local_requests;
+        boolean timed_requested; // is a SystemWantCSMsg among the local requests?
+        long grant; // grant of the current CS, identifies its lease
+        boolean timed_cs; // is the current CS ended by a timer instead of a client release?
+        long entered_at;
+        boolean advised_by_parent; // during recovery: did our parent send advice about this lock?
+
+        // shared mode: the token stays with its holder, shared grants go down the paths of the shared requests
+        boolean[] shared_slots; // mode of the requests queued by each neighbour slot, null until a shared one is queued
+        boolean asked_shared; // was the request sent to our holder a shared one?
+        boolean timed_shared_requested; // is a shared SystemWantCSMsg among the local requests?
+        int reading; // shared CS this node is in
+        long[] read_leases; // grant and entry time of each of them, in pairs
+        int readers; // shared CS allowed by this node and not ended: ours and the grants sent to neighbours
+        int[] read_grants; // shared grants sent to each neighbour slot and not released, null until the first one
+        int held_grants; // shared grants received from our holder and not released yet
+
+        // priorities: requests of a higher priority are served first, every request gaining one per aging period.
+        // The queue holds at most one request per neighbour and ours, so the served one is found by a scan of it,
+        // O(degree) per hand-off (about 2.4 us with 512 queued requests, see RequestQueueBenchmark.slotsByPriority):
+        // whole aging periods reorder the requests as time passes, a heap would need rebuilding as often
+        int asked_priority; // priority of the request sent to our holder
+        int[] slot_priority; // priority of the request queued by each neighbour slot, null until priorities are used
+        long[] queued_at; // when the request of each neighbour slot was queued
+        int batched; // CS entered in a row by our local requests since the token came through the queue
+
+        LockState(final long resource, final int token, final ActorInfo holder, final int queue_capacity) {
+            this.resource = resource;
+            this.token = token;
+            this.holder = holder;
+            this.request_queue = new SlotQueue(queue_capacity);
+            this.local_requests = new ArrayDeque<>(2);
+        }
+
+        // same state as a lock nobody used yet
+        boolean isIdle() {
+            return holder == parent && !using && !asked && request_queue.isEmpty() && local_requests.isEmpty()
+                    && readers == 0 && held_grants == 0;
+        }
+
+        void addReader(final long grant, final long now) {
+            if (read_leases == null || read_leases.length == 2 * reading)
+                read_leases = Arrays.copyOf(read_leases == null ? new long[0] : read_leases, 2 * reading + 4);
+            read_leases[2 * reading] = grant;
+            read_leases[2 * reading + 1] = now;
+            reading++;
+            readers++;
+        }
+
+        // index of the shared CS entered with grant, -1 if it ended
+        int findReader(final long grant) {
+            for (int i = 0; i < reading; i++) {
+                if (read_leases[2 * i] == grant)
+                    return i;
             }
-            ActorInfo ai = (ActorInfo) o;
+            return -1;
+        }
 
-            // Compare the data members and return accordingly
-            return Integer.compare(this.id, ai.id) == 0;
+        // ends a shared CS, returns its entry time
+        long removeReader(final int i) {
+            long entered_at = read_leases[2 * i + 1];
+            reading--;
+            readers--;
+            read_leases[2 * i] = read_leases[2 * reading];
+            read_leases[2 * i + 1] = read_leases[2 * reading + 1];
+            return entered_at;
+        }
+    }
 
+    // a local request for the CS: the future of a client that called acquire, or null for a SystemWantCSMsg
+    // (CS left on a timer)
+    static final class LocalRequest {
+        final CompletableFuture<Lease> future;
+        final long since; // when the request was made, for the request to grant latency
+        final boolean shared;
+        final int priority;
+
+        LocalRequest(final CompletableFuture<Lease> future, final long since, final boolean shared, final int priority) {
+            this.future = future;
+            this.since = since;
+            this.shared = shared;
+            this.priority = priority;
         }
     }
 
-    private boolean queueContainsSelf(){
-        for(ActorInfo ai:this.request_queue){
-            if (ai.id == this.id)
-                return true;
+    class ActorInfo {
+        public final ActorRef reference;
+        public final int id;
+        public final int slot; // position in the neighbourhood, -1 for the node itself
+
+        public ActorInfo(final ActorRef reference, final int id, final int slot) {
+            this.reference = reference;
+            this.id = id;
+            this.slot = slot;
         }
-        return false;
     }
 
-}
+    private boolean queueContainsSelf(LockState l){
+        return l.request_queue.contains(neighbours.length);
+    }
+
+    // slot of a node in the request queue
+    private int queueSlot(ActorInfo node) {
+        return node == self ? neighbours.length : node.slot;
+    }
 
+    // node of a slot of the request queue
+    private ActorInfo entry(int slot) {
+        return slot == neighbours.length ? self : neighbours[slot];
+    }
+
+}
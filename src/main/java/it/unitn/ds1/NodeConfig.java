@@ -0,0 +1,213 @@
+package it.unitn.ds1;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Settings shared by all the nodes of a DistributedMutEx instance.
+ * The defaults reproduce the original behaviour (5 seconds failures, 10 seconds critical sections).
+ */
+public class NodeConfig {
+
+    /**
+     * callback invoked by a node when it enters/exits the critical section.
+     * It runs on the thread of the node actor, so it must not block.
+     */
+    public interface CSListener {
+        void onEnterCS(int node);
+
+        void onExitCS(int node);
+
+        // called for every lock, by default only the default lock (resource 0) is reported to the methods above
+        default void onEnterCS(int node, long resource) {
+            if (resource == 0)
+                onEnterCS(node);
+        }
+
+        default void onExitCS(int node, long resource) {
+            if (resource == 0)
+                onExitCS(node);
+        }
+
+        // called for every CS, shared ones included: by default a shared CS is reported as any other
+        default void onEnterCS(int node, long resource, boolean shared) {
+            onEnterCS(node, resource);
+        }
+
+        default void onExitCS(int node, long resource, boolean shared) {
+            onExitCS(node, resource);
+        }
+    }
+
+    private static final CSListener NO_LISTENER = new CSListener() {
+        @Override
+        public void onEnterCS(int node) {
+        }
+
+        @Override
+        public void onExitCS(int node) {
+        }
+    };
+
+    FiniteDuration failure_duration = new FiniteDuration(5, TimeUnit.SECONDS);
+    FiniteDuration cs_duration = new FiniteDuration(10, TimeUnit.SECONDS);
+    CSListener cs_listener = NO_LISTENER;
+    boolean piggyback = true;
+    long aging_nanos = TimeUnit.SECONDS.toNanos(1); // a queued request gains one priority per aging period
+    int local_batch = 1; // CS entered in a row by the local requests of a node before the token is passed on
+    long lease_nanos = 0; // time after which a node revokes the lease of a client, 0 for no limit
+    FiniteDuration heartbeat_interval = null; // period of the failure detector, null when it is off
+    long suspect_nanos; // silence after which a neighbour is suspected to have failed
+    FiniteDuration recovery_timeout = new FiniteDuration(1, TimeUnit.SECONDS); // wait for Advise messages before asking again
+    int recovery_retries = 3; // timeouts after which a recovery can end without the silent neighbours
+    Transport transport = Transport.AKKA;
+    Path history_dir = null; // where the nodes persist their histories, null to keep them in memory only
+    long history_segment_bytes = 64 << 20;
+    Path journal_dir = null; // where the nodes journal their lock states, null to rebuild them from the neighbours
+    long journal_bytes = 1 << 20; // journal size after which it is rewritten with the current states only
+
+    // number of node to node messages sent by all the nodes, by type
+    final LongAdder[] messages = new LongAdder[MessageType.values().length];
+
+    public NodeConfig() {
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = new LongAdder();
+    }
+
+    public NodeConfig failureDuration(final long amount, final TimeUnit unit) {
+        this.failure_duration = new FiniteDuration(amount, unit);
+        return this;
+    }
+
+    // a zero duration makes the node leave the critical section as soon as it entered it
+    public NodeConfig csDuration(final long amount, final TimeUnit unit) {
+        this.cs_duration = new FiniteDuration(amount, unit);
+        return this;
+    }
+
+    public NodeConfig csListener(final CSListener listener) {
+        this.cs_listener = listener == null ? NO_LISTENER : listener;
+        return this;
+    }
+
+    public NodeConfig transport(final Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    // whether a privilege handed to a neighbour carries the request for the rest of the queue
+    public NodeConfig piggyback(final boolean enabled) {
+        this.piggyback = enabled;
+        return this;
+    }
+
+    /**
+     * a node with several local requests (e.g. the threads of a DistributedLock) serves up to n of them in a row
+     * while it holds the token, instead of queueing itself again after each one: fewer token hops per CS entry,
+     * the requests of the other nodes waiting up to n CS more. 1 (the default) serves one local request per visit.
+     */
+    public NodeConfig localBatch(final int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("local batch must be at least 1: " + n);
+        this.local_batch = n;
+        return this;
+    }
+
+    /**
+     * bounds the time a client can hold a lease of acquire: its node revokes the lease when it expires, leaving the
+     * CS and passing the token on, so a stalled client delays the others by at most the duration. The work of a
+     * revoked lease is rejected by the fencing tokens of the later ones (Lease.getFence, FenceGuard).
+     * 0 (the default) lets a client hold its lease until it releases it. Timed CS (SystemWantCSMsg) are not bound.
+     */
+    public NodeConfig leaseDuration(final long amount, final TimeUnit unit) {
+        if (amount < 0)
+            throw new IllegalArgumentException("negative lease duration: " + amount);
+        this.lease_nanos = unit.toNanos(amount);
+        return this;
+    }
+
+    /**
+     * turns on the failure detector: every interval a node sends a Heartbeat to each neighbour it sent nothing else
+     * to meanwhile, and suspects a neighbour it heard nothing from for timeout. The messages of the locks for a
+     * suspected neighbour are held back until it is heard from again, and the clients waiting for a token on its
+     * side are failed at once instead of waiting for its recovery.
+     * @param timeout: bound on the detection of a failed neighbour, more than interval plus the link delay
+     */
+    public NodeConfig heartbeat(final long interval, final long timeout, final TimeUnit unit) {
+        if (interval <= 0 || timeout <= interval)
+            throw new IllegalArgumentException("need 0 < interval < timeout: " + interval + ", " + timeout);
+        this.heartbeat_interval = new FiniteDuration(interval, unit);
+        this.suspect_nanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * a recovering node sends its Restart again to the neighbours that did not advise it within the timeout, and
+     * after the given number of timeouts it ends the recovery without them if their advice cannot change the holders
+     * of the tokens (they are failed too, or waiting for failed nodes): they are advised when they recover
+     */
+    public NodeConfig recoveryTimeout(final long amount, final TimeUnit unit, final int retries) {
+        if (amount <= 0 || retries < 1)
+            throw new IllegalArgumentException("need a positive timeout and retries: " + amount + ", " + retries);
+        this.recovery_timeout = new FiniteDuration(amount, unit);
+        this.recovery_retries = retries;
+        return this;
+    }
+
+    /**
+     * requests of a higher priority are served first, and a queued request gains one priority for each period it
+     * waits at a node: a normal request is not overtaken by requests of priority p after waiting p periods there
+     */
+    public NodeConfig aging(final long amount, final TimeUnit unit) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("aging period must be positive: " + amount);
+        this.aging_nanos = unit.toNanos(amount);
+        return this;
+    }
+
+    /**
+     * makes every node append its history to segment files in dir, with Lamport timestamps,
+     * to be merged into one timeline by HistoryMerge. Messages between nodes then carry a timestamp.
+     */
+    public NodeConfig history(final Path dir) {
+        this.history_dir = dir;
+        return this;
+    }
+
+    public NodeConfig historySegmentSize(final long bytes) {
+        this.history_segment_bytes = bytes;
+        return this;
+    }
+
+    /**
+     * makes every node journal the state of its locks in dir after each message that changed it: a node restarting
+     * after a failure loads it, and asks for advice only the neighbours whose lock messages it missed while failed
+     */
+    public NodeConfig journal(final Path dir) {
+        this.journal_dir = dir;
+        return this;
+    }
+
+    public NodeConfig journalSize(final long bytes) {
+        this.journal_bytes = bytes;
+        return this;
+    }
+
+    void countMessage(final MessageType type) {
+        messages[type.ordinal()].increment();
+    }
+
+    public long messageCount(final MessageType type) {
+        return messages[type.ordinal()].sum();
+    }
+
+    public long messageCount() {
+        long total = 0;
+        for (LongAdder counter : messages)
+            total += counter.sum();
+        return total;
+    }
+}
@@ -0,0 +1,77 @@
+package it.unitn.ds1;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+import it.unitn.ds1.Node.SystemNodeNeighbourhoodMsg;
+
+/**
+ * Parent of a range of the nodes of a DistributedMutEx, to bootstrap large trees: the groups create and wire their
+ * nodes in parallel, and each parent keeps a few hundred children instead of the user guardian keeping them all
+ * (adding a child costs a log of their number).
+ */
+class NodeGroup extends AbstractActor {
+
+    // creates nodes from .. to-1, answered with their references
+    static final class CreateMsg {
+        final int from;
+        final int to;
+        final NodeConfig config;
+        final NodeMetrics[] metrics; // indexed by node id
+
+        CreateMsg(final int from, final int to, final NodeConfig config, final NodeMetrics[] metrics) {
+            this.from = from;
+            this.to = to;
+            this.config = config;
+            this.metrics = metrics;
+        }
+    }
+
+    // tells each node of the group its neighbourhood, answered once they are all told
+    static final class WireMsg {
+        final Topology topology;
+        final ActorRef[] nodes; // indexed by node id
+
+        WireMsg(final Topology topology, final ActorRef[] nodes) {
+            this.topology = topology;
+            this.nodes = nodes;
+        }
+    }
+
+    private int from;
+    private int to;
+
+    static Props props() {
+        return Props.create(NodeGroup.class, NodeGroup::new);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(CreateMsg.class, this::onCreateMsg)
+                .match(WireMsg.class, this::onWireMsg)
+                .build();
+    }
+
+    private void onCreateMsg(CreateMsg msg) {
+        from = msg.from;
+        to = msg.to;
+        ActorRef[] refs = new ActorRef[to - from];
+        for (int i = from; i < to; i++)
+            refs[i - from] = getContext().actorOf(Node.props(i, msg.config, msg.metrics[i]), "Node_" + i);
+        getSender().tell(refs, getSelf());
+    }
+
+    private void onWireMsg(WireMsg msg) {
+        for (int i = from; i < to; i++) {
+            int[] neigh_ids = msg.topology.neighbours(i);
+            ActorRef[] neighs = new ActorRef[neigh_ids.length];
+            for (int j = 0; j < neigh_ids.length; j++)
+                neighs[j] = msg.nodes[neigh_ids[j]];
+            msg.nodes[i].tell(new SystemNodeNeighbourhoodMsg(neighs, neigh_ids, msg.topology.reverseSlots(i)),
+                    ActorRef.noSender());
+        }
+        getSender().tell(msg, getSelf());
+    }
+}
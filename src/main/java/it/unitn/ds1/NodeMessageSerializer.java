@@ -0,0 +1,283 @@
+package it.unitn.ds1;
+
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import it.unitn.ds1.Node.AdviseMsg;
+import it.unitn.ds1.Node.CancelMsg;
+import it.unitn.ds1.Node.HeartbeatMsg;
+import it.unitn.ds1.Node.InitializeMsg;
+import it.unitn.ds1.Node.InitializedMsg;
+import it.unitn.ds1.Node.LockMsg;
+import it.unitn.ds1.Node.NodeToNodeMsg;
+import it.unitn.ds1.Node.PrivilegeAndRequestMsg;
+import it.unitn.ds1.Node.PrivilegeMsg;
+import it.unitn.ds1.Node.ReadGrantMsg;
+import it.unitn.ds1.Node.ReadReleaseMsg;
+import it.unitn.ds1.Node.RequestMsg;
+import it.unitn.ds1.Node.RestartMsg;
+import it.unitn.ds1.Node.StampedMsg;
+
+/**
+ * Binary akka serializer of the messages exchanged by the nodes (bound in remote.conf).
+ * The type travels in a one character manifest, the payload is the sender id and the sender slot + 1 as
+ * unsigned varints, followed by the fields of the message: see decode for the layout of each type. Shared requests
+ * have their own manifests. A Request of the default lock between nodes with ids below 16384 takes 5 to 7 bytes,
+ * where java serialization needs a few hundred, a Heartbeat 2 to 4. A StampedMsg is its timestamp as varint,
+ * the manifest of the wrapped message as one byte, then the wrapped message.
+ * It writes straight into the buffers of artery (ByteBufferSerializer), the byte array methods are for
+ * the other users of the serializers.
+ */
+public class NodeMessageSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+    static final int IDENTIFIER = 0x52415900; // "RAY\0"
+
+    private static final char INITIALIZE = 'I';
+    private static final char INITIALIZED = 'D';
+    private static final char REQUEST = 'R';
+    private static final char PRIVILEGE = 'P';
+    private static final char PRIVILEGE_AND_REQUEST = 'Q';
+    private static final char SHARED_REQUEST = 'H';
+    private static final char PRIVILEGE_AND_SHARED_REQUEST = 'J';
+    private static final char READ_GRANT = 'G';
+    private static final char READ_RELEASE = 'L';
+    private static final char CANCEL = 'C';
+    private static final char RESTART = 'S';
+    private static final char ADVISE = 'A';
+    private static final char STAMPED = 'T';
+    private static final char HEARTBEAT = 'B';
+
+    private static final String[] MANIFESTS = new String[128];
+
+    static {
+        for (char c : new char[]{INITIALIZE, INITIALIZED, REQUEST, PRIVILEGE, PRIVILEGE_AND_REQUEST, SHARED_REQUEST,
+                PRIVILEGE_AND_SHARED_REQUEST, READ_GRANT, READ_RELEASE, CANCEL, RESTART, ADVISE, STAMPED, HEARTBEAT})
+            MANIFESTS[c] = String.valueOf(c);
+    }
+
+    // the largest encodings: a stamped ReadRelease (or a stamped advise before its named locks and tokens),
+    // and the advice about a named lock
+    private static final int MAX_BYTES = 10 + 1 + 5 + 5 + 10 + 5 + 5 + 10;  // the priority of a request fits in it too
+    private static final int MAX_ADVICE_BYTES = 10 + 1;
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        return MANIFESTS[type(o)];
+    }
+
+    private static char type(Object o) {
+        if (o instanceof StampedMsg)
+            return STAMPED;
+        if (o instanceof RequestMsg)
+            return ((RequestMsg) o).shared ? SHARED_REQUEST : REQUEST;
+        if (o instanceof PrivilegeMsg)
+            return PRIVILEGE;
+        if (o instanceof PrivilegeAndRequestMsg)
+            return ((PrivilegeAndRequestMsg) o).shared ? PRIVILEGE_AND_SHARED_REQUEST : PRIVILEGE_AND_REQUEST;
+        if (o instanceof ReadGrantMsg)
+            return READ_GRANT;
+        if (o instanceof ReadReleaseMsg)
+            return READ_RELEASE;
+        if (o instanceof CancelMsg)
+            return CANCEL;
+        if (o instanceof AdviseMsg)
+            return ADVISE;
+        if (o instanceof RestartMsg)
+            return RESTART;
+        if (o instanceof InitializeMsg)
+            return INITIALIZE;
+        if (o instanceof InitializedMsg)
+            return INITIALIZED;
+        if (o instanceof HeartbeatMsg)
+            return HEARTBEAT;
+        throw new IllegalArgumentException("cannot serialize " + o.getClass().getName());
+    }
+
+    /* -- Encoding ------------------------------------------------------------- */
+
+    @Override
+    public byte[] toBinary(Object o) {
+        Object msg = o instanceof StampedMsg ? ((StampedMsg) o).msg : o;
+        int advice = msg instanceof AdviseMsg ? ((AdviseMsg) msg).resources.length : 0;
+        int token_advice = msg instanceof AdviseMsg ? ((AdviseMsg) msg).token_advice.length : 0;
+        ByteBuffer buf = ByteBuffer.allocate(MAX_BYTES + advice * MAX_ADVICE_BYTES + token_advice);
+        toBinary(o, buf);
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer buf) {
+        if (o instanceof StampedMsg) {
+            StampedMsg stamped = (StampedMsg) o;
+            putVarLong(buf, stamped.timestamp);
+            buf.put((byte) type(stamped.msg));
+            o = stamped.msg;
+        }
+        NodeToNodeMsg msg = (NodeToNodeMsg) o;
+        putVarLong(buf, msg.senderId);
+        putVarLong(buf, msg.senderSlot + 1L);
+        if (msg instanceof LockMsg) {
+            putUnsigned(buf, ((LockMsg) msg).resource);
+            putVarLong(buf, ((LockMsg) msg).token);
+        }
+        if (msg instanceof RequestMsg)
+            putVarLong(buf, ((RequestMsg) msg).priority);
+        if (msg instanceof PrivilegeAndRequestMsg)
+            putVarLong(buf, ((PrivilegeAndRequestMsg) msg).priority);
+        if (msg instanceof InitializeMsg)
+            putVarLong(buf, ((InitializeMsg) msg).tokens);
+        if (msg instanceof InitializedMsg)
+            putVarLong(buf, ((InitializedMsg) msg).nodes);
+        if (msg instanceof ReadReleaseMsg)
+            putVarLong(buf, ((ReadReleaseMsg) msg).count);
+        if (msg instanceof PrivilegeMsg)
+            putVarLong(buf, ((PrivilegeMsg) msg).fence);
+        if (msg instanceof PrivilegeAndRequestMsg)
+            putVarLong(buf, ((PrivilegeAndRequestMsg) msg).fence);
+        if (msg instanceof ReadGrantMsg)
+            putVarLong(buf, ((ReadGrantMsg) msg).fence);
+        if (msg instanceof ReadReleaseMsg)
+            putVarLong(buf, ((ReadReleaseMsg) msg).fence);
+        if (msg instanceof AdviseMsg) {
+            AdviseMsg advise = (AdviseMsg) msg;
+            buf.put((byte) ((advise.you_are_my_holder ? AdviseMsg.YOU_ARE_MY_HOLDER : 0)
+                    | (advise.asked ? AdviseMsg.ASKED : 0) | (advise.you_asked_me ? AdviseMsg.YOU_ASKED_ME : 0)));
+            putVarLong(buf, advise.resources.length);
+            for (int i = 0; i < advise.resources.length; i++) {
+                putUnsigned(buf, advise.resources[i]);
+                buf.put(advise.advice[i]);
+            }
+            putVarLong(buf, advise.token_advice.length);
+            buf.put(advise.token_advice);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer buf, long v) {
+        if (v < 0)
+            throw new IllegalArgumentException("negative value: " + v);
+        putUnsigned(buf, v);
+    }
+
+    // resource ids use all the 64 bits, the negative ones take 10 bytes
+    private static void putUnsigned(ByteBuffer buf, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /* -- Decoding ------------------------------------------------------------- */
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        return fromBinary(ByteBuffer.wrap(bytes), manifest);
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer buf, String manifest) throws NotSerializableException {
+        if (manifest.length() != 1)
+            throw new NotSerializableException("unknown manifest: " + manifest);
+        try {
+            char type = manifest.charAt(0);
+            if (type == STAMPED) {
+                long timestamp = getVarLong(buf);
+                return new StampedMsg(timestamp, decode((char) buf.get(), buf));
+            }
+            return decode(type, buf);
+        } catch (BufferUnderflowException e) {
+            throw new NotSerializableException("truncated " + manifest + " message");
+        }
+    }
+
+    // after the sender id and slot, the messages about a lock carry the resource and the token, then each message its
+    // own fields, in the order written by toBinary; all of them are varints but the flags and advice bytes
+    private static NodeToNodeMsg decode(char type, ByteBuffer buf) throws NotSerializableException {
+        int id = (int) getVarLong(buf);
+        int slot = (int) getVarLong(buf) - 1;
+        switch (type) {
+            // number of tokens
+            case INITIALIZE:
+                return new InitializeMsg(id, slot, (int) getVarLong(buf));
+            // number of nodes of the subtree
+            case INITIALIZED:
+                return new InitializedMsg(id, slot, (int) getVarLong(buf));
+            // priority
+            case REQUEST:
+                return new RequestMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), false, (int) getVarLong(buf));
+            // fence
+            case PRIVILEGE:
+                return new PrivilegeMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), getVarLong(buf));
+            // priority, fence
+            case PRIVILEGE_AND_REQUEST:
+                return new PrivilegeAndRequestMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), false,
+                        (int) getVarLong(buf), getVarLong(buf));
+            case SHARED_REQUEST:
+                return new RequestMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), true, (int) getVarLong(buf));
+            case PRIVILEGE_AND_SHARED_REQUEST:
+                return new PrivilegeAndRequestMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), true,
+                        (int) getVarLong(buf), getVarLong(buf));
+            // fence
+            case READ_GRANT:
+                return new ReadGrantMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), getVarLong(buf));
+            // number of released grants, fence
+            case READ_RELEASE:
+                return new ReadReleaseMsg(id, slot, getVarLong(buf), (int) getVarLong(buf), (int) getVarLong(buf),
+                        getVarLong(buf));
+            // nothing more
+            case CANCEL:
+                return new CancelMsg(id, slot, getVarLong(buf), (int) getVarLong(buf));
+            // nothing more
+            case RESTART:
+                return new RestartMsg(id, slot);
+            case HEARTBEAT:
+                return new HeartbeatMsg(id, slot);
+            // a flags byte, the number of named locks and their (resource, advice byte) pairs, the number of other
+            // tokens and their advice bytes
+            case ADVISE:
+                int flags = buf.get();
+                long count = getVarLong(buf);
+                // each named lock takes at least 2 bytes
+                if (count > buf.remaining() / 2)
+                    throw new NotSerializableException("truncated advise");
+                long[] resources = new long[(int) count];
+                byte[] advice = new byte[(int) count];
+                for (int i = 0; i < count; i++) {
+                    resources[i] = getVarLong(buf);
+                    advice[i] = buf.get();
+                }
+                long tokens = getVarLong(buf);
+                if (tokens > buf.remaining())
+                    throw new NotSerializableException("truncated advise");
+                byte[] token_advice = new byte[(int) tokens];
+                buf.get(token_advice);
+                return new AdviseMsg(id, slot, (flags & AdviseMsg.YOU_ARE_MY_HOLDER) != 0,
+                        (flags & AdviseMsg.ASKED) != 0, (flags & AdviseMsg.YOU_ASKED_ME) != 0, resources, advice,
+                        token_advice);
+            default:
+                throw new NotSerializableException("unknown message type: " + type);
+        }
+    }
+
+    private static long getVarLong(ByteBuffer buf) throws NotSerializableException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new NotSerializableException("malformed varint");
+    }
+}
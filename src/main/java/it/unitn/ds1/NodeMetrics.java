@@ -0,0 +1,172 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+
+/**
+ * Runtime metrics of one node: messages sent/received by type, queue depth and asked gauges (of the default lock),
+ * suspected neighbours, revoked leases, request-to-grant latency, CS hold time and recovery duration histograms.
+ * Written only by the node (plain fields, no synchronization). Other threads can read the live values
+ * (e.g. JMX dashboards, slightly stale at worst) or ask the node for a consistent Snapshot.
+ */
+public class NodeMetrics {
+    private static final int TYPES = MessageType.values().length;
+
+    final long[] sent = new long[TYPES];
+    final long[] received = new long[TYPES];
+    int queue_depth;
+    int max_queue_depth;
+    boolean asked;
+    long grants;
+
+    final LatencyHistogram request_to_grant = new LatencyHistogram();
+    final LatencyHistogram urgent_request_to_grant = new LatencyHistogram(); // requests of a priority above 0 only
+    final LatencyHistogram cs_hold = new LatencyHistogram();
+    final LatencyHistogram recovery = new LatencyHistogram();
+
+    int locks; // named locks this node keeps a state for
+    int suspected; // neighbours suspected to have failed by the failure detector
+    long suspicions; // times a neighbour was suspected
+    long revoked; // leases revoked when they expired
+
+    private long recovery_started_at;
+
+    void sent(final MessageType type) {
+        sent[type.ordinal()]++;
+    }
+
+    void received(final MessageType type) {
+        received[type.ordinal()]++;
+    }
+
+    void queueDepth(final int depth) {
+        queue_depth = depth;
+        if (depth > max_queue_depth)
+            max_queue_depth = depth;
+    }
+
+    // waited: time from the local request to the grant, negative if the CS was not entered for a local request
+    void enteredCS(final long waited, final boolean urgent) {
+        grants++;
+        if (waited >= 0)
+            request_to_grant.record(waited);
+        if (waited >= 0 && urgent)
+            urgent_request_to_grant.record(waited);
+    }
+
+    void exitedCS(final long held) {
+        cs_hold.record(held);
+    }
+
+    // change of the number of suspected neighbours
+    void suspected(final int change) {
+        suspected += change;
+        if (change > 0)
+            suspicions++;
+    }
+
+    void recoveryStarted(final long now) {
+        recovery_started_at = now;
+    }
+
+    void recoveryEnded(final long now) {
+        recovery.record(now - recovery_started_at);
+    }
+
+    Snapshot snapshot(final int node) {
+        return new Snapshot(node, this);
+    }
+
+    /**
+     * immutable copy of the metrics of a node, or the sum of the metrics of several nodes
+     */
+    public static class Snapshot implements Serializable {
+        public final int node; // -1 for an aggregate
+        private final long[] sent;
+        private final long[] received;
+        public final int queue_depth;
+        public final int max_queue_depth;
+        public final int asked; // number of nodes that asked the privilege to their holder
+        public final long grants;
+        public final long locks;
+        public final long suspected;
+        public final long suspicions;
+        public final long revoked;
+        public final LatencyHistogram request_to_grant;
+        public final LatencyHistogram urgent_request_to_grant;
+        public final LatencyHistogram cs_hold;
+        public final LatencyHistogram recovery;
+
+        private Snapshot(final int node, final NodeMetrics m) {
+            this.node = node;
+            this.sent = m.sent.clone();
+            this.received = m.received.clone();
+            this.queue_depth = m.queue_depth;
+            this.max_queue_depth = m.max_queue_depth;
+            this.asked = m.asked ? 1 : 0;
+            this.grants = m.grants;
+            this.locks = m.locks;
+            this.suspected = m.suspected;
+            this.suspicions = m.suspicions;
+            this.revoked = m.revoked;
+            this.request_to_grant = m.request_to_grant.copy();
+            this.urgent_request_to_grant = m.urgent_request_to_grant.copy();
+            this.cs_hold = m.cs_hold.copy();
+            this.recovery = m.recovery.copy();
+        }
+
+        private Snapshot(final Snapshot a, final Snapshot b) {
+            this.node = -1;
+            this.sent = new long[TYPES];
+            this.received = new long[TYPES];
+            for (int i = 0; i < TYPES; i++) {
+                sent[i] = a.sent[i] + b.sent[i];
+                received[i] = a.received[i] + b.received[i];
+            }
+            this.queue_depth = a.queue_depth + b.queue_depth;
+            this.max_queue_depth = Math.max(a.max_queue_depth, b.max_queue_depth);
+            this.asked = a.asked + b.asked;
+            this.grants = a.grants + b.grants;
+            this.locks = a.locks + b.locks;
+            this.suspected = a.suspected + b.suspected;
+            this.suspicions = a.suspicions + b.suspicions;
+            this.revoked = a.revoked + b.revoked;
+            this.request_to_grant = a.request_to_grant.copy();
+            request_to_grant.add(b.request_to_grant);
+            this.urgent_request_to_grant = a.urgent_request_to_grant.copy();
+            urgent_request_to_grant.add(b.urgent_request_to_grant);
+            this.cs_hold = a.cs_hold.copy();
+            cs_hold.add(b.cs_hold);
+            this.recovery = a.recovery.copy();
+            recovery.add(b.recovery);
+        }
+
+        // sum of two snapshots
+        public Snapshot merge(final Snapshot other) {
+            return new Snapshot(this, other);
+        }
+
+        public long getSent(final MessageType type) {
+            return sent[type.ordinal()];
+        }
+
+        public long getReceived(final MessageType type) {
+            return received[type.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(node < 0 ? "all nodes" : String.format("node %02d", node));
+            sb.append(String.format(": grants=%d queue=%d (max %d) asked=%d named locks=%d suspected=%d (%d times)"
+                    + " revoked=%d%n", grants, queue_depth, max_queue_depth, asked, locks, suspected, suspicions,
+                    revoked));
+            for (MessageType type : MessageType.values())
+                sb.append(String.format("  %-22s sent=%d received=%d%n", type, getSent(type), getReceived(type)));
+            sb.append("  request to grant: ").append(request_to_grant).append('\n');
+            sb.append("  urgent requests:  ").append(urgent_request_to_grant).append('\n');
+            sb.append("  CS hold:          ").append(cs_hold).append('\n');
+            sb.append("  recovery:         ").append(recovery).append('\n');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * One member of a deployment of the nodes over several JVMs, connected with akka remote (artery, see remote.conf).
+ * Member k of M listens on base_port + k and hosts the nodes whose id is k modulo M, so consecutive ids
+ * (e.g. a parent and its children in a k-ary tree) are in different JVMs.
+ * Member 0 is the coordinator: it resolves the nodes of all the members and drives them with a DistributedMutEx,
+ * the other members only host their nodes until they are stopped.
+ * Messages between nodes are encoded by NodeMessageSerializer.
+ */
+public class RemoteDeployment {
+    public static final String SYSTEM_NAME = "distributed_mutual_exclusion";
+    private static final long RETRY_MS = 500;
+
+    private final Topology topology;
+    private final NodeConfig config;
+    private final int member;
+    private final int members;
+    private final String host;
+    private final int base_port;
+    private final ActorSystem system;
+    private final ActorRef[] local; // nodes hosted by this member, null for the others
+
+    /**
+     * starts the actor system of this member and creates its nodes
+     * @param topology: logical tree connecting the nodes, the same for all the members
+     * @param config: settings of the nodes of this member
+     * @param member: index of this member, in [0, members)
+     * @param members: number of JVMs
+     * @param host: address of all the members
+     * @param base_port: port of member 0
+     */
+    public RemoteDeployment(Topology topology, NodeConfig config, int member, int members, String host, int base_port) {
+        this(topology, config, member, members, host, base_port, ConfigFactory.empty());
+    }
+
+    // overrides: akka settings on top of remote.conf (e.g. serialization bindings, to compare serializers)
+    RemoteDeployment(Topology topology, NodeConfig config, int member, int members, String host, int base_port,
+                     Config overrides) {
+        if (member < 0 || member >= members)
+            throw new IllegalArgumentException("member " + member + " not in [0, " + members + ")");
+        this.topology = topology;
+        this.config = config;
+        this.member = member;
+        this.members = members;
+        this.host = host;
+        this.base_port = base_port;
+        this.system = ActorSystem.create(SYSTEM_NAME, overrides.withFallback(remoteConfig(host, base_port + member)));
+        this.local = new ActorRef[topology.size()];
+        for (int i = member; i < topology.size(); i += members)
+            local[i] = system.actorOf(Node.props(i, config), "Node_" + i);
+    }
+
+    static Config remoteConfig(String host, int port) {
+        return ConfigFactory.parseString("akka.remote.artery.canonical.hostname = \"" + host + "\"\n"
+                + "akka.remote.artery.canonical.port = " + port)
+                .withFallback(ConfigFactory.parseResources("remote.conf"))
+                .withFallback(ConfigFactory.load());
+    }
+
+    public boolean isCoordinator() {
+        return member == 0;
+    }
+
+    public ActorSystem getSystem() {
+        return system;
+    }
+
+    // number of nodes hosted by this member
+    public int localNodes() {
+        return (int) Arrays.stream(local).filter(ref -> ref != null).count();
+    }
+
+    private String path(int node) {
+        return String.format("akka://%s@%s:%d/user/Node_%d", SYSTEM_NAME, host, base_port + node % members, node);
+    }
+
+    /**
+     * resolves the nodes of all the members, retrying until the members are up
+     * @return the nodes, indexed by id
+     */
+    public List<ActorRef> resolveNodes(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        FiniteDuration attempt = new FiniteDuration(RETRY_MS, TimeUnit.MILLISECONDS);
+        ActorRef[] refs = local.clone();
+        while (true) {
+            // all the missing nodes are asked for in parallel
+            List<CompletableFuture<ActorRef>> pending = new ArrayList<>();
+            for (int i = 0; i < refs.length; i++) {
+                pending.add(refs[i] != null ? null
+                        : system.actorSelection(path(i)).resolveOneCS(attempt).toCompletableFuture());
+            }
+            int missing = 0;
+            for (int i = 0; i < refs.length; i++) {
+                if (pending.get(i) == null)
+                    continue;
+                try {
+                    refs[i] = pending.get(i).join();
+                } catch (RuntimeException e) {
+                    missing++;
+                }
+            }
+            if (missing == 0)
+                return new ArrayList<>(Arrays.asList(refs));
+            if (System.nanoTime() > deadline)
+                throw new TimeoutException(missing + " nodes could not be resolved, are all the " + members
+                        + " members running?");
+            TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+        }
+    }
+
+    /**
+     * coordinator only: the DistributedMutEx that drives the nodes of all the members, init() still has to be called
+     */
+    public DistributedMutEx connect(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        if (!isCoordinator())
+            throw new IllegalStateException("only member 0 drives the nodes");
+        return new DistributedMutEx(system, topology, config, resolveNodes(timeout, unit));
+    }
+
+    public void terminate() {
+        system.terminate();
+    }
+}
@@ -0,0 +1,132 @@
+package it.unitn.ds1;
+
+import java.util.function.Consumer;
+
+/**
+ * Map from resource ids (primitive longs) to the per-resource state of a node.
+ * Open addressing with linear probing and backward shift deletion: no entry objects, no boxed keys,
+ * and the tables shrink again when most entries are removed, so the memory follows the number of live entries.
+ */
+final class ResourceMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values; // null marks a free slot
+    private int size;
+
+    ResourceMap() {
+        this.keys = new long[MIN_CAPACITY];
+        this.values = new Object[MIN_CAPACITY];
+        this.size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // current number of slots, for tests
+    int capacity() {
+        return keys.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return (V) values[i];
+        }
+        return null;
+    }
+
+    void put(final long key, final V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null value");
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // at most 3/4 full
+        if (++size * 4 > keys.length * 3)
+            resize(keys.length * 2);
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(final long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                break;
+        }
+        V removed = (V) values[i];
+        if (removed == null)
+            return null;
+        // move back the following entries of the cluster that would not be found anymore
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        // at least 1/8 full
+        if (--size * 8 < keys.length && keys.length > MIN_CAPACITY)
+            resize(keys.length / 2);
+        return removed;
+    }
+
+    void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    // the action must not add or remove entries
+    @SuppressWarnings("unchecked")
+    void forEach(final Consumer<V> action) {
+        for (Object value : values) {
+            if (value != null)
+                action.accept((V) value);
+        }
+    }
+
+    private void resize(final int capacity) {
+        long[] old_keys = keys;
+        Object[] old_values = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_values[i] == null)
+                continue;
+            int j = slot(old_keys[i], mask);
+            while (values[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = old_keys[i];
+            values[j] = old_values[i];
+        }
+    }
+
+    private static int slot(final long key, final int mask) {
+        // murmur3 finalizer: consecutive ids spread over the table
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
@@ -0,0 +1,417 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Identify;
+import akka.pattern.Patterns;
+import akka.testkit.CallingThreadDispatcher;
+
+import com.typesafe.config.ConfigFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import it.unitn.ds1.Node.SystemAcquireMsg;
+import it.unitn.ds1.Node.SystemCancelMsg;
+import it.unitn.ds1.Node.SystemFailMsg;
+import it.unitn.ds1.Node.SystemInitMsg;
+import it.unitn.ds1.Node.SystemNodeNeighbourhoodMsg;
+import it.unitn.ds1.Node.SystemWantCSMsg;
+
+import scala.concurrent.Await;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Deterministic, single threaded, virtual time execution of the nodes.
+ * The very same Node actors run on the calling thread dispatcher, every message they send and every message they
+ * schedule for themselves goes through the event queue of the simulation, ordered by virtual delivery time.
+ * Link delays are drawn from a Random seeded at construction, or from the links of a NetworkEmulator, so a run is
+ * fully reproducible from its seed, and a CS or a failure lasting seconds costs nothing but the messages it triggers.
+ * Every CS entry is checked: violations() counts the times two nodes were in the CS together, one of them
+ * in exclusive mode (shared CS can overlap), or with k tokens the times more than k tokens were in use.
+ */
+public class Simulation {
+
+    public enum DeliveryOrder {
+        SEND_ORDER, // no delay, messages are delivered in the order they are sent
+        LINK_FIFO,  // random delay, messages on the same link are never reordered (as in akka)
+        RANDOM      // random delay, messages on the same link can overtake each other
+    }
+
+    // event of the simulation: either a message to deliver or an action of the scenario
+    private static final class Delivery implements Comparable<Delivery> {
+        final long time;
+        final long seq; // ties are broken by insertion order, to be deterministic
+        final ActorRef to;
+        final Object msg;
+        final ActorRef sender;
+        final Runnable action;
+
+        Delivery(long time, long seq, ActorRef to, Object msg, ActorRef sender, Runnable action) {
+            this.time = time;
+            this.seq = seq;
+            this.to = to;
+            this.msg = msg;
+            this.sender = sender;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Delivery o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static final FiniteDuration STARTUP_TIMEOUT = new FiniteDuration(10, TimeUnit.SECONDS);
+
+    private final Topology topology;
+    private final NodeConfig config;
+    private final DeliveryOrder order;
+    private final long min_delay;
+    private final long max_delay;
+    private final Random random;
+    private final NetworkEmulator network; // null for the uniform delays
+
+    private final ActorSystem system;
+    private final ActorRef[] nodes;
+    private final NodeMetrics[] metrics;
+    private final Map<ActorRef, Integer> ids;
+
+    private final PriorityQueue<Delivery> queue = new PriorityQueue<>();
+    private final Map<Long, Long> link_clock = new HashMap<>(); // last delivery time of each link, for LINK_FIFO
+    private long now = 0;
+    private long seq = 0;
+    private long delivered = 0;
+
+    // mutual exclusion monitor
+    private int in_cs = 0;
+    private int exclusive_in_cs = 0;
+    private int max_in_cs = 0;
+    private long violations = 0;
+    private int tokens = 1; // tokens of the default lock, given to init
+    private long grants = 0;
+
+    /**
+     * @param topology: logical tree connecting the nodes
+     * @param config: node settings, its transport and listener are replaced by the ones of the simulation
+     * @param seed: seed of the link delays
+     * @param order: delivery order of the messages
+     * @param min_delay: minimum link delay
+     * @param max_delay: maximum link delay
+     * @param unit: unit of the delays
+     */
+    public Simulation(Topology topology, NodeConfig config, long seed, DeliveryOrder order,
+                      long min_delay, long max_delay, TimeUnit unit) {
+        this(topology, config, null, seed, order, unit.toNanos(min_delay), unit.toNanos(max_delay));
+    }
+
+    /**
+     * the messages between nodes cross the emulated links of network (its own transport is not used), the
+     * other messages are delivered at once
+     */
+    public Simulation(Topology topology, NodeConfig config, NetworkEmulator network) {
+        this(topology, config, network, 0, null, 0, 0);
+    }
+
+    private Simulation(Topology topology, NodeConfig config, NetworkEmulator network, long seed, DeliveryOrder order,
+                       long min_delay, long max_delay) {
+        this.topology = topology;
+        this.config = config;
+        this.order = order;
+        this.min_delay = min_delay;
+        this.max_delay = Math.max(min_delay, max_delay);
+        this.random = new Random(seed);
+        this.network = network;
+
+        final NodeConfig.CSListener listener = config.cs_listener;
+        config.transport(new SimulatedTransport()).csListener(new NodeConfig.CSListener() {
+            @Override
+            public void onEnterCS(int node) {
+                onEnterCS(node, 0);
+            }
+
+            @Override
+            public void onExitCS(int node) {
+                onExitCS(node, 0);
+            }
+
+            @Override
+            public void onEnterCS(int node, long resource) {
+                onEnterCS(node, resource, false);
+            }
+
+            @Override
+            public void onExitCS(int node, long resource) {
+                onExitCS(node, resource, false);
+            }
+
+            // grants and violations are the ones of the default lock
+            @Override
+            public void onEnterCS(int node, long resource, boolean shared) {
+                if (resource == 0) {
+                    grants++;
+                    // each exclusive CS uses a token, the shared ones at least one more
+                    int used = exclusive_in_cs + (in_cs > exclusive_in_cs ? 1 : 0);
+                    if (shared ? exclusive_in_cs >= tokens : used >= tokens)
+                        violations++;
+                    in_cs++;
+                    if (!shared)
+                        exclusive_in_cs++;
+                    max_in_cs = Math.max(max_in_cs, in_cs);
+                }
+                listener.onEnterCS(node, resource, shared);
+            }
+
+            @Override
+            public void onExitCS(int node, long resource, boolean shared) {
+                if (resource == 0) {
+                    in_cs--;
+                    if (!shared)
+                        exclusive_in_cs--;
+                }
+                listener.onExitCS(node, resource, shared);
+            }
+        });
+
+        this.system = ActorSystem.create("simulation", ConfigFactory.parseString(
+                "akka.loglevel = WARNING\nakka.log-dead-letters = off").withFallback(ConfigFactory.load()));
+        this.nodes = new ActorRef[topology.size()];
+        this.metrics = new NodeMetrics[topology.size()];
+        this.ids = new HashMap<>();
+        for (int i = 0; i < nodes.length; i++) {
+            metrics[i] = new NodeMetrics();
+            nodes[i] = system.actorOf(Node.props(i, config, metrics[i]).withDispatcher(CallingThreadDispatcher.Id()), "Node_" + i);
+            ids.put(nodes[i], i);
+        }
+        // top level actors are started asynchronously, until then their messages would not be processed
+        // on the calling thread: wait for every node to be up
+        try {
+            for (ActorRef node : nodes)
+                Await.result(Patterns.ask(node, new Identify(0), 10_000), STARTUP_TIMEOUT);
+        } catch (Exception e) {
+            system.terminate();
+            throw new IllegalStateException("simulation nodes did not start", e);
+        }
+    }
+
+    /**
+     * link delays uniformly distributed in [1, 10] ms, FIFO links
+     */
+    public Simulation(Topology topology, long seed) {
+        this(topology, new NodeConfig(), seed, DeliveryOrder.LINK_FIFO, 1, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /* -- Scenario ------------------------------------------------------------- */
+
+    /**
+     * tells every node its neighbourhood and gives the token to the root, at the current virtual time
+     */
+    public void init() {
+        init(1);
+    }
+
+    /**
+     * same as init(), with k tokens of the default lock: up to k nodes are in its CS at the same time
+     */
+    public void init(int k) {
+        tokens = k;
+        for (int i = 0; i < nodes.length; i++) {
+            int[] neigh_ids = topology.neighbours(i);
+            ActorRef[] neighs = new ActorRef[neigh_ids.length];
+            for (int j = 0; j < neigh_ids.length; j++)
+                neighs[j] = nodes[neigh_ids[j]];
+            inject(i, new SystemNodeNeighbourhoodMsg(neighs, neigh_ids, topology.reverseSlots(i)));
+        }
+        inject(topology.root(), new SystemInitMsg(k));
+    }
+
+    public void request_cs(int node) {
+        inject(node, new SystemWantCSMsg());
+    }
+
+    public void node_failure(int node) {
+        inject(node, new SystemFailMsg());
+    }
+
+    public CompletableFuture<Lease> acquire(int node) {
+        return acquire(node, 0);
+    }
+
+    public CompletableFuture<Lease> acquire(int node, long resource) {
+        return acquire(node, resource, false);
+    }
+
+    public CompletableFuture<Lease> acquire(int node, long resource, boolean shared) {
+        return acquire(node, resource, shared, 0);
+    }
+
+    public CompletableFuture<Lease> acquire(int node, long resource, boolean shared, int priority) {
+        return submit(node, new SystemAcquireMsg(resource, shared, priority, new CompletableFuture<>()));
+    }
+
+    // as DistributedMutEx.tryAcquire, the timeout is virtual
+    public CompletableFuture<Lease> tryAcquire(int node, long resource, long timeout, TimeUnit unit) {
+        return submit(node, new SystemAcquireMsg(resource, false, 0, unit.toNanos(timeout), new CompletableFuture<>()));
+    }
+
+    // cancelling the future withdraws the request, as with DistributedMutEx
+    private CompletableFuture<Lease> submit(int node, SystemAcquireMsg msg) {
+        inject(node, msg);
+        msg.future.whenComplete((lease, e) -> {
+            if (msg.future.isCancelled())
+                inject(node, new SystemCancelMsg(msg.resource, msg.future));
+        });
+        return msg.future;
+    }
+
+    /**
+     * runs an action of the scenario at the given virtual time (or now, if it is in the past)
+     */
+    public void at(long time, TimeUnit unit, Runnable action) {
+        queue.add(new Delivery(Math.max(now, unit.toNanos(time)), seq++, null, null, null, action));
+    }
+
+    public void after(long delay, TimeUnit unit, Runnable action) {
+        at(now + unit.toNanos(delay), TimeUnit.NANOSECONDS, action);
+    }
+
+    private void inject(int node, Object msg) {
+        queue.add(new Delivery(now, seq++, nodes[node], msg, ActorRef.noSender(), null));
+    }
+
+    /* -- Execution ------------------------------------------------------------ */
+
+    /**
+     * delivers the next event, advancing the clock
+     * @return false if there was nothing to deliver
+     */
+    public boolean step() {
+        Delivery d = queue.poll();
+        if (d == null)
+            return false;
+        now = d.time;
+        if (d.action != null) {
+            d.action.run();
+        } else {
+            delivered++;
+            // processed synchronously on this thread by the calling thread dispatcher
+            d.to.tell(d.msg, d.sender);
+        }
+        return true;
+    }
+
+    /**
+     * runs until there is nothing left to deliver
+     */
+    public void run() {
+        while (step()) ;
+    }
+
+    /**
+     * runs all events up to the given virtual time, then moves the clock there
+     */
+    public void runUntil(long time, TimeUnit unit) {
+        long limit = unit.toNanos(time);
+        while (!queue.isEmpty() && queue.peek().time <= limit)
+            step();
+        now = Math.max(now, limit);
+    }
+
+    public void runFor(long duration, TimeUnit unit) {
+        runUntil(now + unit.toNanos(duration), TimeUnit.NANOSECONDS);
+    }
+
+    public void terminate() {
+        system.terminate();
+    }
+
+    /* -- Observations --------------------------------------------------------- */
+
+    // virtual time in nanoseconds
+    public long now() {
+        return now;
+    }
+
+    public long deliveredMessages() {
+        return delivered;
+    }
+
+    public boolean isIdle() {
+        return queue.isEmpty();
+    }
+
+    public long grants() {
+        return grants;
+    }
+
+    // maximum number of nodes that have been in the CS at the same time
+    public int maxConcurrentCS() {
+        return max_in_cs;
+    }
+
+    // number of CS entries that happened while another node was in the CS, in exclusive mode for a shared entry
+    // (with k tokens: while k tokens were in use)
+    public long violations() {
+        return violations;
+    }
+
+    public long messageCount(MessageType type) {
+        return config.messageCount(type);
+    }
+
+    // the nodes run on this thread, the snapshot is consistent and its times are virtual
+    public NodeMetrics.Snapshot metrics(int node) {
+        return metrics[node].snapshot(node);
+    }
+
+    public Topology getTopology() {
+        return topology;
+    }
+
+    /* -- Transport ------------------------------------------------------------ */
+
+    private long delay() {
+        if (order == DeliveryOrder.SEND_ORDER || max_delay == 0)
+            return 0;
+        return min_delay + (long) (random.nextDouble() * (max_delay - min_delay));
+    }
+
+    private final class SimulatedTransport implements Transport {
+        @Override
+        public void send(ActorRef to, Object msg, ActorRef sender) {
+            if (network != null) {
+                int from = NetworkEmulator.sender(msg);
+                Integer dest = ids.get(to);
+                long time = from < 0 || dest == null || dest == from ? now : network.deliveryTime(from, dest, msg, now);
+                queue.add(new Delivery(time, seq++, to, msg, sender, null));
+                return;
+            }
+            long time = now + delay();
+            if (order == DeliveryOrder.LINK_FIFO) {
+                Integer from = sender == null ? null : ids.get(sender);
+                long link = ((long) (from == null ? -1 : from) << 32) | (ids.getOrDefault(to, -1) & 0xffffffffL);
+                Long last = link_clock.get(link);
+                if (last != null && last > time)
+                    time = last;
+                link_clock.put(link, time);
+            }
+            queue.add(new Delivery(time, seq++, to, msg, sender, null));
+        }
+
+        @Override
+        public void schedule(ActorContext context, FiniteDuration delay, Object msg) {
+            queue.add(new Delivery(now + delay.toNanos(), seq++, context.self(), msg, context.self(), null));
+        }
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+}
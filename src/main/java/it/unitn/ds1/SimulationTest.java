@@ -0,0 +1,1009 @@
+package it.unitn.ds1;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+public class SimulationTest {
+    // the tests disable the event log, the other test classes of the JVM get it back as it was
+    private final int log_mask = EventLog.getMask();
+
+    @org.junit.After
+    public void restoreLog() {
+        EventLog.setMask(log_mask);
+    }
+
+    /**
+     * a random scenario: clients acquire the CS of random nodes (of random locks, in a random mode) at random times
+     * and hold it for a random time, while random nodes fail. Run, it checks that no CS was shared by mistake and
+     * that every client got its lease, or an exception if its node failed
+     */
+    private static final class Scenario {
+        Simulation.DeliveryOrder order = Simulation.DeliveryOrder.RANDOM;
+        NodeConfig.CSListener listener = null;
+        int nodes = 20;
+        int requests = 30;
+        int window_ms = 1000; // the requests are made within it
+        int hold_ms = 50; // longest CS
+        long[] resources = {0};
+        double shared = 0; // fraction of shared requests
+        int k = 1; // tokens of the default lock
+        double fail = 0; // fraction of the events that are failures (of 100 ms) instead of requests
+
+        Scenario order(Simulation.DeliveryOrder order) {
+            this.order = order;
+            return this;
+        }
+
+        Scenario listener(NodeConfig.CSListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        Scenario size(int nodes, int requests) {
+            this.nodes = nodes;
+            this.requests = requests;
+            return this;
+        }
+
+        Scenario resources(long... resources) {
+            this.resources = resources;
+            return this;
+        }
+
+        Scenario shared(double fraction) {
+            this.shared = fraction;
+            return this;
+        }
+
+        Scenario tokens(int k) {
+            this.k = k;
+            return this;
+        }
+
+        // failures come with fewer and shorter CS over a longer time, so that the recoveries overlap the requests
+        Scenario failures(double fraction) {
+            this.fail = fraction;
+            this.window_ms = 2000;
+            this.hold_ms = 30;
+            return this;
+        }
+
+        Simulation run(long seed) {
+            return run(seed, new ArrayList<>());
+        }
+
+        Simulation run(long seed, List<CompletableFuture<Lease>> leases) {
+            EventLog.disableAll();
+            Random random = new Random(seed);
+            Topology topology = Topology.random(nodes, seed);
+            NodeConfig config = new NodeConfig().csListener(listener).failureDuration(100, TimeUnit.MILLISECONDS);
+            Simulation sim = new Simulation(topology, config, seed, order, 1, 10, TimeUnit.MILLISECONDS);
+            sim.init(k);
+            sim.run();
+
+            for (int i = 0; i < requests; i++) {
+                int node = random.nextInt(topology.size());
+                long resource = resources.length == 1 ? resources[0] : resources[random.nextInt(resources.length)];
+                boolean mode = shared > 0 && random.nextDouble() < shared;
+                long at = sim.now() + TimeUnit.MILLISECONDS.toNanos(random.nextInt(window_ms));
+                long hold = random.nextInt(hold_ms);
+                boolean failure = fail > 0 && random.nextDouble() < fail;
+                sim.at(at, TimeUnit.NANOSECONDS, () -> {
+                    if (failure) {
+                        sim.node_failure(node);
+                        return;
+                    }
+                    CompletableFuture<Lease> lease = sim.acquire(node, resource, mode);
+                    leases.add(lease);
+                    lease.thenAccept(l -> sim.after(hold, TimeUnit.MILLISECONDS, l::release));
+                });
+            }
+            sim.run();
+
+            assertEquals("seed " + seed + " " + order, 0, sim.violations());
+            for (CompletableFuture<Lease> lease : leases)
+                assertTrue("seed " + seed + " " + order, lease.isDone());
+            return sim;
+        }
+    }
+
+    /**
+     * sim0: the scenario of test2 (four nodes asking the CS, 10 seconds each) runs in virtual time
+     */
+    @org.junit.Test
+    public void sim0() {
+        EventLog.disableAll();
+        Simulation sim = new Simulation(Topology.kary(10, 2), 0);
+        sim.init();
+        // complete the initialization
+        sim.run();
+        int[] nodes = {0, 3, 7, 8};
+        for (int i : nodes) {
+            sim.request_cs(i);
+        }
+        long start = System.nanoTime();
+        sim.run();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(nodes.length, sim.grants());
+        assertEquals(0, sim.violations());
+        assertTrue(sim.now() >= TimeUnit.SECONDS.toNanos(40));
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+        sim.terminate();
+    }
+
+    /**
+     * sim1: the same seed gives the same execution
+     */
+    @org.junit.Test
+    public void sim1() {
+        Simulation a = new Scenario().run(7);
+        Simulation b = new Scenario().run(7);
+
+        assertEquals(a.now(), b.now());
+        assertEquals(a.deliveredMessages(), b.deliveredMessages());
+        assertEquals(a.grants(), b.grants());
+        a.terminate();
+        b.terminate();
+    }
+
+    /**
+     * sim2: sweep of random scenarios, in all of them the CS is never shared and every client gets it
+     */
+    @org.junit.Test
+    public void sim2() {
+        for (Simulation.DeliveryOrder order : Simulation.DeliveryOrder.values()) {
+            for (long seed = 0; seed < 50; seed++)
+                new Scenario().order(order).run(seed).terminate();
+        }
+    }
+
+    /**
+     * sim3: the per-node metrics add up to the message counters and time every CS of the test2 scenario
+     */
+    @org.junit.Test
+    public void sim3() {
+        EventLog.disableAll();
+        NodeConfig config = new NodeConfig();
+        Simulation sim = new Simulation(Topology.kary(10, 2), config, 0, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+        int[] nodes = {0, 3, 7, 8};
+        for (int i : nodes) {
+            sim.request_cs(i);
+        }
+        sim.run();
+
+        NodeMetrics.Snapshot total = sim.metrics(0);
+        for (int i = 1; i < sim.getTopology().size(); i++)
+            total = total.merge(sim.metrics(i));
+        for (MessageType type : MessageType.values()) {
+            assertEquals(config.messageCount(type), total.getSent(type));
+            assertEquals(total.getSent(type), total.getReceived(type));
+        }
+        assertEquals(nodes.length, total.grants);
+        assertEquals(nodes.length, total.request_to_grant.getCount());
+        // every CS lasts exactly the 10 seconds of the default configuration, in virtual time
+        assertEquals(nodes.length, total.cs_hold.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(10), total.cs_hold.getMax());
+        // the last node waited for the three CS before it
+        assertTrue(total.request_to_grant.getMax() >= TimeUnit.SECONDS.toNanos(30));
+        assertEquals(0, total.queue_depth);
+        assertEquals(0, total.asked);
+        sim.terminate();
+    }
+
+    /**
+     * sim4: clients of random nodes acquire random named locks and the default one. Each lock is held by one node
+     * at a time, different locks are held at the same time, and once idle the nodes keep no state for the named locks
+     */
+    @org.junit.Test
+    public void sim4() {
+        Map<Long, Integer> holders = new HashMap<>();
+        int[] violations = {0};
+        int[] max_held = {0};
+        Scenario scenario = new Scenario().size(20, 100).resources(0, DistributedMutEx.resource("a"),
+                DistributedMutEx.resource("b"), DistributedMutEx.resource("c"), DistributedMutEx.resource("d"), -42)
+                .listener(new NodeConfig.CSListener() {
+                    @Override
+                    public void onEnterCS(int node) {
+                    }
+
+                    @Override
+                    public void onExitCS(int node) {
+                    }
+
+                    @Override
+                    public void onEnterCS(int node, long resource) {
+                        if (holders.put(resource, node) != null)
+                            violations[0]++;
+                        max_held[0] = Math.max(max_held[0], holders.size());
+                    }
+
+                    @Override
+                    public void onExitCS(int node, long resource) {
+                        holders.remove(resource);
+                    }
+                });
+        for (long seed = 0; seed < 10; seed++) {
+            Simulation sim = scenario.run(seed);
+            assertEquals("seed " + seed, 0, violations[0]);
+            assertTrue(holders.isEmpty());
+            for (int i = 0; i < scenario.nodes; i++)
+                assertEquals("seed " + seed + " node " + i, 0, sim.metrics(i).locks);
+            sim.terminate();
+        }
+        assertTrue(max_held[0] > 1);
+    }
+
+    /**
+     * sim5: nodes fail while clients use named locks, the recovered nodes rebuild the state of the named locks
+     * from the advice of their neighbours: no lock is ever held twice and every client gets its lock
+     */
+    @org.junit.Test
+    public void sim5() {
+        Map<Long, Integer> holders = new HashMap<>();
+        int[] violations = {0};
+        Scenario scenario = new Scenario().order(Simulation.DeliveryOrder.LINK_FIFO).size(15, 80)
+                .resources(5, 6, 7, 8).failures(0.1).listener(new NodeConfig.CSListener() {
+                    @Override
+                    public void onEnterCS(int node) {
+                    }
+
+                    @Override
+                    public void onExitCS(int node) {
+                    }
+
+                    @Override
+                    public void onEnterCS(int node, long resource) {
+                        if (holders.put(resource, node) != null)
+                            violations[0]++;
+                    }
+
+                    @Override
+                    public void onExitCS(int node, long resource) {
+                        holders.remove(resource);
+                    }
+                });
+        // a client of a node that failed before the grant gets an exception
+        for (long seed = 0; seed < 20; seed++) {
+            scenario.run(seed).terminate();
+            assertEquals("seed " + seed, 0, violations[0]);
+        }
+    }
+
+    // per lock count of the shared and exclusive CS running, and of the entries that broke the modes
+    private static final class ModeChecker implements NodeConfig.CSListener {
+        final Map<Long, int[]> held = new HashMap<>(); // resource -> {readers, writers}
+        int violations = 0;
+        int max_readers = 0;
+
+        @Override
+        public void onEnterCS(int node) {
+        }
+
+        @Override
+        public void onExitCS(int node) {
+        }
+
+        @Override
+        public void onEnterCS(int node, long resource, boolean shared) {
+            int[] h = held.computeIfAbsent(resource, r -> new int[2]);
+            if (h[1] > 0 || (!shared && h[0] > 0))
+                violations++;
+            h[shared ? 0 : 1]++;
+            max_readers = Math.max(max_readers, h[0]);
+        }
+
+        @Override
+        public void onExitCS(int node, long resource, boolean shared) {
+            held.get(resource)[shared ? 0 : 1]--;
+        }
+
+        boolean idle() {
+            return held.values().stream().allMatch(h -> h[0] == 0 && h[1] == 0);
+        }
+    }
+
+    /**
+     * sim6: clients acquire the default lock and a named one in shared and exclusive mode: shared CS overlap,
+     * an exclusive CS never overlaps another CS of its lock, and every client gets its lease
+     */
+    @org.junit.Test
+    public void sim6() {
+        ModeChecker checker = new ModeChecker();
+        Scenario scenario = new Scenario().size(20, 150).resources(0, DistributedMutEx.resource("rw")).shared(0.75)
+                .listener(checker);
+        for (long seed = 0; seed < 10; seed++) {
+            Simulation sim = scenario.run(seed);
+            assertEquals("seed " + seed, 0, checker.violations);
+            assertTrue(checker.idle());
+            for (int i = 0; i < scenario.nodes; i++)
+                assertEquals("seed " + seed + " node " + i, 0, sim.metrics(i).locks);
+            sim.terminate();
+        }
+        assertTrue(checker.max_readers > 1);
+    }
+
+    /**
+     * sim7: a writer is not starved by readers that keep the lock busy, it is served before the shared requests
+     * made after its own
+     */
+    @org.junit.Test
+    public void sim7() {
+        EventLog.disableAll();
+        Topology topology = Topology.star(9);
+        Simulation sim = new Simulation(topology, new NodeConfig(), 7, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        // every 5 ms a leaf takes a shared lease for 30 ms: there is always a reader in the CS
+        long start = sim.now();
+        for (int k = 0; k < 200; k++) {
+            int node = 1 + k % 7;
+            sim.at(start + TimeUnit.MILLISECONDS.toNanos(5 * k), TimeUnit.NANOSECONDS, () ->
+                    sim.acquire(node, 0, true).thenAccept(l -> sim.after(30, TimeUnit.MILLISECONDS, l::release)));
+        }
+        long[] granted = {-1};
+        sim.at(start + TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.NANOSECONDS, () ->
+                sim.acquire(8, 0, false).thenAccept(l -> {
+                    granted[0] = sim.now() - start;
+                    sim.after(10, TimeUnit.MILLISECONDS, l::release);
+                }));
+        sim.run();
+
+        assertEquals(0, sim.violations());
+        assertTrue(sim.maxConcurrentCS() > 1);
+        // granted once the readers that were in before it left, long before the end of the stream of readers
+        assertTrue("writer granted after " + granted[0] + " ns",
+                granted[0] > 0 && granted[0] < TimeUnit.MILLISECONDS.toNanos(200));
+        sim.terminate();
+    }
+
+    /**
+     * sim8: nodes fail while clients use shared and exclusive leases: the modes are respected
+     * and every client gets its lease (or an exception if its node failed)
+     */
+    @org.junit.Test
+    public void sim8() {
+        ModeChecker checker = new ModeChecker();
+        Scenario scenario = new Scenario().order(Simulation.DeliveryOrder.LINK_FIFO).size(15, 80).resources(0, 9)
+                .shared(0.5).failures(0.1).listener(checker);
+        for (long seed = 0; seed < 20; seed++) {
+            scenario.run(seed).terminate();
+            assertEquals("seed " + seed, 0, checker.violations);
+        }
+    }
+
+    /**
+     * sim9: with 3 tokens of the default lock up to 3 clients hold an exclusive lease at once, never more,
+     * and every client gets its lease
+     */
+    @org.junit.Test
+    public void sim9() {
+        int max_in_cs = 0;
+        Scenario scenario = new Scenario().size(20, 150).tokens(3);
+        for (long seed = 0; seed < 10; seed++) {
+            Simulation sim = scenario.run(seed);
+            assertTrue("seed " + seed, sim.maxConcurrentCS() <= 3);
+            assertEquals("seed " + seed, 150, sim.grants());
+            max_in_cs = Math.max(max_in_cs, sim.maxConcurrentCS());
+            sim.terminate();
+        }
+        assertEquals(3, max_in_cs);
+    }
+
+    /**
+     * sim10: nodes fail while clients use 2 tokens of the default lock in shared and exclusive mode:
+     * the tokens are rebuilt by the recoveries and every client gets its lease (or an exception if its node failed)
+     */
+    @org.junit.Test
+    public void sim10() {
+        Scenario scenario = new Scenario().order(Simulation.DeliveryOrder.LINK_FIFO).size(15, 80).tokens(2)
+                .shared(1.0 / 3).failures(0.1);
+        for (long seed = 0; seed < 20; seed++)
+            scenario.run(seed).terminate();
+    }
+
+    /**
+     * sim11: an urgent request overtakes the normal ones queued before it, at the root and at the leaf
+     * that queued both kinds
+     */
+    @org.junit.Test
+    public void sim11() {
+        EventLog.disableAll();
+        Topology topology = Topology.star(9);
+        Simulation sim = new Simulation(topology, new NodeConfig(), 11, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        // every leaf waits for a 20 ms lease, leaf 8 twice: a normal request and then an urgent one
+        long start = sim.now();
+        List<Integer> order = new ArrayList<>();
+        for (int node = 1; node < 9; node++) {
+            int n = node;
+            sim.acquire(node).thenAccept(l -> {
+                order.add(n);
+                sim.after(20, TimeUnit.MILLISECONDS, l::release);
+            });
+        }
+        sim.at(start + TimeUnit.MILLISECONDS.toNanos(30), TimeUnit.NANOSECONDS, () ->
+                sim.acquire(8, 0, false, 1).thenAccept(l -> {
+                    order.add(-8);
+                    sim.after(20, TimeUnit.MILLISECONDS, l::release);
+                }));
+        sim.run();
+
+        assertEquals(9, order.size());
+        assertEquals(0, sim.violations());
+        // served right after the lease being held when it arrived (the first one or the second one)
+        assertTrue("order " + order, order.indexOf(-8) <= 2);
+        assertTrue("order " + order, order.indexOf(-8) < order.indexOf(8));
+        sim.terminate();
+    }
+
+    /**
+     * sim12: a normal request is not starved by urgent ones that keep the lock busy, it is aged until it
+     * overtakes them
+     */
+    @org.junit.Test
+    public void sim12() {
+        EventLog.disableAll();
+        Topology topology = Topology.star(9);
+        Simulation sim = new Simulation(topology, new NodeConfig().aging(20, TimeUnit.MILLISECONDS), 12,
+                Simulation.DeliveryOrder.LINK_FIFO, 1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        // for 3 seconds 7 leaves take 10 ms leases with priority 5, asking again as soon as they release them:
+        // there is always an urgent request queued
+        long start = sim.now();
+        long end = start + TimeUnit.SECONDS.toNanos(3);
+        for (int node = 1; node < 8; node++)
+            contend(sim, node, 5, end);
+        long[] granted = {-1};
+        sim.at(start + TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.NANOSECONDS, () ->
+                sim.acquire(8).thenAccept(l -> {
+                    granted[0] = sim.now() - start;
+                    l.release();
+                }));
+        sim.run();
+
+        assertEquals(0, sim.violations());
+        assertTrue("normal request granted after " + granted[0] + " ns",
+                granted[0] > 0 && granted[0] < TimeUnit.SECONDS.toNanos(1));
+        sim.terminate();
+    }
+
+    // closed loop of urgent acquisitions of a node, until the given virtual time
+    private static void contend(Simulation sim, int node, int priority, long end) {
+        if (sim.now() < end) {
+            sim.acquire(node, 0, false, priority).thenAccept(l -> sim.after(10, TimeUnit.MILLISECONDS, () -> {
+                l.release();
+                contend(sim, node, priority, end);
+            }));
+        }
+    }
+
+    /**
+     * sim13: the two ends of a chain have 8 local requests each; serving them in batches (localBatch(8))
+     * moves the token along the chain once per batch instead of once per CS
+     */
+    @org.junit.Test
+    public void sim13() {
+        EventLog.disableAll();
+        double hops_single = tokenHopsPerCS(1);
+        double hops_batched = tokenHopsPerCS(8);
+        assertTrue(hops_single + " vs " + hops_batched + " token hops per CS", hops_batched * 4 < hops_single);
+    }
+
+    /**
+     * sim14: with the failure detector, the neighbours of a failed node suspect it within the bound and a client
+     * waiting for a token on its side is failed then, instead of at the end of the failure; idle links carry
+     * heartbeats, busy ones do not need them
+     */
+    @org.junit.Test
+    public void sim14() {
+        EventLog.disableAll();
+        NodeConfig config = new NodeConfig().heartbeat(50, 200, TimeUnit.MILLISECONDS)
+                .failureDuration(5, TimeUnit.SECONDS).csDuration(10, TimeUnit.MILLISECONDS);
+        // 0 is the root, with children 1 and 2, the children of 1 are 3 and 4
+        Simulation sim = new Simulation(Topology.kary(7, 2), config, 14, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        // heartbeats never stop: the simulation runs for a given time
+        sim.runFor(1, TimeUnit.SECONDS);
+        long idle_heartbeats = sim.messageCount(MessageType.HEARTBEAT);
+        // 6 links, both directions, about 20 periods
+        assertTrue(idle_heartbeats + " heartbeats", idle_heartbeats >= 12 * 18 && idle_heartbeats <= 12 * 20);
+
+        // a busy second: every node asks for the CS every 20 ms, the lock messages stand for most heartbeats
+        long busy_start = sim.now();
+        for (int k = 0; k < 50; k++) {
+            int node = k % 7;
+            sim.at(busy_start + TimeUnit.MILLISECONDS.toNanos(20 * k), TimeUnit.NANOSECONDS, () -> sim.request_cs(node));
+        }
+        sim.runFor(1, TimeUnit.SECONDS);
+        long busy_heartbeats = sim.messageCount(MessageType.HEARTBEAT) - idle_heartbeats;
+        assertTrue(busy_heartbeats + " heartbeats", busy_heartbeats < idle_heartbeats);
+        for (int node = 0; node < 7; node++)
+            assertEquals(0, sim.metrics(node).suspicions);
+
+        // the token is brought back to the root
+        sim.acquire(0).thenAccept(Lease::release);
+        sim.runFor(1, TimeUnit.SECONDS);
+
+        // node 1 fails, then node 3 asks for the CS: its request is lost, and the client is told within the bound
+        sim.node_failure(1);
+        long failed_at = sim.now();
+        CompletableFuture<Lease> lost = sim.acquire(3);
+        CompletableFuture<Lease> other_side = sim.acquire(5);
+        other_side.thenAccept(Lease::release);
+        sim.runFor(500, TimeUnit.MILLISECONDS);
+        assertTrue(lost.isCompletedExceptionally());
+        assertTrue(other_side.isDone() && !other_side.isCompletedExceptionally());
+        for (int node : new int[]{0, 3, 4})
+            assertEquals(1, sim.metrics(node).suspected);
+
+        // once node 1 recovered it is trusted again and the token reaches its side
+        sim.runUntil(failed_at + TimeUnit.SECONDS.toNanos(6), TimeUnit.NANOSECONDS);
+        CompletableFuture<Lease> after = sim.acquire(3);
+        after.thenAccept(Lease::release);
+        sim.runFor(1, TimeUnit.SECONDS);
+        assertTrue(after.isDone() && !after.isCompletedExceptionally());
+        for (int node = 0; node < 7; node++)
+            assertEquals(0, sim.metrics(node).suspected);
+        assertEquals(0, sim.violations());
+        sim.terminate();
+    }
+
+    /**
+     * sim15: with a checkpoint journal, the failed center of a star asks for advice only the leaf whose request it
+     * lost, and the token still reaches that leaf from the one holding it; without the journal it asks every leaf
+     */
+    @org.junit.Test
+    public void sim15() throws IOException {
+        assertEquals(1, restartsOfCenter(Files.createTempDirectory("journal")));
+        assertEquals(32, restartsOfCenter(null));
+    }
+
+    /**
+     * sim16: correlated failures. A node whose child is still failed ends its recovery after the retries, as the
+     * token is on the side of its parent; adjacent nodes that recover together agree on where the token is
+     */
+    @org.junit.Test
+    public void sim16() {
+        EventLog.disableAll();
+        NodeConfig config = new NodeConfig().failureDuration(2, TimeUnit.SECONDS)
+                .recoveryTimeout(100, TimeUnit.MILLISECONDS, 3).csDuration(10, TimeUnit.MILLISECONDS);
+        // 0 is the root, with children 1 and 2, the children of 1 are 3 and 4, the children of 3 are 7 and 8
+        Simulation sim = new Simulation(Topology.kary(15, 2), config, 16, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        // node 1 fails, then its child 3: node 1 recovers 3 timeouts after its failure ends, without node 3
+        sim.node_failure(1);
+        sim.runFor(500, TimeUnit.MILLISECONDS);
+        sim.node_failure(3);
+        sim.runFor(1900, TimeUnit.MILLISECONDS);
+        assertEquals(1, sim.metrics(1).recovery.getCount());
+        assertTrue(sim.metrics(1).recovery.getMax() <= TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(0, sim.metrics(3).recovery.getCount());
+        CompletableFuture<Lease> sibling = sim.acquire(4);
+        sibling.thenAccept(Lease::release);
+        sim.runFor(50, TimeUnit.MILLISECONDS);
+        assertTrue(sibling.isDone() && !sibling.isCompletedExceptionally());
+        sim.run();
+        assertEquals(1, sim.metrics(3).recovery.getCount());
+
+        // the token is on the side of node 7, then 7 asks again, and 3 and its parent fail together
+        sim.acquire(7).thenAccept(Lease::release);
+        sim.run();
+        CompletableFuture<Lease> lost = sim.acquire(8);
+        lost.thenAccept(Lease::release);
+        sim.node_failure(3);
+        sim.node_failure(1);
+        long failed_at = sim.now();
+        sim.run();
+        // the request of 8 lost by its parent is served once both recovered, without waiting for any retry
+        assertTrue(lost.isDone() && !lost.isCompletedExceptionally());
+        for (int node : new int[]{1, 3})
+            assertEquals(2, sim.metrics(node).recovery.getCount());
+        assertTrue(sim.now() - failed_at <= TimeUnit.MILLISECONDS.toNanos(2100));
+
+        // one token in the tree: every node gets the CS, one at a time
+        List<CompletableFuture<Lease>> leases = new ArrayList<>();
+        for (int node = 0; node < 15; node++) {
+            CompletableFuture<Lease> lease = sim.acquire(node);
+            lease.thenAccept(Lease::release);
+            leases.add(lease);
+        }
+        sim.run();
+        for (CompletableFuture<Lease> lease : leases)
+            assertTrue(lease.isDone() && !lease.isCompletedExceptionally());
+        assertEquals(0, sim.violations());
+        sim.terminate();
+    }
+
+    /**
+     * sim17: latency-aware trees. On a chain of 10 ms links whose middle node reaches every node in at most 12 ms,
+     * the minimum spanning tree is the chain, the other trees are the star of the middle node, with half the
+     * diameter and a lower expected latency per CS. The token starts at the center, or at the most frequent requester
+     */
+    @org.junit.Test
+    public void sim17() throws IOException {
+        Path file = Files.createTempFile("graph", ".txt");
+        Files.write(file, Arrays.asList("# chain", "0 1 10", "1 2 10", "2 3 10", "3 4 10",
+                "# shortcuts from the middle", "2 0 12", "2 4 12", "node 4 2.5"));
+        LatencyGraph graph = LatencyGraph.load(file);
+        assertEquals(5, graph.size());
+
+        Topology chain = graph.tree(LatencyGraph.Tree.MINIMUM_SPANNING, LatencyGraph.Placement.CENTER);
+        Topology star = graph.tree(LatencyGraph.Tree.MINIMUM_LATENCY, LatencyGraph.Placement.CENTER);
+        assertEquals(40, graph.diameter(chain), 1e-9);
+        assertEquals(24, graph.diameter(star), 1e-9);
+        assertEquals(24, graph.diameter(graph.tree(LatencyGraph.Tree.MINIMUM_DIAMETER,
+                LatencyGraph.Placement.CENTER)), 1e-9);
+        assertTrue(graph.expectedLatency(star) < graph.expectedLatency(chain));
+        assertTrue(graph.expectedRootLatency(star) < graph.expectedRootLatency(chain));
+        // node 4 asks 2.5 times as often as the others: the center of the chain moves from 2 to 3
+        assertEquals(3, chain.root());
+        assertEquals(2, star.root());
+        Topology frequent = graph.tree(LatencyGraph.Tree.MINIMUM_LATENCY, LatencyGraph.Placement.FREQUENT);
+        assertEquals(4, frequent.root());
+
+        // the token starts at node 4, which enters the CS without messages
+        EventLog.disableAll();
+        Simulation sim = new Simulation(frequent, new NodeConfig(), 17, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+        CompletableFuture<Lease> local = sim.acquire(4);
+        sim.run();
+        assertTrue(local.isDone());
+        assertEquals(0, sim.messageCount(MessageType.REQUEST));
+        local.join().release();
+        List<CompletableFuture<Lease>> leases = new ArrayList<>();
+        for (int node = 0; node < 5; node++) {
+            CompletableFuture<Lease> lease = sim.acquire(node);
+            lease.thenAccept(Lease::release);
+            leases.add(lease);
+        }
+        sim.run();
+        for (CompletableFuture<Lease> lease : leases)
+            assertTrue(lease.isDone() && !lease.isCompletedExceptionally());
+        assertEquals(0, sim.violations());
+        sim.terminate();
+
+        // every node must be linked
+        Files.write(file, Arrays.asList("0 1 10", "2 3 10"));
+        try {
+            LatencyGraph.load(file);
+            fail("disconnected graph loaded");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("not connected"));
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * sim18: emulated links. On the chain 0-1-2, with 40 ms between 0 and 1 and 8 kbit/s (a byte per ms) between 1
+     * and 2, node 1 gets the token of the root in two delays, node 2 that of node 1 in the time it takes to send the
+     * two messages. With jitter and reordering on every link, the nodes of a star are served, the same way at every run
+     */
+    @org.junit.Test
+    public void sim18() throws IOException {
+        EventLog.disableAll();
+        Path file = Files.createTempFile("network", ".txt");
+        Files.write(file, Arrays.asList("default 1", "0 1 40", "# delay, jitter, kbit/s", "1 2 0 0 8"));
+        Simulation sim = new Simulation(Topology.chain(3), new NodeConfig(),
+                new NetworkEmulator(Transport.AKKA, 18).load(file));
+        Files.delete(file);
+        sim.init();
+        sim.run();
+        long start = sim.now();
+        long[] granted = new long[1];
+        sim.acquire(1).thenAccept(lease -> {
+            granted[0] = sim.now();
+            lease.release();
+        });
+        sim.run();
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(80), granted[0] - start);
+        start = sim.now();
+        sim.acquire(2).thenAccept(lease -> {
+            granted[0] = sim.now();
+            lease.release();
+        });
+        sim.run();
+        // a Request and a Privilege take a few bytes each
+        long took = granted[0] - start;
+        assertTrue(took >= TimeUnit.MILLISECONDS.toNanos(6) && took <= TimeUnit.MILLISECONDS.toNanos(16));
+        sim.terminate();
+
+        assertEquals(jitteryStar(), jitteryStar());
+    }
+
+    /**
+     * sim19: cancellation. On the chain 0-1-2-3-4 with 10 ms links, a request of node 4 waiting behind the CS of
+     * node 0 is withdrawn hop by hop when cancelled, as is the one of a tryAcquire at its timeout, so the token stays
+     * at node 0; without waiting, tryAcquire only succeeds where the token is. A node whose request is cancelled
+     * while the token is on its way to it passes the token on at once, here to node 1 that asked meanwhile
+     */
+    @org.junit.Test
+    public void sim19() {
+        EventLog.disableAll();
+        Simulation sim = new Simulation(Topology.chain(5), new NodeConfig(), new NetworkEmulator(Transport.AKKA, 19)
+                .defaultLink(new NetworkEmulator.LinkProfile().delay(10, TimeUnit.MILLISECONDS)));
+        sim.init();
+        sim.run();
+        CompletableFuture<Lease> held = sim.acquire(0);
+        CompletableFuture<Lease> waiting = sim.acquire(4);
+        sim.run();
+        assertEquals(4, sim.messageCount(MessageType.REQUEST));
+        assertTrue(waiting.cancel(false));
+        sim.run();
+        assertEquals(4, sim.messageCount(MessageType.CANCEL));
+
+        long start = sim.now();
+        long[] failed = new long[1];
+        CompletableFuture<Lease> timed = sim.tryAcquire(3, 0, 25, TimeUnit.MILLISECONDS);
+        timed.whenComplete((lease, e) -> failed[0] = sim.now());
+        sim.run();
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(25), failed[0] - start);
+        assertTrue(timedOut(timed));
+        assertEquals(7, sim.messageCount(MessageType.REQUEST));
+        assertEquals(7, sim.messageCount(MessageType.CANCEL));
+        CompletableFuture<Lease> at_once = sim.tryAcquire(2, 0, 0, TimeUnit.MILLISECONDS);
+        sim.run();
+        assertTrue(timedOut(at_once));
+        assertEquals(7, sim.messageCount(MessageType.REQUEST));
+
+        // nobody waits for the token anymore, it stays at node 0
+        held.join().release();
+        sim.run();
+        assertEquals(0, sim.messageCount(MessageType.PRIVILEGE) + sim.messageCount(MessageType.PRIVILEGE_AND_REQUEST));
+        at_once = sim.tryAcquire(0, 0, 0, TimeUnit.MILLISECONDS);
+        sim.run();
+        at_once.join().release();
+
+        // the token leaves node 3 for node 4 at 30 ms, node 4 gives up at 35 ms and sends it back at 40 ms
+        CompletableFuture<Lease> held_again = sim.acquire(0);
+        CompletableFuture<Lease> late = sim.acquire(4);
+        sim.run();
+        start = sim.now();
+        held_again.join().release();
+        long[] granted = new long[1];
+        sim.after(5, TimeUnit.MILLISECONDS, () -> sim.acquire(1).thenAccept(lease -> {
+            granted[0] = sim.now();
+            lease.release();
+        }));
+        sim.after(35, TimeUnit.MILLISECONDS, () -> late.cancel(false));
+        sim.run();
+        assertTrue(late.isCancelled());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(70), granted[0] - start);
+        assertEquals(0, sim.violations());
+        sim.terminate();
+    }
+
+    /**
+     * sim20: lease expiry. On the chain 0-1-2 with 10 ms links and 100 ms leases, the client of node 0 never releases
+     * its lease: node 0 revokes it at 100 ms, and node 2 gets the token 20 ms later. The late work of node 0 is
+     * rejected by the fence of node 2, and its late release has no effect. Over random exclusive and shared leases,
+     * an exclusive lease gets a higher fence than every lease granted before it, a shared one than every exclusive one
+     */
+    @org.junit.Test
+    public void sim20() {
+        EventLog.disableAll();
+        Simulation sim = new Simulation(Topology.chain(3), new NodeConfig().leaseDuration(100, TimeUnit.MILLISECONDS),
+                new NetworkEmulator(Transport.AKKA, 20).defaultLink(new NetworkEmulator.LinkProfile()
+                        .delay(10, TimeUnit.MILLISECONDS)));
+        sim.init();
+        sim.run();
+        long start = sim.now();
+        CompletableFuture<Lease> stalled = sim.acquire(0);
+        CompletableFuture<Lease> next = sim.acquire(2);
+        long[] granted = new long[1];
+        next.thenAccept(lease -> granted[0] = sim.now());
+        sim.runFor(150, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(120), granted[0] - start);
+        assertTrue(stalled.join().isExpired());
+        assertFalse(next.join().isExpired());
+        assertEquals(1, sim.metrics(0).revoked);
+        FenceGuard guard = new FenceGuard();
+        assertTrue(guard.admit(next.join()));
+        assertFalse(guard.admit(stalled.join()));
+        stalled.join().release();
+        next.join().release();
+        sim.run();
+        assertEquals(0, sim.metrics(2).revoked);
+        assertEquals(0, sim.violations());
+
+        Random random = new Random(20);
+        List<Lease> leases = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int node = random.nextInt(3);
+            boolean shared = random.nextBoolean();
+            sim.after(random.nextInt(500), TimeUnit.MILLISECONDS, () -> sim.acquire(node, 0, shared).thenAccept(lease -> {
+                leases.add(lease);
+                sim.after(5, TimeUnit.MILLISECONDS, lease::release);
+            }));
+        }
+        sim.run();
+        assertEquals(40, leases.size());
+        long highest = 0;
+        long highest_exclusive = 0;
+        for (Lease lease : leases) {
+            assertTrue(lease.getFence() > (lease.isShared() ? highest_exclusive : highest));
+            highest = Math.max(highest, lease.getFence());
+            if (!lease.isShared())
+                highest_exclusive = lease.getFence();
+        }
+        assertEquals(1, sim.metrics(0).revoked + sim.metrics(1).revoked + sim.metrics(2).revoked);
+        sim.terminate();
+    }
+
+    private static boolean timedOut(CompletableFuture<Lease> future) {
+        try {
+            future.join();
+            return false;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof TimeoutException;
+        }
+    }
+
+    private static long jitteryStar() {
+        NodeConfig config = new NodeConfig().csDuration(1, TimeUnit.MILLISECONDS);
+        NetworkEmulator network = new NetworkEmulator(Transport.AKKA, 18).defaultLink(new NetworkEmulator.LinkProfile()
+                .delay(10, TimeUnit.MILLISECONDS).jitter(5, TimeUnit.MILLISECONDS).reorder(10, TimeUnit.MILLISECONDS));
+        Simulation sim = new Simulation(Topology.star(8), config, network);
+        sim.init();
+        sim.run();
+        Random random = new Random(18);
+        List<CompletableFuture<Lease>> leases = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            int node = random.nextInt(8);
+            sim.after(random.nextInt(200), TimeUnit.MILLISECONDS, () -> {
+                CompletableFuture<Lease> lease = sim.acquire(node);
+                lease.thenAccept(Lease::release);
+                leases.add(lease);
+            });
+        }
+        sim.run();
+        assertEquals(50, leases.size());
+        for (CompletableFuture<Lease> lease : leases)
+            assertTrue(lease.isDone() && !lease.isCompletedExceptionally());
+        assertEquals(0, sim.violations());
+        long end = sim.now();
+        sim.terminate();
+        return end;
+    }
+
+    /**
+     * sim21: under heavy contention a privilege handed over with the request for the rest of the queue saves the
+     * request that would follow it: with the same seed, fewer messages are sent with piggybacking than without
+     */
+    @org.junit.Test
+    public void sim21() {
+        long[] with = contention(true);
+        long[] without = contention(false);
+        assertTrue(with[1] > 0);
+        assertEquals(0, without[1]);
+        // fewer separate requests, and fewer messages in all for the same CS entries
+        assertTrue(with[0] + " vs " + without[0] + " requests", with[0] < without[0]);
+        assertTrue(with[2] + " vs " + without[2] + " messages", with[2] < without[2]);
+    }
+
+    private static long restartsOfCenter(Path journal) {
+        EventLog.disableAll();
+        NodeConfig config = new NodeConfig().failureDuration(1, TimeUnit.SECONDS);
+        if (journal != null)
+            config.journal(journal);
+        Simulation sim = new Simulation(Topology.star(33), config, 15, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+        // the token moves to leaf 1, then the center fails and leaf 2 asks for the CS
+        sim.acquire(1).thenAccept(Lease::release);
+        sim.run();
+        sim.node_failure(0);
+        List<CompletableFuture<Lease>> lost = new ArrayList<>();
+        sim.after(100, TimeUnit.MILLISECONDS, () -> lost.add(sim.acquire(2)));
+        sim.run();
+
+        // the request the center lost is served once it recovered
+        assertTrue(lost.get(0).isDone() && !lost.get(0).isCompletedExceptionally());
+        lost.get(0).join().release();
+        CompletableFuture<Lease> after = sim.acquire(1);
+        after.thenAccept(Lease::release);
+        sim.run();
+        assertTrue(after.isDone() && !after.isCompletedExceptionally());
+        assertEquals(0, sim.violations());
+        long restarts = sim.messageCount(MessageType.RESTART);
+        sim.terminate();
+        return restarts;
+    }
+
+    private static double tokenHopsPerCS(int batch) {
+        NodeConfig config = new NodeConfig().localBatch(batch);
+        Simulation sim = new Simulation(Topology.chain(10), config, 13, Simulation.DeliveryOrder.LINK_FIFO,
+                1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        long before = sim.messageCount(MessageType.PRIVILEGE) + sim.messageCount(MessageType.PRIVILEGE_AND_REQUEST);
+        List<Integer> order = new ArrayList<>();
+        for (int k = 0; k < 8; k++) {
+            for (int node : new int[]{0, 9}) {
+                sim.acquire(node).thenAccept(l -> {
+                    order.add(node);
+                    sim.after(5, TimeUnit.MILLISECONDS, l::release);
+                });
+            }
+        }
+        sim.run();
+
+        assertEquals(16, order.size());
+        assertEquals(0, sim.violations());
+        // once the request of the other end reached it, no node keeps the token for more than a batch while
+        // the other one waits
+        int first = order.indexOf(9 - order.get(0));
+        int run = 0;
+        for (int i = first; i < order.size(); i++) {
+            run = i > first && order.get(i).equals(order.get(i - 1)) ? run + 1 : 1;
+            if (order.subList(i, order.size()).contains(9 - order.get(i)))
+                assertTrue("order " + order, run <= batch);
+        }
+        long hops = sim.messageCount(MessageType.PRIVILEGE) + sim.messageCount(MessageType.PRIVILEGE_AND_REQUEST)
+                - before;
+        sim.terminate();
+        return (double) hops / order.size();
+    }
+
+    // every node enters the CS 50 times, asking again as soon as it leaves it: the requests, the privileges with
+    // a request and all the messages sent after the initialization
+    private static long[] contention(boolean piggyback) {
+        EventLog.disableAll();
+        Simulation sim = new Simulation(Topology.kary(10, 2), new NodeConfig().piggyback(piggyback), 21,
+                Simulation.DeliveryOrder.LINK_FIFO, 1, 10, TimeUnit.MILLISECONDS);
+        sim.init();
+        sim.run();
+
+        long before = 0;
+        for (MessageType type : MessageType.values())
+            before += sim.messageCount(type);
+        for (int node = 0; node < 10; node++)
+            contend(sim, node, 50);
+        sim.run();
+
+        assertEquals(0, sim.violations());
+        assertEquals(500, sim.grants());
+        long total = -before;
+        for (MessageType type : MessageType.values())
+            total += sim.messageCount(type);
+        long[] counts = {sim.messageCount(MessageType.REQUEST), sim.messageCount(MessageType.PRIVILEGE_AND_REQUEST),
+                total};
+        sim.terminate();
+        return counts;
+    }
+
+    private static void contend(Simulation sim, int node, int rounds) {
+        if (rounds > 0)
+            sim.acquire(node).thenAccept(l -> sim.after(1, TimeUnit.MILLISECONDS, () -> {
+                l.release();
+                contend(sim, node, rounds - 1);
+            }));
+    }
+}
@@ -0,0 +1,98 @@
+package it.unitn.ds1;
+
+/**
+ * FIFO queue of neighbour slots (0 .. capacity-1), each slot being in the queue at most once.
+ * It is a ring of primitive ints plus a bitset for membership: add, poll and contains are O(1)
+ * and nothing is allocated after construction. removeAt, for the requests served out of order (by priority,
+ * cancelled), is linear in the size of the queue, which is at most the degree of the node plus one.
+ */
+final class SlotQueue {
+    private final int[] ring;
+    private final long[] present;
+    private int head;
+    private int size;
+
+    SlotQueue(final int capacity) {
+        this.ring = new int[Math.max(1, capacity)];
+        this.present = new long[(ring.length + 63) >>> 6];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(final int slot) {
+        return (present[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * appends slot to the queue
+     * @return false if slot was already in the queue (and the queue is unchanged)
+     */
+    boolean add(final int slot) {
+        if (contains(slot))
+            return false;
+        int tail = head + size;
+        if (tail >= ring.length)
+            tail -= ring.length;
+        ring[tail] = slot;
+        size++;
+        present[slot >>> 6] |= 1L << slot;
+        return true;
+    }
+
+    int peek() {
+        if (size == 0)
+            throw new IllegalStateException("empty queue");
+        return ring[head];
+    }
+
+    int poll() {
+        int slot = peek();
+        present[slot >>> 6] &= ~(1L << slot);
+        if (++head == ring.length)
+            head = 0;
+        size--;
+        return slot;
+    }
+
+    // removes the i-th slot from the head of the queue, the ones after it move up
+    int removeAt(final int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("position " + i + " of a queue of " + size);
+        int slot = get(i);
+        for (int j = i; j < size - 1; j++) {
+            int idx = head + j;
+            int next = idx + 1;
+            ring[idx >= ring.length ? idx - ring.length : idx] = ring[next >= ring.length ? next - ring.length : next];
+        }
+        present[slot >>> 6] &= ~(1L << slot);
+        size--;
+        return slot;
+    }
+
+    // i-th slot from the head of the queue
+    int get(final int i) {
+        int idx = head + i;
+        return ring[idx >= ring.length ? idx - ring.length : idx];
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            int slot = get(i);
+            present[slot >>> 6] &= ~(1L << slot);
+        }
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,232 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Logical spanning tree over which the nodes run Raymond's algorithm.
+ * The tree is described by a parent array and stored in compressed (CSR) form:
+ * the neighbours of node i are adjacency[offsets[i] .. offsets[i+1]), parent first, then the children.
+ * Building it needs a handful of int arrays regardless of the number of nodes, no per-node collections.
+ */
+public class Topology {
+    private final String name;
+    private final int[] parent; // parent[root] == -1
+    private final int root;
+    private final int[] offsets;
+    private final int[] adjacency;
+
+    private Topology(final String name, final int[] parent) {
+        this.name = name;
+        this.parent = parent;
+
+        int n = parent.length;
+        int r = -1;
+        for (int i = 0; i < n; i++) {
+            if (parent[i] < 0) {
+                if (r >= 0)
+                    throw new IllegalArgumentException("two roots: " + r + " and " + i);
+                r = i;
+            }
+        }
+        this.root = Math.max(r, 0);
+        // degree of each node, stored shifted by one to compute the offsets in place
+        int[] off = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (parent[i] >= 0) {
+                off[i + 1]++;
+                off[parent[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++)
+            off[i + 1] += off[i];
+
+        int[] adj = new int[off[n]];
+        int[] fill = Arrays.copyOf(off, n);
+        // parents first...
+        for (int i = 0; i < n; i++) {
+            if (parent[i] >= 0)
+                adj[fill[i]++] = parent[i];
+        }
+        // ...then children, in increasing order of id
+        for (int i = 0; i < n; i++) {
+            if (parent[i] >= 0)
+                adj[fill[parent[i]]++] = i;
+        }
+        this.offsets = off;
+        this.adjacency = adj;
+    }
+
+    /* -- Factories ------------------------------------------------------------ */
+
+    // any tree given by the parent of each node, -1 for the root
+    static Topology of(final String name, final int[] parent) {
+        return new Topology(name, parent.clone());
+    }
+
+    // 0 - 1 - 2 - ... - (n-1)
+    public static Topology chain(final int n) {
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i - 1;
+        return new Topology("chain", parent);
+    }
+
+    // node 0 connected to every other node
+    public static Topology star(final int n) {
+        int[] parent = new int[n];
+        Arrays.fill(parent, 0);
+        parent[0] = -1;
+        return new Topology("star", parent);
+    }
+
+    // heap-shaped k-ary tree, k = 2 is the original binary tree
+    public static Topology kary(final int n, final int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("arity must be positive: " + k);
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i == 0 ? -1 : (i - 1) / k;
+        return new Topology(k + "-ary", parent);
+    }
+
+    // random recursive tree: node i attaches to a node chosen uniformly among 0..i-1
+    public static Topology random(final int n, final long seed) {
+        Random rnd = new Random(seed);
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i == 0 ? -1 : rnd.nextInt(i);
+        return new Topology("random(" + seed + ")", parent);
+    }
+
+    // a chain of spine nodes 0..spine-1, the remaining nodes are leaves attached round robin to the spine
+    public static Topology caterpillar(final int n, final int spine) {
+        int s = Math.max(1, Math.min(n, spine));
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i < s ? i - 1 : (i - s) % s;
+        return new Topology("caterpillar(" + s + ")", parent);
+    }
+
+    /**
+     * builds a topology from a textual spec, as accepted from the command line:
+     * chain, star, kary[:k], binary, random[:seed], caterpillar[:spine]
+     * @param spec: topology spec
+     * @param n: number of nodes
+     */
+    public static Topology parse(final String spec, final int n) {
+        String[] parts = spec.trim().toLowerCase().split(":", 2);
+        String arg = parts.length > 1 ? parts[1] : null;
+        switch (parts[0]) {
+            case "chain":
+                return chain(n);
+            case "star":
+                return star(n);
+            case "binary":
+                return kary(n, 2);
+            case "kary":
+                return kary(n, arg == null ? 2 : Integer.parseInt(arg));
+            case "random":
+                return random(n, arg == null ? 42 : Long.parseLong(arg));
+            case "caterpillar":
+                return caterpillar(n, arg == null ? (int) Math.ceil(Math.sqrt(n)) : Integer.parseInt(arg));
+            default:
+                throw new IllegalArgumentException("unknown topology: " + spec);
+        }
+    }
+
+    /* -- Accessors ------------------------------------------------------------ */
+
+    public String name() {
+        return name;
+    }
+
+    public int size() {
+        return parent.length;
+    }
+
+    // the node that receives the SystemInitMsg, i.e. the first holder of the token (node 0 but for the trees
+    // built by LatencyGraph)
+    public int root() {
+        return root;
+    }
+
+    public int parent(final int node) {
+        return parent[node];
+    }
+
+    public int degree(final int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    public int neighbour(final int node, final int slot) {
+        return adjacency[offsets[node] + slot];
+    }
+
+    // position of neighbour in the neighbourhood of node, -1 if they are not neighbours
+    public int slotOf(final int node, final int neighbour) {
+        if (parent[node] == neighbour && neighbour >= 0)
+            return 0;
+        // the children are sorted by id
+        int from = offsets[node] + (parent[node] >= 0 ? 1 : 0);
+        int idx = Arrays.binarySearch(adjacency, from, offsets[node + 1], neighbour);
+        return idx < 0 ? -1 : idx - offsets[node];
+    }
+
+    // for each neighbour of node, the position of node in the neighbourhood of that neighbour
+    public int[] reverseSlots(final int node) {
+        int[] slots = new int[degree(node)];
+        for (int s = 0; s < slots.length; s++)
+            slots[s] = slotOf(neighbour(node, s), node);
+        return slots;
+    }
+
+    // fresh copy of the ids of the neighbours of node
+    public int[] neighbours(final int node) {
+        return Arrays.copyOfRange(adjacency, offsets[node], offsets[node + 1]);
+    }
+
+    public int maxDegree() {
+        int max = 0;
+        for (int i = 0; i < size(); i++)
+            max = Math.max(max, degree(i));
+        return max;
+    }
+
+    // length (in hops) of the longest path in the tree, computed with two BFS visits
+    public int diameter() {
+        if (size() == 0)
+            return 0;
+        int[] dist = new int[size()];
+        int far = bfs(root(), dist);
+        int other = bfs(far, dist);
+        return dist[other];
+    }
+
+    // fills dist with the hop distance from src, returns the farthest node
+    private int bfs(final int src, final int[] dist) {
+        Arrays.fill(dist, -1);
+        int[] queue = new int[size()];
+        int head = 0, tail = 0, far = src;
+        queue[tail++] = src;
+        dist[src] = 0;
+        while (head < tail) {
+            int u = queue[head++];
+            if (dist[u] > dist[far])
+                far = u;
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = adjacency[e];
+                if (dist[v] < 0) {
+                    dist[v] = dist[u] + 1;
+                    queue[tail++] = v;
+                }
+            }
+        }
+        return far;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s tree, %d nodes, diameter %d, max degree %d", name, size(), diameter(), maxDegree());
+    }
+}
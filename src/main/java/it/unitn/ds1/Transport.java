@@ -0,0 +1,42 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorRef;
+
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * How nodes send messages and schedule messages to themselves.
+ * The default goes straight through akka (tell and the system scheduler),
+ * Simulation replaces it to run the nodes on a virtual clock.
+ */
+public interface Transport {
+
+    // delivers msg to the actor "to", with sender as sender
+    void send(ActorRef to, Object msg, ActorRef sender);
+
+    // delivers msg to the actor of context after delay
+    void schedule(ActorContext context, FiniteDuration delay, Object msg);
+
+    // current time in nanoseconds, used to time requests, critical sections and recoveries
+    default long nanoTime() {
+        return System.nanoTime();
+    }
+
+    Transport AKKA = new Transport() {
+        @Override
+        public void send(ActorRef to, Object msg, ActorRef sender) {
+            to.tell(msg, sender);
+        }
+
+        @Override
+        public void schedule(ActorContext context, FiniteDuration delay, Object msg) {
+            if (delay.length() == 0) {
+                context.self().tell(msg, context.self());
+            } else {
+                context.system().scheduler().scheduleOnce(delay, context.self(), msg,
+                        context.dispatcher(), context.self());
+            }
+        }
+    };
+}
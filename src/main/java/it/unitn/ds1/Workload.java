@@ -0,0 +1,315 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop workload: CS requests arrive at a given rate no matter how fast they are served,
+ * each one at a node chosen by a selection policy, optionally mixed with failures of random nodes (or of groups of
+ * neighbouring nodes).
+ * Requests go through DistributedMutEx.request_cs (the CS lasts the cs duration of the NodeConfig),
+ * failures through node_failure. Arrivals that are late (e.g. after a GC pause) are issued at once,
+ * so the offered load does not drop when the system slows down.
+ * At the end the latencies are collected from the node metrics into a Report.
+ */
+public class Workload {
+
+    public enum Arrivals {
+        FIXED,  // one request every 1/rate seconds
+        POISSON // exponentially distributed gaps, 1/rate seconds on average
+    }
+
+    /**
+     * chooses the node that issues the next request
+     */
+    public interface Selection {
+        int next(Random random);
+
+        // every node with the same probability
+        static Selection uniform(final int n) {
+            return random -> random.nextInt(n);
+        }
+
+        // the k-th most popular node is chosen with probability proportional to 1 / k^s,
+        // the popularity ranks are a random permutation of the ids (so hot nodes are not all close to the root)
+        static Selection zipf(final int n, final double s, final long seed) {
+            final double[] cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1.0 / Math.pow(k + 1, s);
+                cdf[k] = sum;
+            }
+            final int[] node = permutation(n, seed);
+            final double total = sum;
+            return random -> {
+                int k = Arrays.binarySearch(cdf, random.nextDouble() * total);
+                k = k < 0 ? -k - 1 : k;
+                return node[Math.min(k, n - 1)];
+            };
+        }
+
+        // a fraction of the nodes (at least one) receives the given share of the requests, uniformly
+        static Selection hotspot(final int n, final double fraction, final double share, final long seed) {
+            final int hot = Math.max(1, Math.min(n, (int) Math.round(n * fraction)));
+            final int[] node = permutation(n, seed);
+            return random -> {
+                if (hot == n || random.nextDouble() < share)
+                    return node[random.nextInt(hot)];
+                return node[hot + random.nextInt(n - hot)];
+            };
+        }
+
+        /**
+         * builds a selection from a textual spec, as accepted from the command line:
+         * uniform, zipf[:s], hotspot[:fraction[:share]]
+         */
+        static Selection parse(final String spec, final int n, final long seed) {
+            String[] parts = spec.trim().toLowerCase().split(":");
+            switch (parts[0]) {
+                case "uniform":
+                    return uniform(n);
+                case "zipf":
+                    return zipf(n, parts.length > 1 ? Double.parseDouble(parts[1]) : 1.0, seed);
+                case "hotspot":
+                    return hotspot(n, parts.length > 1 ? Double.parseDouble(parts[1]) : 0.1,
+                            parts.length > 2 ? Double.parseDouble(parts[2]) : 0.9, seed);
+                default:
+                    throw new IllegalArgumentException("unknown node selection: " + spec);
+            }
+        }
+    }
+
+    private static int[] permutation(final int n, final long seed) {
+        Random random = new Random(seed);
+        int[] p = new int[n];
+        for (int i = 0; i < n; i++)
+            p[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = p[i];
+            p[i] = p[j];
+            p[j] = t;
+        }
+        return p;
+    }
+
+    private final DistributedMutEx mutex;
+    private final Random random;
+    private Arrivals arrivals = Arrivals.POISSON;
+    private double rate = 10; // requests per second
+    private Selection selection;
+    private double failure_rate = 0; // failures per second
+    private int failure_burst = 1; // nodes failing together, around the chosen one
+    private long duration = TimeUnit.SECONDS.toNanos(10);
+    private long operations = Long.MAX_VALUE;
+    private int locks = 0; // named locks the requests are spread over, 0 for the default lock only
+    private double shared = 0; // fraction of the requests made in shared mode
+    private double urgent = 0; // fraction of the requests made with urgent_priority
+    private int urgent_priority = 1;
+
+    /**
+     * @param mutex: initialized instance the load is applied to
+     * @param seed: seed of the arrivals, of the node selection and of the failures
+     */
+    public Workload(final DistributedMutEx mutex, final long seed) {
+        this.mutex = mutex;
+        this.random = new Random(seed);
+        this.selection = Selection.uniform(mutex.getnActors());
+    }
+
+    public Workload arrivals(final Arrivals arrivals, final double rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("arrival rate must be positive: " + rate);
+        this.arrivals = arrivals;
+        this.rate = rate;
+        return this;
+    }
+
+    public Workload selection(final Selection selection) {
+        this.selection = selection;
+        return this;
+    }
+
+    // failures of uniformly chosen nodes, as a Poisson process; 0 disables them
+    public Workload failures(final double rate) {
+        this.failure_rate = rate;
+        return this;
+    }
+
+    // each failure takes down the chosen node and the nearest nodes of the tree, n in all: correlated failures,
+    // as of the hosts of a rack
+    public Workload failureBurst(final int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("a failure takes down at least one node: " + n);
+        this.failure_burst = n;
+        return this;
+    }
+
+    // the run ends after this time or after the given number of requests, whichever comes first
+    public Workload duration(final long amount, final TimeUnit unit) {
+        this.duration = unit.toNanos(amount);
+        return this;
+    }
+
+    public Workload operations(final long operations) {
+        this.operations = operations;
+        return this;
+    }
+
+    // each request is for one of n named locks (ids 1 to n) chosen uniformly, 0 to use the default lock only
+    public Workload locks(final int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative number of locks: " + n);
+        this.locks = n;
+        return this;
+    }
+
+    // each request is made in shared mode with the given probability
+    public Workload shared(final double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("shared fraction not in [0, 1]: " + fraction);
+        this.shared = fraction;
+        return this;
+    }
+
+    // each request is made with the given priority (above 0) with the given probability, the others with priority 0
+    public Workload urgent(final double fraction, final int priority) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("urgent fraction not in [0, 1]: " + fraction);
+        if (priority <= 0)
+            throw new IllegalArgumentException("urgent priority must be positive: " + priority);
+        this.urgent = fraction;
+        this.urgent_priority = priority;
+        return this;
+    }
+
+    // gap before the next event of a process with the given rate, in nanoseconds
+    private long gap(final Arrivals kind, final double rate) {
+        double mean = 1e9 / rate;
+        if (kind == Arrivals.FIXED)
+            return (long) mean;
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    /**
+     * applies the load, blocking the caller until the end of the run
+     * @param drain: time to wait after the last request, to let the queued requests be served
+     * @return throughput and latencies of the run
+     */
+    public Report run(final long drain, final TimeUnit unit) throws Exception {
+        NodeMetrics.Snapshot before = mutex.metrics().toCompletableFuture().get();
+
+        long start = System.nanoTime();
+        long end = start + duration;
+        long next_request = start + gap(arrivals, rate);
+        long next_failure = failure_rate > 0 ? start + gap(Arrivals.POISSON, failure_rate) : Long.MAX_VALUE;
+        long requests = 0;
+        long failures = 0;
+
+        while (requests < operations) {
+            long next = Math.min(next_request, next_failure);
+            if (next >= end)
+                break;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            // both processes are on the schedule, not on the actual issue time
+            if (next == next_failure) {
+                failures += fail(random.nextInt(mutex.getnActors()));
+                next_failure += gap(Arrivals.POISSON, failure_rate);
+            } else {
+                int node = selection.next(random);
+                long resource = locks == 0 ? 0 : 1 + random.nextInt(locks);
+                boolean read = shared > 0 && random.nextDouble() < shared;
+                if (urgent > 0 && random.nextDouble() < urgent)
+                    mutex.request_cs(node, resource, read, urgent_priority);
+                else if (read)
+                    mutex.request_cs(node, resource, true);
+                else if (locks == 0)
+                    mutex.request_cs(node);
+                else
+                    mutex.request_cs(node, resource);
+                requests++;
+                next_request += gap(arrivals, rate);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        unit.sleep(drain);
+        NodeMetrics.Snapshot after = mutex.metrics().toCompletableFuture().get();
+        return new Report(elapsed, requests, failures, before, after);
+    }
+
+    // fails the node and the nodes closest to it, in breadth first order, up to the burst size
+    private int fail(final int node) {
+        Topology topology = mutex.getTopology();
+        int[] burst = new int[Math.min(failure_burst, topology.size())];
+        boolean[] visited = new boolean[topology.size()];
+        burst[0] = node;
+        visited[node] = true;
+        int count = 1;
+        for (int next = 0; next < count && count < burst.length; next++) {
+            for (int neighbour : topology.neighbours(burst[next])) {
+                if (!visited[neighbour] && count < burst.length) {
+                    visited[neighbour] = true;
+                    burst[count++] = neighbour;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++)
+            mutex.node_failure(burst[i]);
+        return count;
+    }
+
+    /**
+     * outcome of a run
+     */
+    public static class Report {
+        public final long elapsed_nanos; // time spent issuing the load
+        public final long requests;      // requests issued (a request to a node already waiting for the CS is merged)
+        public final long failures;      // nodes failed (a node in the CS or in recovery ignores it)
+        public final long grants;        // CS entries during the run and the drain
+        public final long messages;      // node to node messages during the run and the drain
+        public final NodeMetrics.Snapshot metrics; // cumulative metrics of all the nodes at the end
+
+        private Report(long elapsed_nanos, long requests, long failures,
+                       NodeMetrics.Snapshot before, NodeMetrics.Snapshot after) {
+            this.elapsed_nanos = elapsed_nanos;
+            this.requests = requests;
+            this.failures = failures;
+            this.grants = after.grants - before.grants;
+            long m = 0;
+            for (MessageType type : MessageType.values())
+                m += after.getSent(type) - before.getSent(type);
+            this.messages = m;
+            this.metrics = after;
+        }
+
+        public double throughput() {
+            return grants / (elapsed_nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            double secs = elapsed_nanos / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("duration:         %.3f s%n", secs));
+            sb.append(String.format("requests:         %d (%.1f/s offered)%n", requests, requests / secs));
+            sb.append(String.format("failures:         %d%n", failures));
+            sb.append(String.format("grants:           %d (%.1f/s)%n", grants, throughput()));
+            sb.append(String.format("messages/grant:   %.3f%n", grants == 0 ? 0.0 : (double) messages / grants));
+            sb.append(String.format("still queued:     %d requests, %d nodes waiting for the privilege%n",
+                    metrics.queue_depth, metrics.asked));
+            sb.append(String.format("named lock state: %d locks over all the nodes%n", metrics.locks));
+            sb.append("request to grant: ").append(metrics.request_to_grant).append('\n');
+            sb.append("urgent requests:  ").append(metrics.urgent_request_to_grant).append('\n');
+            sb.append("CS hold:          ").append(metrics.cs_hold).append('\n');
+            sb.append("recovery:         ").append(metrics.recovery).append('\n');
+            return sb.toString();
+        }
+    }
+}